@@ -0,0 +1,651 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.server.websocket.WebSocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * A closed-loop NIO load generator for {@link NioServer}. Each of its threads runs a selector over
+ * its share of the connections, and each connection keeps a fixed number of requests outstanding,
+ * sending the next as soon as a response arrives. Latency is measured from the moment a request is
+ * handed to the socket until its response has been read in full, or, without keep-alive, from the
+ * moment the connection for it was opened.<br>
+ * <br>
+ * Being closed-loop, a stall in the server also stalls the generator, so the latencies recorded
+ * during a stall undercount how many requests an open-loop client would have seen delayed.
+ */
+final class LoadGenerator {
+    /** The kinds of traffic that can be generated. */
+    enum Mode {
+        /** GET requests for a static file. */
+        STATIC,
+        /** POST requests whose body is echoed back by a handler. */
+        ECHO,
+        /** Binary WebSocket messages that are echoed back by a handler. */
+        WEBSOCKET
+    }
+
+    private static final byte[]            HEADER_END     = { '\r', '\n', '\r', '\n' };
+    private static final byte[]            CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+    private static final ByteBuffer        EMPTY          = ByteBuffer.allocate(0);
+    private              InetSocketAddress mAddress;
+    private              Mode              mMode;
+    private              int               mConnections;
+    private              int               mPipeline;
+    private              boolean           mKeepAlive;
+    private              SSLContext        mSSLContext;
+    private              byte[]            mRequest;
+    private              byte[]            mUpgrade;
+    private              List<Worker>      mWorkers       = new ArrayList<>();
+    private volatile     boolean           mRunning;
+    private volatile     int               mEpoch;
+
+    /**
+     * @param address     The address of the server.
+     * @param mode        The kind of traffic to generate.
+     * @param uri         The URI to request, or to upgrade to a WebSocket.
+     * @param size        The size of each request body or WebSocket message. Ignored for {@link
+     *                    Mode#STATIC}, where the size of the file determines the response.
+     * @param connections The number of connections to keep open.
+     * @param pipeline    The number of requests to keep outstanding on each connection.
+     * @param keepAlive   {@code false} to open a new connection for every request. Forces the
+     *                    pipeline depth to 1. Ignored for {@link Mode#WEBSOCKET}.
+     * @param sslContext  The {@link SSLContext} to connect with, or {@code null} for plain TCP.
+     */
+    LoadGenerator(InetSocketAddress address, Mode mode, String uri, int size, int connections, int pipeline, boolean keepAlive, SSLContext sslContext) {
+        mAddress = address;
+        mMode = mode;
+        mConnections = connections;
+        mKeepAlive = keepAlive || mode == Mode.WEBSOCKET;
+        mPipeline = mKeepAlive ? Math.max(pipeline, 1) : 1;
+        mSSLContext = sslContext;
+        String host = address.getHostString() + ":" + address.getPort();
+        switch (mode) {
+        case STATIC:
+            mRequest = ("GET " + uri + " HTTP/1.1\r\nHost: " + host + "\r\n" + (mKeepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            break;
+        case ECHO:
+            byte[] head = ("POST " + uri + " HTTP/1.1\r\nHost: " + host + "\r\n" + (mKeepAlive ? "" : "Connection: close\r\n") + "Content-Type: application/octet-stream\r\nContent-Length: " + size + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            mRequest = new byte[head.length + size];
+            System.arraycopy(head, 0, mRequest, 0, head.length);
+            for (int i = head.length; i < mRequest.length; i++) {
+                mRequest[i] = (byte) ('a' + i % 26);
+            }
+            break;
+        case WEBSOCKET:
+            mUpgrade = ("GET " + uri + " HTTP/1.1\r\nHost: " + host + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            mRequest = maskedFrames(size);
+            break;
+        default:
+            throw new IllegalArgumentException(mode.toString());
+        }
+    }
+
+    /**
+     * @param size The size of the message.
+     * @return A binary message, masked as a client must, split into frames no larger than the
+     *         server will accept.
+     */
+    private static byte[] maskedFrames(int size) {
+        byte[] mask   = { 0x37, (byte) 0xFA, 0x21, 0x3D };
+        byte[] buffer = new byte[size + (size / WebSocket.MAX_PAYLOAD_LENGTH + 1) * 14];
+        int    length = 0;
+        int    offset = 0;
+        do {
+            int count = Math.min(size - offset, WebSocket.MAX_PAYLOAD_LENGTH);
+            buffer[length++] = (byte) ((offset == 0 ? 2 : 0) | (offset + count == size ? 0x80 : 0));
+            if (count < 126) {
+                buffer[length++] = (byte) (0x80 | count);
+            } else if (count < 65536) {
+                buffer[length++] = (byte) (0x80 | 126);
+                buffer[length++] = (byte) (count >> 8);
+                buffer[length++] = (byte) count;
+            } else {
+                buffer[length++] = (byte) (0x80 | 127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    buffer[length++] = (byte) ((long) count >> shift);
+                }
+            }
+            System.arraycopy(mask, 0, buffer, length, mask.length);
+            length += mask.length;
+            for (int i = 0; i < count; i++) {
+                buffer[length++] = (byte) (('a' + (offset + i) % 26) ^ mask[i & 3]);
+            }
+            offset += count;
+        } while (offset < size);
+        byte[] frames = new byte[length];
+        System.arraycopy(buffer, 0, frames, 0, length);
+        return frames;
+    }
+
+    /**
+     * Opens the connections and starts generating load.
+     *
+     * @param threads The number of selector threads to spread the connections across.
+     */
+    final void start(int threads) throws IOException {
+        mRunning = true;
+        threads = Math.max(Math.min(threads, mConnections), 1);
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(mConnections / threads + (i < mConnections % threads ? 1 : 0));
+            worker.setName("Load Generator " + (i + 1));
+            worker.setDaemon(true);
+            mWorkers.add(worker);
+        }
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /** Discards everything recorded so far, such as at the end of a warmup period. */
+    final void reset() {
+        mEpoch++;
+    }
+
+    /** Stops generating load and closes the connections. Must be called before retrieving results. */
+    final void stop() {
+        mRunning = false;
+        for (Worker worker : mWorkers) {
+            worker.mSelector.wakeup();
+            try {
+                worker.join();
+            } catch (InterruptedException exception) {
+                // Ignore
+            }
+            worker.checkEpoch();
+        }
+    }
+
+    /** @return The IDs of the generator's threads, so their allocations can be excluded. */
+    final long[] getThreadIds() {
+        long[] ids = new long[mWorkers.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mWorkers.get(i).getId();
+        }
+        return ids;
+    }
+
+    /** @return The latencies, in nanoseconds, recorded since the last {@link #reset()}. */
+    final LoadLatencyHistogram getLatencies() {
+        LoadLatencyHistogram histogram = new LoadLatencyHistogram();
+        for (Worker worker : mWorkers) {
+            histogram.add(worker.mLatencies);
+        }
+        return histogram;
+    }
+
+    /** @return The number of failed requests and unexpected disconnects since the last {@link #reset()}. */
+    final long getErrorCount() {
+        long count = 0;
+        for (Worker worker : mWorkers) {
+            count += worker.mErrors;
+        }
+        return count;
+    }
+
+    /** @return The number of connections opened since the last {@link #reset()}. */
+    final long getConnectCount() {
+        long count = 0;
+        for (Worker worker : mWorkers) {
+            count += worker.mConnects;
+        }
+        return count;
+    }
+
+    private final class Worker extends Thread {
+        private Selector             mSelector;
+        private int                  mConnectionCount;
+        private int                  mSeenEpoch;
+        private LoadLatencyHistogram mLatencies = new LoadLatencyHistogram();
+        private long                 mErrors;
+        private long                 mConnects;
+
+        Worker(int connections) throws IOException {
+            mSelector = Selector.open();
+            mConnectionCount = connections;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < mConnectionCount; i++) {
+                    open();
+                }
+                while (mRunning) {
+                    mSelector.select(100);
+                    for (SelectionKey key : mSelector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.handle(key);
+                        } catch (IOException exception) {
+                            if (mRunning) {
+                                error();
+                                connection.close();
+                                open();
+                            }
+                        }
+                    }
+                    mSelector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException exception) {
+                if (mRunning) {
+                    exception.printStackTrace();
+                }
+            } finally {
+                for (SelectionKey key : mSelector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    mSelector.close();
+                } catch (IOException exception) {
+                    // Ignore
+                }
+            }
+        }
+
+        void open() {
+            checkEpoch();
+            mConnects++;
+            try {
+                new Connection(this);
+            } catch (IOException exception) {
+                mErrors++;
+            }
+        }
+
+        void checkEpoch() {
+            int epoch = mEpoch;
+            if (epoch != mSeenEpoch) {
+                mSeenEpoch = epoch;
+                mLatencies.reset();
+                mErrors = 0;
+                mConnects = 0;
+            }
+        }
+
+        void error() {
+            checkEpoch();
+            mErrors++;
+        }
+
+        void record(long nanos) {
+            checkEpoch();
+            mLatencies.record(nanos);
+        }
+    }
+
+    private final class Connection {
+        private Worker        mWorker;
+        private SocketChannel mChannel;
+        private SelectionKey  mKey;
+        private SSLEngine     mEngine;
+        private boolean       mHandshaking;
+        private boolean       mUpgrading;
+        private ByteBuffer    mNetIn;
+        private ByteBuffer    mAppIn;
+        private ByteBuffer    mOut;
+        private long          mOpenedAt;
+        private long[]        mSentAt;
+        private int           mHead;
+        private int           mOutstanding;
+        private long          mRemaining;
+        private boolean       mFinal;
+        private boolean       mControl;
+
+        Connection(Worker worker) throws IOException {
+            mWorker = worker;
+            mOpenedAt = System.nanoTime();
+            mSentAt = new long[mPipeline];
+            mRemaining = -1;
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+            mKey = mChannel.register(worker.mSelector, SelectionKey.OP_CONNECT, this);
+            mNetIn = ByteBuffer.allocate(16 * 1024);
+            mOut = ByteBuffer.allocate(Math.max(mRequest.length * mPipeline, 1024) + 1024);
+            if (mSSLContext != null) {
+                mEngine = mSSLContext.createSSLEngine(mAddress.getHostString(), mAddress.getPort());
+                mEngine.setUseClientMode(true);
+                mNetIn = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize());
+                mAppIn = ByteBuffer.allocate(mEngine.getSession().getApplicationBufferSize());
+            } else {
+                mAppIn = mNetIn;
+            }
+            if (mChannel.connect(mAddress)) {
+                connected();
+            }
+        }
+
+        void handle(SelectionKey key) throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isConnectable()) {
+                mChannel.finishConnect();
+                connected();
+                return;
+            }
+            if (key.isWritable()) {
+                flush();
+            }
+            if (key.isReadable()) {
+                read();
+            }
+        }
+
+        private void connected() throws IOException {
+            mKey.interestOps(SelectionKey.OP_READ);
+            if (mEngine != null) {
+                mHandshaking = true;
+                mEngine.beginHandshake();
+                if (!handshake()) {
+                    return;
+                }
+            }
+            ready();
+        }
+
+        private void ready() throws IOException {
+            if (mUpgrade != null) {
+                mUpgrading = true;
+                write(mUpgrade);
+                flush();
+            } else {
+                fillPipeline();
+            }
+        }
+
+        private void fillPipeline() throws IOException {
+            while (mOutstanding < mPipeline) {
+                mSentAt[(mHead + mOutstanding) % mPipeline] = mKeepAlive ? System.nanoTime() : mOpenedAt;
+                mOutstanding++;
+                write(mRequest);
+            }
+            flush();
+        }
+
+        private boolean handshake() throws IOException {
+            while (true) {
+                switch (mEngine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    mNetIn.flip();
+                    SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+                    mNetIn.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        flush();
+                        return false;
+                    }
+                    checkClosed(result);
+                    break;
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                default:
+                    mHandshaking = false;
+                    flush();
+                    return true;
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = mEngine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        private void checkClosed(SSLEngineResult result) throws IOException {
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException();
+            }
+        }
+
+        private void write(byte[] data) throws IOException {
+            if (mEngine == null) {
+                ensureOutput(data.length);
+                mOut.put(data);
+            } else {
+                wrap(ByteBuffer.wrap(data));
+            }
+        }
+
+        private void wrap(ByteBuffer data) throws SSLException, IOException {
+            do {
+                ensureOutput(mEngine.getSession().getPacketBufferSize());
+                checkClosed(mEngine.wrap(data, mOut));
+            } while (data.hasRemaining());
+        }
+
+        private void ensureOutput(int length) {
+            if (mOut.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(mOut.capacity() * 2, mOut.position() + length));
+                mOut.flip();
+                larger.put(mOut);
+                mOut = larger;
+            }
+        }
+
+        private void flush() throws IOException {
+            mOut.flip();
+            mChannel.write(mOut);
+            mOut.compact();
+            mKey.interestOps(mOut.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            if (!mNetIn.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(mNetIn.capacity() * 2);
+                mNetIn.flip();
+                larger.put(mNetIn);
+                if (mAppIn == mNetIn) {
+                    mAppIn = larger;
+                }
+                mNetIn = larger;
+            }
+            if (mChannel.read(mNetIn) < 0) {
+                throw new EOFException();
+            }
+            if (mEngine != null) {
+                if (mHandshaking) {
+                    if (!handshake()) {
+                        return;
+                    }
+                    ready();
+                }
+                unwrap();
+            }
+            mAppIn.flip();
+            try {
+                parse();
+            } finally {
+                if (mChannel.isOpen()) {
+                    mAppIn.compact();
+                }
+            }
+        }
+
+        private void unwrap() throws IOException {
+            mNetIn.flip();
+            try {
+                while (mNetIn.hasRemaining()) {
+                    SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        ByteBuffer larger = ByteBuffer.allocate(mAppIn.capacity() * 2);
+                        mAppIn.flip();
+                        larger.put(mAppIn);
+                        mAppIn = larger;
+                        continue;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        break;
+                    }
+                    checkClosed(result);
+                    switch (result.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runTasks();
+                        break;
+                    case NEED_WRAP:
+                        wrap(EMPTY);
+                        flush();
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            } finally {
+                mNetIn.compact();
+            }
+        }
+
+        private void parse() throws IOException {
+            while (mChannel.isOpen()) {
+                if (mRemaining < 0) {
+                    if (mUpgrading || mMode != Mode.WEBSOCKET) {
+                        if (!parseHeader()) {
+                            return;
+                        }
+                    } else if (!parseFrameHeader()) {
+                        return;
+                    }
+                }
+                int count = (int) Math.min(mRemaining, mAppIn.remaining());
+                mAppIn.position(mAppIn.position() + count);
+                mRemaining -= count;
+                if (mRemaining > 0) {
+                    return;
+                }
+                mRemaining = -1;
+                if (mUpgrading) {
+                    mUpgrading = false;
+                    fillPipeline();
+                } else if (mFinal && !mControl) {
+                    completed();
+                }
+            }
+        }
+
+        private boolean parseHeader() throws IOException {
+            int start = mAppIn.position();
+            int limit = mAppIn.limit();
+            int end   = -1;
+            for (int i = start; i <= limit - HEADER_END.length; i++) {
+                if (mAppIn.get(i) == '\r' && mAppIn.get(i + 1) == '\n' && mAppIn.get(i + 2) == '\r' && mAppIn.get(i + 3) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end == -1) {
+                return false;
+            }
+            // "HTTP/1.1 200"
+            int status = (mAppIn.get(start + 9) - '0') * 100 + (mAppIn.get(start + 10) - '0') * 10 + mAppIn.get(start + 11) - '0';
+            if (status != (mUpgrading ? 101 : 200)) {
+                throw new IOException("Unexpected status " + status);
+            }
+            long length = 0;
+            for (int i = start; i < end; i++) {
+                if (mAppIn.get(i) == '\n' && matches(i + 1)) {
+                    int j = i + 1 + CONTENT_LENGTH.length;
+                    while (mAppIn.get(j) == ' ') {
+                        j++;
+                    }
+                    while (mAppIn.get(j) >= '0' && mAppIn.get(j) <= '9') {
+                        length = length * 10 + mAppIn.get(j++) - '0';
+                    }
+                    break;
+                }
+            }
+            mAppIn.position(end + HEADER_END.length);
+            mRemaining = length;
+            mFinal = true;
+            mControl = false;
+            return true;
+        }
+
+        private boolean matches(int index) {
+            for (int i = 0; i < CONTENT_LENGTH.length; i++) {
+                if (Character.toLowerCase(mAppIn.get(index + i)) != CONTENT_LENGTH[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean parseFrameHeader() {
+            int available = mAppIn.remaining();
+            if (available < 2) {
+                return false;
+            }
+            int  position = mAppIn.position();
+            int  first    = mAppIn.get(position) & 0xFF;
+            int  second   = mAppIn.get(position + 1) & 0x7F;
+            int  header   = second == 126 ? 4 : second == 127 ? 10 : 2;
+            long length   = second;
+            if (available < header) {
+                return false;
+            }
+            if (second == 126) {
+                length = mAppIn.getShort(position + 2) & 0xFFFF;
+            } else if (second == 127) {
+                length = mAppIn.getLong(position + 2);
+            }
+            mAppIn.position(position + header);
+            mRemaining = length;
+            mFinal = (first & 0x80) != 0;
+            mControl = (first & 0x08) != 0;
+            return true;
+        }
+
+        private void completed() throws IOException {
+            mWorker.record(System.nanoTime() - mSentAt[mHead]);
+            mHead = (mHead + 1) % mPipeline;
+            mOutstanding--;
+            if (mKeepAlive) {
+                fillPipeline();
+            } else {
+                close();
+                mWorker.open();
+            }
+        }
+
+        void close() {
+            mKey.cancel();
+            try {
+                mChannel.close();
+            } catch (IOException exception) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.util.Arrays;
+
+/**
+ * A latency histogram laid out the way HdrHistogram lays out its counts: values below {@code 2 *
+ * SUB_BUCKET_COUNT} are counted exactly, and above that each power of two is split into {@link
+ * #SUB_BUCKET_COUNT} linear buckets, so every recorded value is kept to within 0.1% regardless of
+ * its magnitude. Recording is a shift and an array increment, so it can be done on the load
+ * generator's selector thread without disturbing the measurement. Not thread-safe; use one per
+ * thread and {@link #add(LoadLatencyHistogram)} them together afterwards.
+ */
+final class LoadLatencyHistogram {
+    private static final int    SUB_BUCKET_BITS  = 10;
+    private static final int    SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Enough buckets for values up to 2^41 nanoseconds, a little over 36 minutes. */
+    private static final int    BUCKET_COUNT     = 32;
+    private              long[] mCounts          = new long[(BUCKET_COUNT + 1) * SUB_BUCKET_COUNT];
+    private              long   mTotalCount;
+    private              long   mMax;
+
+    /** @param value The value to record. Negative values are recorded as zero. */
+    final void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = indexFor(value);
+        if (index >= mCounts.length) {
+            index = mCounts.length - 1;
+        }
+        mCounts[index]++;
+        mTotalCount++;
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    private static int indexFor(long value) {
+        if (value < SUB_BUCKET_COUNT << 1) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /** @return The largest value that would be counted in the bucket at the index. */
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT << 1) {
+            return index;
+        }
+        int  shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long base  = (long) ((index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT) << shift;
+        return base + (1L << shift) - 1;
+    }
+
+    /** @param other A histogram whose counts should be added to this one. */
+    final void add(LoadLatencyHistogram other) {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    /** Discards all recorded values. */
+    final void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mMax = 0;
+    }
+
+    /** @return The number of values recorded. */
+    final long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /** @return The largest value recorded. */
+    final long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value at or below which the given percentage of recorded values fall.
+     */
+    final long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long target = Math.max((long) Math.ceil(Math.min(percentile, 100) / 100 * mTotalCount), 1);
+        long seen   = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), mMax);
+            }
+        }
+        return mMax;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.server.http.HttpResponse;
+import com.trollworks.toolkit.io.server.http.HttpSessionFactory;
+import com.trollworks.toolkit.io.server.http.HttpStatusCode;
+import com.trollworks.toolkit.io.server.http.HttpsSessionFactory;
+import com.trollworks.toolkit.io.server.http.MimeTypes;
+import com.trollworks.toolkit.io.server.websocket.WebSocket;
+import com.trollworks.toolkit.io.server.websocket.WebSocketHandler;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Measures the throughput and tail latency of {@link NioServer} by starting it on the loopback
+ * interface and driving it with a {@link LoadGenerator} in the same JVM. The server is given an
+ * {@link HttpSessionFactory} with a static file, a handler that echoes request bodies and a
+ * {@link WebSocket} that echoes messages, so each of those paths can be exercised.<br>
+ * <br>
+ * Options are given as {@code name=value} arguments:
+ * <ul>
+ * <li>{@code mode}: {@code static}, {@code echo} or {@code websocket}. Defaults to {@code
+ * static}.</li>
+ * <li>{@code size}: the size of the file, request body or message. Defaults to 1024.</li>
+ * <li>{@code connections}: the number of client connections. Defaults to 64.</li>
+ * <li>{@code pipeline}: the requests kept outstanding per connection. Defaults to 1.</li>
+ * <li>{@code keepalive}: {@code false} to use a new connection per request. Defaults to {@code
+ * true}.</li>
+ * <li>{@code tls}: {@code true} to use TLS with a generated self-signed certificate. Defaults to
+ * {@code false}.</li>
+ * <li>{@code reactors}: the server's reactor count, as for {@link NioServer#NioServer(SSLContext,
+ * int)}. Defaults to 0.</li>
+ * <li>{@code executor}: {@code fixed}, {@code workstealing} or {@code virtual}, selecting the
+ * {@link SessionExecutor} the server processes requests with. Defaults to {@code fixed}.</li>
+ * <li>{@code threads}: the load generator's selector threads. Defaults to 2.</li>
+ * <li>{@code warmup} and {@code duration}: the seconds to run before and while measuring.
+ * Default to 5 and 10.</li>
+ * </ul>
+ * The report gives requests per second, latency percentiles, and the bytes allocated per request by
+ * the server's threads. Allocation is totalled across the live threads other than the generator's
+ * and this one, so threads that exit during the measurement are not counted.<br>
+ * <br>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec@load -Dload.args="mode=echo pipeline=8"}
+ */
+public class NioServerLoadBenchmark {
+    private static final String STATIC_URI    = "/static.bin";
+    private static final String ECHO_URI      = "/echo";
+    private static final String WEBSOCKET_URI = "/ws";
+    private static final String PASSWORD      = "benchmark";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        // Maven passes all of the options as a single argument
+        for (String arg : String.join(" ", args).trim().split("\\s+")) {
+            int eq = arg.indexOf('=');
+            if (eq == -1) {
+                throw new IllegalArgumentException("Expected name=value, but got: " + arg);
+            }
+            options.put(arg.substring(0, eq).toLowerCase(), arg.substring(eq + 1));
+        }
+        LoadGenerator.Mode mode        = LoadGenerator.Mode.valueOf(options.getOrDefault("mode", "static").toUpperCase());
+        int                size        = Integer.parseInt(options.getOrDefault("size", "1024"));
+        int                connections = Integer.parseInt(options.getOrDefault("connections", "64"));
+        int                pipeline    = Integer.parseInt(options.getOrDefault("pipeline", "1"));
+        boolean            keepAlive   = Boolean.parseBoolean(options.getOrDefault("keepalive", "true"));
+        boolean            tls         = Boolean.parseBoolean(options.getOrDefault("tls", "false"));
+        int                reactors    = Integer.parseInt(options.getOrDefault("reactors", "0"));
+        String             executor    = options.getOrDefault("executor", "fixed");
+        int                threads     = Integer.parseInt(options.getOrDefault("threads", "2"));
+        int                warmup      = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int                duration    = Integer.parseInt(options.getOrDefault("duration", "10"));
+
+        Path root = Files.createTempDirectory("nio-benchmark");
+        root.toFile().deleteOnExit();
+        Path   file    = root.resolve(STATIC_URI.substring(1));
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        Files.write(file, content);
+        file.toFile().deleteOnExit();
+
+        NioServer          server  = new NioServer(tls ? createServerContext(root) : null, reactors);
+        HttpSessionFactory factory = new HttpSessionFactory(root);
+        factory.getCompression().setEnabled(false);
+        switch (executor) {
+        case "fixed":
+            break;
+        case "workstealing":
+            factory.setExecutor(SessionExecutor.workStealing(Runtime.getRuntime().availableProcessors()));
+            break;
+        case "virtual":
+            factory.setExecutor(SessionExecutor.virtualThreads());
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown executor: " + executor);
+        }
+        factory.registerHttpHandler(ECHO_URI, http -> new HttpResponse(HttpStatusCode.OK, MimeTypes.BINARY, http.getBody().readAllBytes()));
+        factory.registerWebSocketFactory(WEBSOCKET_URI, http -> new WebSocket(new EchoHandler()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        server.listen(InetAddress.getLoopbackAddress(), port, tls ? new HttpsSessionFactory(factory) : factory);
+        server.start();
+
+        String uri = mode == LoadGenerator.Mode.STATIC ? STATIC_URI : mode == LoadGenerator.Mode.ECHO ? ECHO_URI : WEBSOCKET_URI;
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), mode, uri, size, connections, pipeline, keepAlive, tls ? createClientContext() : null);
+        System.out.printf("mode=%s size=%d connections=%d pipeline=%d keepalive=%b tls=%b reactors=%d executor=%s threads=%d%n", mode.toString().toLowerCase(), Integer.valueOf(size), Integer.valueOf(connections), Integer.valueOf(pipeline), Boolean.valueOf(keepAlive), Boolean.valueOf(tls), Integer.valueOf(server.getReactorCount()), executor, Integer.valueOf(threads));
+        generator.start(threads);
+        TimeUnit.SECONDS.sleep(warmup);
+
+        long[] excluded       = generator.getThreadIds();
+        long   startAllocated = serverAllocatedBytes(excluded);
+        long   start          = System.nanoTime();
+        generator.reset();
+        TimeUnit.SECONDS.sleep(duration);
+        long elapsed   = System.nanoTime() - start;
+        long allocated = serverAllocatedBytes(excluded) - startAllocated;
+        generator.stop();
+        server.shutdown();
+        LoadLatencyHistogram latencies = generator.getLatencies();
+        long                 errors    = generator.getErrorCount();
+        long                 connects  = generator.getConnectCount();
+
+        long requests = latencies.getTotalCount();
+        System.out.printf("requests:      %d in %.1fs (%d errors, %d new connections)%n", Long.valueOf(requests), Double.valueOf(elapsed / 1e9), Long.valueOf(errors), Long.valueOf(connects));
+        System.out.printf("requests/sec:  %.0f%n", Double.valueOf(requests * 1e9 / elapsed));
+        System.out.printf("latency p50:   %s%n", formatNanos(latencies.getValueAtPercentile(50)));
+        System.out.printf("latency p99:   %s%n", formatNanos(latencies.getValueAtPercentile(99)));
+        System.out.printf("latency p99.9: %s%n", formatNanos(latencies.getValueAtPercentile(99.9)));
+        System.out.printf("latency max:   %s%n", formatNanos(latencies.getMax()));
+        System.out.printf("alloc/request: %s%n", requests == 0 ? "n/a" : allocated / requests + " bytes");
+    }
+
+    private static String formatNanos(long nanos) {
+        return nanos < 1_000_000 ? String.format("%.1fus", Double.valueOf(nanos / 1e3)) : String.format("%.2fms", Double.valueOf(nanos / 1e6));
+    }
+
+    /**
+     * @param excluded The IDs of threads to leave out, in addition to the current one.
+     * @return The total bytes allocated so far by the other live threads.
+     */
+    private static long serverAllocatedBytes(long[] excluded) throws JMException {
+        // Invoked through the MBean server, as the module doesn't read jdk.management
+        long[] ids   = ManagementFactory.getThreadMXBean().getAllThreadIds();
+        long[] sizes = (long[]) ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME), "getThreadAllocatedBytes", new Object[]{ids}, new String[]{long[].class.getName()});
+        long   total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (sizes[i] > 0 && ids[i] != Thread.currentThread().getId() && !contains(excluded, ids[i])) {
+                total += sizes[i];
+            }
+        }
+        return total;
+    }
+
+    private static boolean contains(long[] ids, long id) {
+        for (long one : ids) {
+            if (one == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Generates a throwaway self-signed certificate with keytool, since the JDK has no API for it. */
+    private static SSLContext createServerContext(Path dir) throws Exception {
+        Path    keyStore = dir.resolve("benchmark.jks");
+        Process process  = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(), "-genkeypair", "-keystore", keyStore.toString(), "-storetype", "JKS", "-storepass", PASSWORD, "-keypass", PASSWORD, "-alias", "benchmark", "-keyalg", "EC", "-dname", "CN=localhost", "-validity", "1").redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (process.waitFor() != 0) {
+            throw new IOException("Unable to generate a keystore");
+        }
+        keyStore.toFile().deleteOnExit();
+        return SSLSupport.createContext(keyStore.toUri().toURL(), PASSWORD);
+    }
+
+    /** @return A client {@link SSLContext} that trusts any certificate. */
+    private static SSLContext createClientContext() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                // Trust everything
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                // Trust everything
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+
+    private static class EchoHandler implements WebSocketHandler {
+        @Override
+        public void webSocketConnected(WebSocket webSocket) {
+            // Unused
+        }
+
+        @Override
+        public void webSocketTextData(WebSocket webSocket, String data) {
+            webSocket.send(data);
+        }
+
+        @Override
+        public void webSocketBinaryData(WebSocket webSocket, byte[] data) {
+            webSocket.send(data);
+        }
+
+        @Override
+        public void webSocketClosed(WebSocket webSocket) {
+            // Unused
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures requests/sec for parsing a typical browser request with {@link HttpRequestParser},
+ * against the byte-at-a-time, reader-and-regex approach {@link Http} used previously.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HttpRequestParserBenchmark {
+    private static final String            REQUEST         = "GET /api/items/42?sort=name&limit=50 HTTP/1.1\r\n" + //
+            "Host: localhost:8080\r\n" + //
+            "Connection: keep-alive\r\n" + //
+            "Cache-Control: max-age=0\r\n" + //
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/84.0.4147.105 Safari/537.36\r\n" + //
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n" + //
+            "Accept-Encoding: gzip, deflate, br\r\n" + //
+            "Accept-Language: en-US,en;q=0.9\r\n" + //
+            "Cookie: session=0123456789abcdef; theme=dark\r\n" + //
+            "If-None-Match: \"5f2b-1a2b3c\"\r\n" + //
+            "\r\n";
+    private static final Pattern           REQUEST_PATTERN = Pattern.compile("^(\\S+)\\s+(\\S+)\\s+HTTP/(\\d+)\\.(\\d+)$");
+    private              ByteBuffer        mBuffer;
+    private              HttpRequestParser mParser;
+
+    @Setup
+    public void setup() {
+        mBuffer = ByteBuffer.wrap(REQUEST.getBytes(StandardCharsets.US_ASCII));
+        mParser = new HttpRequestParser();
+    }
+
+    @Benchmark
+    public void incremental(Blackhole blackhole) throws IOException {
+        mBuffer.rewind();
+        mParser.reset();
+        if (mParser.parse(mBuffer) != HttpRequestParser.HEADER_COMPLETE || mParser.parse(mBuffer) != HttpRequestParser.REQUEST_COMPLETE) {
+            throw new IOException("incomplete");
+        }
+        blackhole.consume(mParser.getMethod());
+        blackhole.consume(mParser.getRawUri());
+        blackhole.consume(mParser.hasHeader("upgrade"));
+        blackhole.consume(mParser.getFirstHeader("connection"));
+    }
+
+    @Benchmark
+    public void legacy(Blackhole blackhole) throws IOException {
+        mBuffer.rewind();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(HttpRequestParser.MAXIMUM_HEADER_SIZE);
+        int                   state  = 0;
+        while (mBuffer.hasRemaining() && state != 4) {
+            byte b = mBuffer.get();
+            buffer.write(b & 0xFF);
+            switch (state) {
+            case 0:
+                state = b == '\r' ? 1 : 0;
+                break;
+            case 1:
+                state = b == '\n' ? 2 : b == '\r' ? 1 : 0;
+                break;
+            case 2:
+                state = b == '\r' ? 3 : 0;
+                break;
+            default:
+                state = b == '\n' ? 4 : b == '\r' ? 1 : 0;
+                break;
+            }
+        }
+        Map<String, List<String>> headers = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buffer.toByteArray()), StandardCharsets.UTF_8))) {
+            Matcher matcher = REQUEST_PATTERN.matcher(in.readLine());
+            if (!matcher.find()) {
+                throw new IOException("bad request");
+            }
+            blackhole.consume(HttpMethod.lookup(matcher.group(1)));
+            blackhole.consume(matcher.group(2));
+            blackhole.consume(Integer.parseInt(matcher.group(3)));
+            blackhole.consume(Integer.parseInt(matcher.group(4)));
+            String line = in.readLine();
+            while (line != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    break;
+                }
+                int index = line.indexOf(':');
+                if (index != -1) {
+                    headers.computeIfAbsent(line.substring(0, index).trim().toLowerCase(), k -> new ArrayList<>()).add(line.substring(index + 1).trim());
+                }
+                line = in.readLine();
+            }
+        }
+        blackhole.consume(headers.containsKey("upgrade"));
+        blackhole.consume(headers.get("connection"));
+    }
+}
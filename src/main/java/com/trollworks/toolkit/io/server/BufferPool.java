@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of {@link ByteBuffer}s, handed out as {@link PooledBuffer}s.<br>
+ * <br>
+ * Requests are rounded up to one of a fixed set of size classes, with heap and direct buffers
+ * kept apart. Each thread keeps a small cache of released buffers per class, falling back to a
+ * shared, bounded store per class when its cache is empty or full. Requests larger than the
+ * biggest class are satisfied with unpooled buffers.<br>
+ * <br>
+ * A sample of allocations is tracked so that buffers which become unreachable without being
+ * released are reported as leaks. Set the level to {@link LeakDetection#PARANOID} to track every
+ * allocation and record where each leaked buffer was allocated.
+ */
+public class BufferPool {
+    /** How much effort is spent looking for buffers that were never released. */
+    public enum LeakDetection {
+        /** No tracking. */
+        DISABLED,
+        /** One in every {@link BufferPool#LEAK_SAMPLE_INTERVAL} allocations is tracked. */
+        SAMPLED,
+        /** Every allocation is tracked, along with where it was made. */
+        PARANOID
+    }
+
+    /** When sampling for leaks, the number of allocations per tracked allocation. */
+    public static final  int                                   LEAK_SAMPLE_INTERVAL = 128;
+    private static final int[]                                 SIZE_CLASSES         = { 512, 2 * 1024, 8 * 1024, 32 * 1024, 128 * 1024 };
+    private static final int                                   THREAD_CACHE_SIZE    = 16;
+    private static final Cleaner                               CLEANER              = Cleaner.create();
+    private              ConcurrentLinkedQueue<ByteBuffer>[]   mShared;
+    private              AtomicInteger[]                       mSharedCounts;
+    private              int                                   mMaximumSharedBytes;
+    private              ThreadLocal<ArrayDeque<ByteBuffer>[]> mThreadCaches;
+    private volatile     LeakDetection                         mLeakDetection       = LeakDetection.SAMPLED;
+    private              AtomicInteger                         mSampleCounter       = new AtomicInteger();
+    private              LongAdder                             mAllocations         = new LongAdder();
+    private              LongAdder                             mReleases            = new LongAdder();
+    private              LongAdder                             mHits                = new LongAdder();
+    private              LongAdder                             mMisses              = new LongAdder();
+    private              LongAdder                             mUnpooled            = new LongAdder();
+    private              LongAdder                             mLeaks               = new LongAdder();
+
+    /** Creates a new {@link BufferPool} that retains up to 4MB per size class and type. */
+    public BufferPool() {
+        this(4 * 1024 * 1024);
+    }
+
+    /**
+     * @param maximumSharedBytes The maximum number of bytes of released buffers to retain in the
+     *                           shared store, per size class, for each of heap and direct
+     *                           buffers. Thread caches are in addition to this.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public BufferPool(int maximumSharedBytes) {
+        mMaximumSharedBytes = maximumSharedBytes;
+        mShared = new ConcurrentLinkedQueue[SIZE_CLASSES.length * 2];
+        mSharedCounts = new AtomicInteger[mShared.length];
+        for (int i = 0; i < mShared.length; i++) {
+            mShared[i] = new ConcurrentLinkedQueue<>();
+            mSharedCounts[i] = new AtomicInteger();
+        }
+        mThreadCaches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES.length * 2];
+            for (int i = 0; i < caches.length; i++) {
+                caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+            }
+            return caches;
+        });
+    }
+
+    /** @return The current {@link LeakDetection} level. */
+    public final LeakDetection getLeakDetection() {
+        return mLeakDetection;
+    }
+
+    /** @param level The {@link LeakDetection} level to use for future allocations. */
+    public final void setLeakDetection(LeakDetection level) {
+        mLeakDetection = level;
+    }
+
+    /**
+     * @param capacity The number of bytes required.
+     * @return A heap buffer with its position set to zero and its limit set to the requested
+     *         capacity.
+     */
+    public final PooledBuffer allocate(int capacity) {
+        return allocate(capacity, false);
+    }
+
+    /**
+     * @param capacity The number of bytes required.
+     * @return A direct buffer with its position set to zero and its limit set to the requested
+     *         capacity.
+     */
+    public final PooledBuffer allocateDirect(int capacity) {
+        return allocate(capacity, true);
+    }
+
+    private PooledBuffer allocate(int capacity, boolean direct) {
+        mAllocations.increment();
+        int        sizeClass = sizeClass(capacity, direct);
+        ByteBuffer buffer    = null;
+        if (sizeClass == -1) {
+            mUnpooled.increment();
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        } else {
+            buffer = mThreadCaches.get()[sizeClass].pollLast();
+            if (buffer == null) {
+                buffer = mShared[sizeClass].poll();
+                if (buffer != null) {
+                    mSharedCounts[sizeClass].decrementAndGet();
+                }
+            }
+            if (buffer != null) {
+                mHits.increment();
+                buffer.clear();
+            } else {
+                mMisses.increment();
+                int size = SIZE_CLASSES[sizeClass % SIZE_CLASSES.length];
+                buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            }
+            buffer.limit(capacity);
+        }
+        Tracker       tracker = null;
+        LeakDetection level   = mLeakDetection;
+        if (level == LeakDetection.PARANOID || level == LeakDetection.SAMPLED && mSampleCounter.incrementAndGet() % LEAK_SAMPLE_INTERVAL == 0) {
+            tracker = new Tracker(this, capacity, level == LeakDetection.PARANOID ? new Throwable("Allocation site") : null);
+        }
+        PooledBuffer pooled = new PooledBuffer(this, buffer, sizeClass, tracker);
+        if (tracker != null) {
+            tracker.mCleanable = CLEANER.register(pooled, tracker);
+        }
+        return pooled;
+    }
+
+    private static int sizeClass(int capacity, boolean direct) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return direct ? i + SIZE_CLASSES.length : i;
+            }
+        }
+        return -1;
+    }
+
+    final void recycle(ByteBuffer buffer, int sizeClass, Tracker tracker) {
+        mReleases.increment();
+        if (tracker != null) {
+            tracker.mReleased = true;
+            tracker.mCleanable.clean();
+        }
+        if (sizeClass != -1) {
+            ArrayDeque<ByteBuffer> cache = mThreadCaches.get()[sizeClass];
+            if (cache.size() < THREAD_CACHE_SIZE) {
+                cache.addLast(buffer);
+            } else if (mSharedCounts[sizeClass].get() * SIZE_CLASSES[sizeClass % SIZE_CLASSES.length] < mMaximumSharedBytes) {
+                mSharedCounts[sizeClass].incrementAndGet();
+                mShared[sizeClass].offer(buffer);
+            }
+        }
+    }
+
+    /** @return The number of allocations that have been made. */
+    public final long getAllocationCount() {
+        return mAllocations.sum();
+    }
+
+    /** @return The number of buffers that have been released. */
+    public final long getReleaseCount() {
+        return mReleases.sum();
+    }
+
+    /** @return The number of buffers that have been allocated but not yet released. */
+    public final long getOutstandingCount() {
+        return mAllocations.sum() - mReleases.sum() - mLeaks.sum();
+    }
+
+    /** @return The number of allocations satisfied by reusing a previously released buffer. */
+    public final long getHitCount() {
+        return mHits.sum();
+    }
+
+    /** @return The number of pooled allocations that required a new buffer to be created. */
+    public final long getMissCount() {
+        return mMisses.sum();
+    }
+
+    /** @return The number of allocations too large to be pooled. */
+    public final long getUnpooledCount() {
+        return mUnpooled.sum();
+    }
+
+    /** @return The number of tracked buffers that became unreachable without being released. */
+    public final long getLeakCount() {
+        return mLeaks.sum();
+    }
+
+    /** @return The number of bytes held by the shared store, excluding thread caches. */
+    public final long getSharedBytes() {
+        long total = 0;
+        for (int i = 0; i < mSharedCounts.length; i++) {
+            total += (long) mSharedCounts[i].get() * SIZE_CLASSES[i % SIZE_CLASSES.length];
+        }
+        return total;
+    }
+
+    static final class Tracker implements Runnable {
+        private          BufferPool        mPool;
+        private          int               mCapacity;
+        private          Throwable         mAllocationSite;
+        private volatile boolean           mReleased;
+        private          Cleaner.Cleanable mCleanable;
+
+        Tracker(BufferPool pool, int capacity, Throwable allocationSite) {
+            mPool = pool;
+            mCapacity = capacity;
+            mAllocationSite = allocationSite;
+        }
+
+        @Override
+        public void run() {
+            if (!mReleased) {
+                mPool.mLeaks.increment();
+                String msg = "Buffer of " + mCapacity + " bytes was never released";
+                if (mAllocationSite != null) {
+                    Log.warn(msg, mAllocationSite);
+                } else {
+                    Log.warn(msg + "; use LeakDetection.PARANOID to find where it was allocated");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A {@link SessionExecutor} with a fixed number of threads pulling from one shared queue. */
+final class FixedPoolSessionExecutor implements SessionExecutor {
+    private LinkedBlockingQueue<Runnable> mQueue   = new LinkedBlockingQueue<>();
+    private List<NioWorker>               mWorkers = new ArrayList<>();
+
+    FixedPoolSessionExecutor(int threads) {
+        for (int i = 0; i < threads; i++) {
+            NioWorker worker = new NioWorker(mQueue);
+            worker.start();
+            mWorkers.add(worker);
+        }
+    }
+
+    @Override
+    public void execute(Session session, Runnable task) {
+        mQueue.add(task);
+    }
+
+    @Override
+    public void shutdown() {
+        // Allow the work queue to drain
+        long maxWait = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+        while (!mQueue.isEmpty() && System.currentTimeMillis() < maxWait) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException exception) {
+                break;
+            }
+        }
+        // Shutdown the workers
+        for (NioWorker worker : mWorkers) {
+            worker.interrupt();
+            try {
+                worker.join();
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+    }
+
+    private static class NioWorker extends Thread {
+        private static final AtomicInteger                 NEXT_ID = new AtomicInteger();
+        private              LinkedBlockingQueue<Runnable> mQueue;
+
+        NioWorker(LinkedBlockingQueue<Runnable> queue) {
+            mQueue = queue;
+            setName("NioWorker " + NEXT_ID.incrementAndGet());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    mQueue.take().run();
+                } catch (InterruptedException iex) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics on the TLS handshakes performed by a {@link NioServer}. Handshake time is measured
+ * from the moment a secure {@link Session} is created until its handshake completes, and so
+ * includes the round trips to the client as well as the server's own processing.
+ */
+public class HandshakeMetrics {
+    /** The upper bounds, in milliseconds, of the buckets of the handshake time histogram. */
+    public static final long[]      HISTOGRAM_BOUNDS = { 1, 5, 10, 25, 50, 100, 250, 500, 1000 };
+    private             LongAdder   mCompleted       = new LongAdder();
+    private             LongAdder   mResumed         = new LongAdder();
+    private             LongAdder   mFailed          = new LongAdder();
+    private             LongAdder   mTotalMicros     = new LongAdder();
+    private             AtomicLong  mMaxMicros       = new AtomicLong();
+    private             LongAdder   mDelegatedTasks  = new LongAdder();
+    private             LongAdder[] mHistogram;
+
+    HandshakeMetrics() {
+        mHistogram = new LongAdder[HISTOGRAM_BOUNDS.length + 1];
+        for (int i = 0; i < mHistogram.length; i++) {
+            mHistogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos   The time the handshake took.
+     * @param resumed Whether a previous TLS session was resumed.
+     */
+    final void recordCompleted(long nanos, boolean resumed) {
+        long micros = nanos / 1000;
+        mCompleted.increment();
+        if (resumed) {
+            mResumed.increment();
+        }
+        mTotalMicros.add(micros);
+        mMaxMicros.accumulateAndGet(micros, Math::max);
+        int  bucket = 0;
+        long millis = micros / 1000;
+        while (bucket < HISTOGRAM_BOUNDS.length && millis >= HISTOGRAM_BOUNDS[bucket]) {
+            bucket++;
+        }
+        mHistogram[bucket].increment();
+    }
+
+    /** Records a {@link Session} that closed before its handshake completed. */
+    final void recordFailed() {
+        mFailed.increment();
+    }
+
+    /** @param count The number of delegated tasks that were run. */
+    final void recordDelegatedTasks(int count) {
+        mDelegatedTasks.add(count);
+    }
+
+    /** @return The number of handshakes that completed. */
+    public final long getCompletedCount() {
+        return mCompleted.sum();
+    }
+
+    /** @return The number of completed handshakes that resumed a previous TLS session. */
+    public final long getResumedCount() {
+        return mResumed.sum();
+    }
+
+    /** @return The fraction of completed handshakes that resumed a previous TLS session. */
+    public final double getResumptionRate() {
+        long completed = mCompleted.sum();
+        return completed == 0 ? 0 : (double) mResumed.sum() / completed;
+    }
+
+    /** @return The number of secure {@link Session}s that closed before their handshake completed. */
+    public final long getFailedCount() {
+        return mFailed.sum();
+    }
+
+    /** @return The mean time taken by completed handshakes, in microseconds. */
+    public final long getAverageMicros() {
+        long completed = mCompleted.sum();
+        return completed == 0 ? 0 : mTotalMicros.sum() / completed;
+    }
+
+    /** @return The longest time taken by a completed handshake, in microseconds. */
+    public final long getMaximumMicros() {
+        return mMaxMicros.get();
+    }
+
+    /**
+     * @return The number of completed handshakes in each bucket of the histogram. Entry {@code i}
+     *         counts those that took less than {@code HISTOGRAM_BOUNDS[i]} milliseconds but no
+     *         less than the previous bound, and the final entry counts the remainder.
+     */
+    public final long[] getHistogram() {
+        long[] counts = new long[mHistogram.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mHistogram[i].sum();
+        }
+        return counts;
+    }
+
+    /** @return The number of {@code SSLEngine} delegated tasks that have been run. */
+    public final long getDelegatedTaskCount() {
+        return mDelegatedTasks.sum();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with fixed buckets. Each bucket is a {@link LongAdder}, so recording
+ * never takes a lock and threads recording at the same time rarely contend.
+ */
+public final class LatencyHistogram {
+    /** The inclusive upper bounds, in microseconds, of the buckets. */
+    public static final long[]      BOUNDS_MICROS = { 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000 };
+    private             LongAdder[] mBuckets;
+    private             LongAdder   mTotalMicros  = new LongAdder();
+    private             AtomicLong  mMaxMicros    = new AtomicLong();
+
+    /** Creates a new, empty {@link LatencyHistogram}. */
+    public LatencyHistogram() {
+        mBuckets = new LongAdder[BOUNDS_MICROS.length + 1];
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new LongAdder();
+        }
+    }
+
+    /** @param nanos The duration to record. */
+    public final void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        int  bucket = 0;
+        while (bucket < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        mBuckets[bucket].increment();
+        mTotalMicros.add(micros);
+        if (micros > mMaxMicros.get()) {
+            mMaxMicros.accumulateAndGet(micros, Math::max);
+        }
+    }
+
+    /**
+     * @return A copy of the current state. Durations being recorded while the copy is made may be
+     *         only partly reflected in it.
+     */
+    public final Snapshot snapshot() {
+        long[] counts = new long[mBuckets.length];
+        long   count  = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mBuckets[i].sum();
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mTotalMicros.sum(), mMaxMicros.get());
+    }
+
+    /** An immutable copy of the state of a {@link LatencyHistogram}. */
+    public static final class Snapshot {
+        private long[] mCounts;
+        private long   mCount;
+        private long   mTotalMicros;
+        private long   mMaxMicros;
+
+        Snapshot(long[] counts, long count, long totalMicros, long maxMicros) {
+            mCounts = counts;
+            mCount = count;
+            mTotalMicros = totalMicros;
+            mMaxMicros = maxMicros;
+        }
+
+        /** @return The number of durations recorded. */
+        public final long getCount() {
+            return mCount;
+        }
+
+        /** @return The sum of the durations recorded, in microseconds. */
+        public final long getTotalMicros() {
+            return mTotalMicros;
+        }
+
+        /** @return The mean duration, in microseconds. */
+        public final long getAverageMicros() {
+            return mCount == 0 ? 0 : mTotalMicros / mCount;
+        }
+
+        /** @return The longest duration recorded, in microseconds. */
+        public final long getMaximumMicros() {
+            return mMaxMicros;
+        }
+
+        /**
+         * @return The number of durations in each bucket. Entry {@code i} counts those no more
+         *         than {@code BOUNDS_MICROS[i]} microseconds but more than the previous bound, and
+         *         the final entry counts the remainder.
+         */
+        public final long[] getHistogram() {
+            return mCounts.clone();
+        }
+
+        /**
+         * @param percentile The percentile to estimate, from {@code 0} to {@code 100}.
+         * @return The upper bound of the bucket the percentile falls into, in microseconds, or the
+         *         longest duration recorded if it falls into the final bucket.
+         */
+        public final long getPercentileMicros(double percentile) {
+            long target = (long) Math.ceil(mCount * Math.min(Math.max(percentile, 0), 100) / 100);
+            long seen   = 0;
+            for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+                seen += mCounts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(BOUNDS_MICROS[i], mMaxMicros);
+                }
+            }
+            return mMaxMicros;
+        }
+    }
+}
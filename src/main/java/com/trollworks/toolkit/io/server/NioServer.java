@@ -11,61 +11,95 @@
 
 package com.trollworks.toolkit.io.server;
 
-import com.trollworks.toolkit.io.Log;
-
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URL;
-import java.nio.ByteBuffer;
-import java.nio.channels.CancelledKeyException;
-import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLContext;
 
-/** The core non-blocking i/o server. */
+/**
+ * The core non-blocking i/o server. By default a single selector loop handles all accepts, reads
+ * and writes. Alternatively, the server can be configured to spread its connections across
+ * multiple selector loops, each of which has its own queues, with the server's own loop doing
+ * nothing but accepting new connections and handing them off to them in a round-robin fashion.
+ */
 public class NioServer extends Thread {
-    private Selector                                   mSelector;
-    private List<ChangeRequest>                        mPendingChanges   = new LinkedList<>();
-    private Map<SocketChannel, LinkedList<ByteBuffer>> mPendingWriteData = new HashMap<>();
-    private ByteBuffer                                 mReadBuffer       = ByteBuffer.allocate(8192);
-    private LinkedBlockingQueue<Session>               mQueue            = new LinkedBlockingQueue<>();
-    private List<NioWorker>                            mWorkers          = new ArrayList<>();
-    private Set<Session>                               mSessions         = new HashSet<>();
-    private SSLContext                                 mSSLContext;
+    private static final int                  HANDSHAKE_QUEUE_SIZE = 1024;
+    private              Reactor              mAcceptor;
+    private              Reactor[]            mReactors;
+    private              List<Thread>         mReactorThreads      = new ArrayList<>();
+    private              int                  mNextReactor;
+    private              SessionExecutor      mDefaultExecutor;
+    private              Set<SessionExecutor> mExecutors           = new HashSet<>();
+    private              Set<Session>         mSessions            = new HashSet<>();
+    private              SSLContext           mSSLContext;
+    private              BufferPool           mBufferPool          = new BufferPool();
+    private              TimingWheel          mTimingWheel         = new TimingWheel(100, 1024);
+    private              SessionTimeouts      mDefaultTimeouts     = new SessionTimeouts();
+    private              HandshakeMetrics     mHandshakeMetrics    = new HandshakeMetrics();
+    private              ServerMetrics        mMetrics;
+    private              ThreadPoolExecutor   mHandshakeExecutor;
 
     /**
+     * Creates a server that uses a single selector loop for all of its work.
+     *
      * @param sslContext The {@link SSLContext} to use. Typically created by calling {@link
      *                   SSLSupport#createContext(URL, String)}.
      */
     public NioServer(SSLContext sslContext) throws IOException {
+        this(sslContext, 0);
+    }
+
+    /**
+     * @param sslContext   The {@link SSLContext} to use. Typically created by calling {@link
+     *                     SSLSupport#createContext(URL, String)}.
+     * @param reactorCount The number of selector loops to spread connections across. Pass in
+     *                     {@code 0} to have a single loop handle accepts, reads and writes, or a
+     *                     negative value to use one loop per available processor.
+     */
+    public NioServer(SSLContext sslContext, int reactorCount) throws IOException {
         setName(getClass().getSimpleName());
         setDaemon(true);
         mSSLContext = sslContext;
-        mSelector = SelectorProvider.provider().openSelector();
-        int count = Runtime.getRuntime().availableProcessors() + 1;
-        for (int i = 0; i < count; i++) {
-            NioWorker worker = new NioWorker(mQueue);
-            worker.start();
-            mWorkers.add(worker);
+        mMetrics = new ServerMetrics(this);
+        mAcceptor = new Reactor(this);
+        if (reactorCount < 0) {
+            reactorCount = Runtime.getRuntime().availableProcessors();
         }
-        TimeoutMonitor timeoutMonitor = new TimeoutMonitor(TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES));
-        timeoutMonitor.start();
+        if (reactorCount == 0) {
+            mReactors = new Reactor[]{mAcceptor};
+        } else {
+            mReactors = new Reactor[reactorCount];
+            for (int i = 0; i < reactorCount; i++) {
+                mReactors[i] = new Reactor(this);
+                Thread thread = new Thread(mReactors[i], "NioReactor " + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+                mReactorThreads.add(thread);
+            }
+        }
+        mDefaultExecutor = SessionExecutor.fixedPool(Runtime.getRuntime().availableProcessors() + 1);
+        mExecutors.add(mDefaultExecutor);
+        int           threads = Math.max(Runtime.getRuntime().availableProcessors() / 2, 1);
+        AtomicInteger counter = new AtomicInteger();
+        mHandshakeExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(HANDSHAKE_QUEUE_SIZE), task -> {
+            Thread thread = new Thread(task, "TLS Handshake " + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        mTimingWheel.start();
     }
 
     /** @return The {@link SSLContext} to use with this server. */
@@ -73,6 +107,105 @@ public class NioServer extends Thread {
         return mSSLContext;
     }
 
+    /** @return The {@link BufferPool} that buffers for this server's {@link Session}s come from. */
+    public final BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * @return The {@link SessionTimeouts} used by {@link Session}s whose {@link SessionFactory}
+     *         and {@link Personality} do not supply their own.
+     */
+    public final SessionTimeouts getDefaultTimeouts() {
+        return mDefaultTimeouts;
+    }
+
+    /**
+     * @return The {@link SessionExecutor} used by {@link Session}s whose {@link SessionFactory}
+     *         does not supply its own: a fixed pool with one more thread than there are
+     *         processors.
+     */
+    final SessionExecutor getDefaultExecutor() {
+        return mDefaultExecutor;
+    }
+
+    /** @return Statistics on the TLS handshakes performed by this server. */
+    public final HandshakeMetrics getHandshakeMetrics() {
+        return mHandshakeMetrics;
+    }
+
+    /** @return Statistics on the connections and requests handled by this server. */
+    public final ServerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return The {@link Executor} that runs the CPU-heavy tasks an {@code SSLEngine} delegates
+     *         during a handshake, so that they don't hold up the workers processing other
+     *         {@link Session}s. It has one thread per two processors, started on first use, and
+     *         a bounded queue. Once the queue is full, tasks are run by the submitting thread
+     *         instead.
+     */
+    final Executor getHandshakeExecutor() {
+        return mHandshakeExecutor;
+    }
+
+    /** @return The {@link TimingWheel} used to enforce {@link Session} timeouts. */
+    final TimingWheel getTimingWheel() {
+        return mTimingWheel;
+    }
+
+    /** @return The number of selector loops performing reads and writes. */
+    public final int getReactorCount() {
+        return mReactors.length;
+    }
+
+    /**
+     * @return The number of buffers and file regions that have been queued for sending across all
+     *         {@link Session}s.
+     */
+    public final long getSendCount() {
+        long count = 0;
+        for (Reactor reactor : mReactors) {
+            count += reactor.getSendCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of sends that were small enough to be copied into a buffer that was
+     *         already waiting to be written, rather than needing their own.
+     */
+    public final long getCoalescedSendCount() {
+        long count = 0;
+        for (Reactor reactor : mReactors) {
+            count += reactor.getCoalescedSendCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of write system calls made across all {@link Session}s. Compare with
+     *         {@link #getSendCount()}, or with the number of responses sent, to gauge how well
+     *         writes are being batched.
+     */
+    public final long getWriteCallCount() {
+        long count = 0;
+        for (Reactor reactor : mReactors) {
+            count += reactor.getWriteCallCount();
+        }
+        return count;
+    }
+
+    /** @return The number of bytes written across all {@link Session}s. */
+    public final long getBytesWritten() {
+        long count = 0;
+        for (Reactor reactor : mReactors) {
+            count += reactor.getBytesWritten();
+        }
+        return count;
+    }
+
     /** @return The current {@link Session}s. */
     public final List<Session> getSessions() {
         synchronized (mSessions) {
@@ -82,17 +215,22 @@ public class NioServer extends Thread {
 
     /** Called when a session is closed. */
     final void sessionClosed(Session session) {
+        session.cancelTimeout();
         synchronized (mSessions) {
             mSessions.remove(session);
         }
+        mMetrics.recordClosed();
     }
 
     /** Call to shutdown the server. */
     public final void shutdown() {
-        try {
-            mSelector.close();
-        } catch (IOException exception) {
-            Log.error(exception);
+        mTimingWheel.interrupt();
+        mHandshakeExecutor.shutdownNow();
+        mAcceptor.close();
+        for (Reactor reactor : mReactors) {
+            if (reactor != mAcceptor) {
+                reactor.close();
+            }
         }
         try {
             join();
@@ -111,91 +249,28 @@ public class NioServer extends Thread {
         @SuppressWarnings("resource") ServerSocketChannel channel = ServerSocketChannel.open();
         channel.configureBlocking(false);
         channel.socket().bind(new InetSocketAddress(hostAddress, port));
-        channel.register(mSelector, SelectionKey.OP_ACCEPT, sessionFactory);
+        channel.register(mAcceptor.getSelector(), SelectionKey.OP_ACCEPT, sessionFactory);
     }
 
     @Override
     public final void run() {
-        while (true) {
+        mAcceptor.run();
+        // Allow the queued work to finish and shutdown the workers
+        List<SessionExecutor> executors;
+        synchronized (mExecutors) {
+            executors = new ArrayList<>(mExecutors);
+        }
+        for (SessionExecutor executor : executors) {
+            executor.shutdown();
+        }
+        // Wait for the reactors to exit
+        for (Thread thread : mReactorThreads) {
             try {
-                // Adjust what we're waiting on
-                Selector selector = mSelector;
-                synchronized (mPendingChanges) {
-                    for (ChangeRequest request : mPendingChanges) {
-                        try {
-                            request.mSocket.keyFor(selector).interestOps(request.mOperation);
-                        } catch (Exception exception) {
-                            // Ignore
-                        }
-                    }
-                    mPendingChanges.clear();
-                }
-
-                // Wait for some work
-                mSelector.select();
-
-                // Handle the work
-                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
-                while (keys.hasNext()) {
-                    SelectionKey key = keys.next();
-                    keys.remove();
-                    if (key.isValid()) {
-                        if (key.isAcceptable()) {
-                            accept(key);
-                        } else if (key.isReadable()) {
-                            read(key);
-                        } else if (key.isWritable()) {
-                            write(key);
-                        }
-                    }
-                }
-            } catch (CancelledKeyException cke) {
-                // Ignore
-            } catch (ClosedSelectorException cse) {
-                // Allow the work queue to drain
-                while (!mQueue.isEmpty()) {
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException exception) {
-                        break;
-                    }
-                }
-                // Shutdown the workers
-                for (NioWorker worker : mWorkers) {
-                    worker.interrupt();
-                    try {
-                        worker.join();
-                    } catch (InterruptedException ie) {
-                        break;
-                    }
-                }
+                thread.join();
+            } catch (InterruptedException ie) {
                 break;
-            } catch (Throwable throwable) {
-                Log.error(throwable);
-            }
-        }
-    }
-
-    /**
-     * Puts the data into the send queue.
-     *
-     * @param socket The socket to send data through.
-     * @param data   The data to send. A copy of the data is not made, so do not modify it once
-     *               passed to this method.
-     */
-    final void send(SocketChannel socket, ByteBuffer data) {
-        synchronized (mPendingWriteData) {
-            LinkedList<ByteBuffer> list = mPendingWriteData.get(socket);
-            if (list == null) {
-                list = new LinkedList<>();
-                mPendingWriteData.put(socket, list);
             }
-            list.add(data);
-        }
-        synchronized (mPendingChanges) {
-            mPendingChanges.add(new ChangeRequest(socket, SelectionKey.OP_WRITE));
         }
-        mSelector.wakeup();
     }
 
     /**
@@ -203,138 +278,46 @@ public class NioServer extends Thread {
      * @return {@code true} if there is data waiting to be sent on the specified socket.
      */
     public final boolean hasPendingWrite(SocketChannel socket) {
-        synchronized (mPendingWriteData) {
-            List<ByteBuffer> list = mPendingWriteData.get(socket);
-            return list != null && !list.isEmpty();
-        }
-    }
-
-    private void accept(SelectionKey key) throws IOException {
-        @SuppressWarnings("resource") ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-        @SuppressWarnings("resource") SocketChannel socketChannel = serverSocketChannel.accept();
-        socketChannel.configureBlocking(false);
-        Session session = ((SessionFactory) key.attachment()).createSession(this, socketChannel);
-        synchronized (mSessions) {
-            mSessions.add(session);
-        }
-        socketChannel.register(mSelector, SelectionKey.OP_READ, session);
-    }
-
-    private void read(SelectionKey key) {
-        @SuppressWarnings("resource") SocketChannel socketChannel = (SocketChannel) key.channel();
-        Session session = (Session) key.attachment();
-        mReadBuffer.clear();
-        int amount;
-        try {
-            amount = socketChannel.read(mReadBuffer);
-            if (amount > 0) {
-                session.requestHandleInput(mReadBuffer);
-            } else if (amount == -1) {
-                session.requestClose(false);
+        for (Reactor reactor : mReactors) {
+            SelectionKey key = socket.keyFor(reactor.getSelector());
+            if (key != null) {
+                return ((Session) key.attachment()).hasPendingWrite();
             }
-        } catch (Throwable throwable) {
-            session.requestClose(true);
         }
+        return false;
     }
 
     /**
-     * Adds the specified {@link Session} to the queue to be worked on.
+     * Called by the accepting {@link Reactor} when a new connection is ready.
      *
-     * @param session The {@link Session} to schedule.
+     * @param key The {@link SelectionKey} of the listening socket.
      */
-    final void scheduleSession(Session session) {
-        mQueue.add(session);
-    }
-
-    @SuppressWarnings("resource")
-    private void write(SelectionKey key) {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        synchronized (mPendingWriteData) {
-            LinkedList<ByteBuffer> list = mPendingWriteData.get(socketChannel);
-            if (list == null || list.isEmpty()) {
-                key.interestOps(SelectionKey.OP_READ);
-            } else {
-                ByteBuffer buffer = list.getFirst();
-                try {
-                    socketChannel.write(buffer);
-                } catch (IOException ioe) {
-                    mPendingWriteData.remove(socketChannel);
-                    key.interestOps(SelectionKey.OP_READ);
-                    return;
-                }
-                if (buffer.remaining() == 0) {
-                    list.removeFirst();
-                    if (list.isEmpty()) {
-                        key.interestOps(SelectionKey.OP_READ);
-                    }
-                }
-            }
-        }
-    }
-
-    private static class ChangeRequest {
-        final SocketChannel mSocket;
-        final int           mOperation;
-
-        ChangeRequest(SocketChannel socket, int operation) {
-            mSocket = socket;
-            mOperation = operation;
+    final void accept(SelectionKey key) throws IOException {
+        @SuppressWarnings("resource") ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+        @SuppressWarnings("resource") SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) {
+            return;
         }
-    }
-
-    private static class NioWorker extends Thread {
-        private static final AtomicInteger                NEXT_ID = new AtomicInteger();
-        private              LinkedBlockingQueue<Session> mQueue;
-
-        NioWorker(LinkedBlockingQueue<Session> queue) {
-            mQueue = queue;
-            setName("NioWorker " + NEXT_ID.incrementAndGet());
-            setDaemon(true);
+        socketChannel.configureBlocking(false);
+        SessionFactory  factory  = (SessionFactory) key.attachment();
+        Session         session  = factory.createSession(this, socketChannel);
+        SessionTimeouts timeouts = factory.getTimeouts();
+        if (timeouts != null) {
+            session.setTimeouts(timeouts);
         }
-
-        @Override
-        public void run() {
-            while (!isInterrupted()) {
-                Session session = null;
-                try {
-                    session = mQueue.take();
-                    session.processNextRequest();
-                } catch (InterruptedException iex) {
-                    break;
-                } catch (Throwable throwable) {
-                    Log.error(session, throwable);
-                    if (session != null) {
-                        session.requestClose(true);
-                    }
-                }
+        SessionExecutor executor = factory.getExecutor();
+        if (executor != null) {
+            session.setExecutor(executor);
+            synchronized (mExecutors) {
+                mExecutors.add(executor);
             }
         }
-    }
-
-    private class TimeoutMonitor extends Thread {
-        private long mTimeout;
-
-        TimeoutMonitor(long timeoutMilliseconds) {
-            setName(getClass().getSimpleName());
-            setDaemon(true);
-            mTimeout = timeoutMilliseconds;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    Thread.sleep(Math.max(mTimeout / 4, 1000));
-                    long timeout = System.currentTimeMillis() - mTimeout;
-                    for (Session session : getSessions()) {
-                        if (session.getLastActivity() <= timeout) {
-                            session.requestClose(false);
-                        }
-                    }
-                } catch (InterruptedException exception) {
-                    break;
-                }
-            }
+        synchronized (mSessions) {
+            mSessions.add(session);
         }
+        mMetrics.recordAccepted();
+        Reactor reactor = mReactors[mNextReactor];
+        mNextReactor = (mNextReactor + 1) % mReactors.length;
+        reactor.register(session);
     }
 }
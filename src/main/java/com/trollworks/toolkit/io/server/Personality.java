@@ -13,10 +13,13 @@ package com.trollworks.toolkit.io.server;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /** A {@link Personality} provides the actual data handling for a {@link Session}. */
 public abstract class Personality {
-    private Session mSession;
+    private Session         mSession;
+    private SessionTimeouts mTimeouts;
+    private boolean         mStream;
 
     /** @return The {@link Session} this {@link Personality} is associated with. */
     public final Session getSession() {
@@ -28,6 +31,57 @@ public abstract class Personality {
         mSession = session;
     }
 
+    /**
+     * Associates this {@link Personality} with a {@link Session} without attaching it to the
+     * {@link Session}. For a {@link Personality} that handles one of several streams multiplexed
+     * over the connection by another, which must take care not to send through the {@link
+     * Session} directly.
+     *
+     * @param session The {@link Session} to work with.
+     */
+    protected final void setStreamSession(Session session) {
+        mSession = session;
+        mStream = true;
+    }
+
+    /**
+     * @return The {@link SessionTimeouts} to apply while this {@link Personality} is attached, or
+     *         {@code null} to use those of the {@link Session}.
+     */
+    public SessionTimeouts getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * @param timeouts The {@link SessionTimeouts} to apply while this {@link Personality} is
+     *                 attached. Pass in {@code null} to use those of the {@link Session}.
+     */
+    public final void setTimeouts(SessionTimeouts timeouts) {
+        mTimeouts = timeouts;
+        if (mSession != null) {
+            mSession.updateTimeout();
+        }
+    }
+
+    /**
+     * Call once the first bytes of a request have arrived, to start limiting how long the rest of
+     * its header may take to arrive. Calling it again before {@link #headerCompleted()} has no
+     * effect. Does nothing for a stream multiplexed over the connection, as the connection's
+     * {@link Personality} receives the header.
+     */
+    protected final void headerStarted() {
+        if (!mStream) {
+            mSession.headerStarted();
+        }
+    }
+
+    /** Call once a request's header has been fully received. */
+    protected final void headerCompleted() {
+        if (!mStream) {
+            mSession.headerCompleted();
+        }
+    }
+
     /** @return {@code true} if the associated {@link Session} is secure. */
     public final boolean isSecure() {
         return getSession().isSecure();
@@ -51,6 +105,67 @@ public abstract class Personality {
         mSession.send(buffer);
     }
 
+    /**
+     * @param buffer The data to send. The caller's reference is passed on, and the buffer is
+     *               released back to its pool once the data has been written.
+     */
+    public final void send(PooledBuffer buffer) {
+        mSession.send(buffer);
+    }
+
+    /**
+     * @return The {@link BufferPool} to obtain buffers from. Data placed in buffers from this pool
+     *         can be sent with {@link #send(PooledBuffer)} without being copied again.
+     */
+    public final BufferPool getBufferPool() {
+        return mSession.getServer().getBufferPool();
+    }
+
+    /**
+     * Sends a region of a file. The data is transferred directly from the file to the socket as
+     * the socket is able to accept it, rather than being read into memory up front.
+     *
+     * @param file     The file to send data from. It will be closed once the region has been sent
+     *                 or the {@link Session} is closed.
+     * @param position The starting position within the file.
+     * @param count    The number of bytes to send.
+     */
+    public final void send(FileChannel file, long position, long count) {
+        mSession.send(file, position, count);
+    }
+
+    /**
+     * Blocks the calling thread while too much data is waiting to be sent, until the remote end
+     * has caught up. Code that generates a large amount of output should call this between sends,
+     * so that a slow client cannot cause the queued data to grow without bound. Must only be
+     * called from within {@link #processInput(ByteBuffer)} or another non-i/o thread.
+     *
+     * @throws IOException if the connection can no longer be written to.
+     */
+    public final void waitForWritable() throws IOException {
+        mSession.waitForWritable();
+    }
+
+    /**
+     * @return {@code true} if the amount of data waiting to be sent is below the {@link Session}'s
+     *         outbound high watermark.
+     */
+    public final boolean isWritable() {
+        return mSession.isWritable();
+    }
+
+    /**
+     * Called when the data waiting to be sent exceeds the {@link Session}'s outbound high
+     * watermark, and again once it has drained to the low watermark. While not writable, the
+     * {@link Session} stops reading from its socket. Called from the same threads, and in the same
+     * order, as {@link #processInput(ByteBuffer)}. Does nothing by default.
+     *
+     * @param writable Whether the {@link Session} is now writable.
+     */
+    public void writabilityChanged(boolean writable) throws IOException {
+        // Does nothing by default
+    }
+
     /**
      * Requests that the associated {@link Session} be closed.
      *
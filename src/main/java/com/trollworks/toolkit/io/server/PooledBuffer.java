@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted {@link ByteBuffer} obtained from a {@link BufferPool}. It starts with a
+ * count of one. Each {@link #retain()} must be balanced by a {@link #release()}, and once the count
+ * drops to zero, the buffer is returned to its pool and must no longer be touched.<br>
+ * <br>
+ * Passing a {@link PooledBuffer} to one of the send methods transfers the caller's reference to
+ * the write queue, which releases it once the data has been written. To send the same data to
+ * several connections, pass each one its own {@link #retainedView()}.
+ */
+public final class PooledBuffer {
+    private BufferPool         mPool;
+    private ByteBuffer         mBuffer;
+    private int                mSizeClass;
+    private AtomicInteger      mReferences = new AtomicInteger(1);
+    private BufferPool.Tracker mTracker;
+    private PooledBuffer       mParent;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass, BufferPool.Tracker tracker) {
+        mPool = pool;
+        mBuffer = buffer;
+        mSizeClass = sizeClass;
+        mTracker = tracker;
+    }
+
+    private PooledBuffer(PooledBuffer parent, ByteBuffer view) {
+        mParent = parent;
+        mBuffer = view;
+    }
+
+    /** @return The underlying buffer. */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /** @return The number of outstanding references. */
+    public int getReferenceCount() {
+        return mReferences.get();
+    }
+
+    /**
+     * Adds a reference.
+     *
+     * @return This buffer.
+     */
+    public PooledBuffer retain() {
+        if (mReferences.getAndIncrement() <= 0) {
+            mReferences.getAndDecrement();
+            throw new IllegalStateException("Buffer already released");
+        }
+        return this;
+    }
+
+    /**
+     * Adds a reference, which is carried by a read-only view of the buffer's remaining data. The
+     * view has its own position and limit, so it can be consumed independently of this buffer and
+     * of any other views, and releasing it releases the reference it carries.
+     *
+     * @return The new view.
+     */
+    public PooledBuffer retainedView() {
+        retain();
+        return new PooledBuffer(this, mBuffer.slice().asReadOnlyBuffer());
+    }
+
+    /**
+     * Removes a reference, returning the buffer to its pool if it was the last one.
+     *
+     * @return {@code true} if the buffer was returned to its pool.
+     */
+    public boolean release() {
+        int remaining = mReferences.decrementAndGet();
+        if (remaining > 0) {
+            return false;
+        }
+        if (remaining < 0) {
+            throw new IllegalStateException("Buffer released too many times");
+        }
+        ByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        if (mParent != null) {
+            return mParent.release();
+        }
+        mPool.recycle(buffer, mSizeClass, mTracker);
+        return true;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A selector loop that performs the reads and writes for the {@link Session}s assigned to it. Each
+ * {@link Reactor} owns its own interest change queue and drains the {@link WriteQueue}s of its own
+ * {@link Session}s, so {@link Session}s on different {@link Reactor}s never contend for the same
+ * lock.
+ */
+class Reactor implements Runnable {
+    private NioServer           mServer;
+    private Selector            mSelector;
+    private List<ChangeRequest> mPendingChanges       = new ArrayList<>();
+    private List<Session>       mPendingRegistrations = new ArrayList<>();
+    private ByteBuffer          mReadBuffer           = ByteBuffer.allocateDirect(8192);
+    private LongAdder           mSends                = new LongAdder();
+    private LongAdder           mCoalescedSends       = new LongAdder();
+    private LongAdder           mWriteCalls           = new LongAdder();
+    private LongAdder           mBytesWritten         = new LongAdder();
+
+    /** @param server The {@link NioServer} this {@link Reactor} works for. */
+    Reactor(NioServer server) throws IOException {
+        mServer = server;
+        mSelector = SelectorProvider.provider().openSelector();
+    }
+
+    /** @return The {@link Selector} this {@link Reactor} waits on. */
+    final Selector getSelector() {
+        return mSelector;
+    }
+
+    /** Closes the {@link Selector}, causing the loop to exit. */
+    final void close() {
+        try {
+            mSelector.close();
+        } catch (IOException exception) {
+            Log.error(exception);
+        }
+    }
+
+    /**
+     * Arranges for the {@link Session}'s channel to be registered for reading with this {@link
+     * Reactor}. May be called from any thread.
+     *
+     * @param session The {@link Session} to register.
+     */
+    final void register(Session session) {
+        session.setReactor(this);
+        synchronized (mPendingChanges) {
+            mPendingRegistrations.add(session);
+        }
+        mSelector.wakeup();
+    }
+
+    @Override
+    public final void run() {
+        while (true) {
+            try {
+                // Adjust what we're waiting on
+                processPendingChanges();
+
+                // Wait for some work
+                mSelector.select();
+
+                // Handle the work
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        if (key.isAcceptable()) {
+                            mServer.accept(key);
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    }
+                }
+            } catch (CancelledKeyException cke) {
+                // Ignore
+            } catch (ClosedSelectorException cse) {
+                break;
+            } catch (Throwable throwable) {
+                Log.error(throwable);
+            }
+        }
+    }
+
+    private void processPendingChanges() {
+        synchronized (mPendingChanges) {
+            for (Session session : mPendingRegistrations) {
+                try {
+                    session.getChannel().register(mSelector, SelectionKey.OP_READ, session);
+                } catch (IOException exception) {
+                    session.requestClose(true);
+                }
+            }
+            mPendingRegistrations.clear();
+            for (ChangeRequest request : mPendingChanges) {
+                try {
+                    SelectionKey key = request.mSession.getChannel().keyFor(mSelector);
+                    if (key != null) {
+                        int ops = key.interestOps();
+                        if (request.mWrite) {
+                            ops |= SelectionKey.OP_WRITE;
+                        }
+                        key.interestOps(readInterest(request.mSession, ops));
+                    }
+                } catch (Exception exception) {
+                    // Ignore
+                }
+            }
+            mPendingChanges.clear();
+        }
+    }
+
+    /**
+     * Puts the data into the send queue.
+     *
+     * @param session The {@link Session} to send data through.
+     * @param data    The data to send. A copy of the data is not made, so do not modify it once
+     *                passed to this method.
+     */
+    final void send(Session session, ByteBuffer data) {
+        mSends.increment();
+        session.getWriteQueue().add(data);
+        requestWrite(session);
+    }
+
+    /**
+     * Puts the data into the send queue.
+     *
+     * @param session The {@link Session} to send data through.
+     * @param data    The data to send. The caller's reference is passed to the queue, which
+     *                releases it once the data has been written.
+     */
+    final void send(Session session, PooledBuffer data) {
+        mSends.increment();
+        session.getWriteQueue().add(data);
+        requestWrite(session);
+    }
+
+    /**
+     * Puts a region of a file into the send queue. The data is transferred directly from the file
+     * to the socket as the socket is able to accept it.
+     *
+     * @param session  The {@link Session} to send data through.
+     * @param file     The file to send data from. It will be closed once the region has been sent
+     *                 or the {@link Session} is closed.
+     * @param position The starting position within the file.
+     * @param count    The number of bytes to send.
+     */
+    final void send(Session session, FileChannel file, long position, long count) {
+        mSends.increment();
+        session.getWriteQueue().add(file, position, count);
+        requestWrite(session);
+    }
+
+    /**
+     * Arranges for the {@link Session}'s {@link WriteQueue} to be drained once its socket is
+     * writable.
+     *
+     * @param session The {@link Session} to request a write for.
+     */
+    final void requestWrite(Session session) {
+        synchronized (mPendingChanges) {
+            mPendingChanges.add(new ChangeRequest(session, true));
+        }
+        mSelector.wakeup();
+    }
+
+    /**
+     * Arranges for the {@link Session}'s interest in reading to be brought in line with whether
+     * its reads are currently suspended.
+     *
+     * @param session The {@link Session} to update.
+     */
+    final void updateInterest(Session session) {
+        synchronized (mPendingChanges) {
+            mPendingChanges.add(new ChangeRequest(session, false));
+        }
+        mSelector.wakeup();
+    }
+
+    private static int readInterest(Session session, int ops) {
+        return session.isReadSuspended() ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ;
+    }
+
+    /**
+     * Records a write to a socket.
+     *
+     * @param amount The number of bytes the write accepted.
+     */
+    final void recordWrite(long amount) {
+        mWriteCalls.increment();
+        if (amount > 0) {
+            mBytesWritten.add(amount);
+        }
+    }
+
+    /** Records a send that was merged into a buffer already waiting to be written. */
+    final void recordCoalesced() {
+        mCoalescedSends.increment();
+    }
+
+    /** @return The number of buffers and file regions that have been queued for sending. */
+    final long getSendCount() {
+        return mSends.sum();
+    }
+
+    /** @return The number of sends that were merged into a buffer already waiting to be written. */
+    final long getCoalescedSendCount() {
+        return mCoalescedSends.sum();
+    }
+
+    /** @return The number of write system calls that have been made. */
+    final long getWriteCallCount() {
+        return mWriteCalls.sum();
+    }
+
+    /** @return The number of bytes that have been written. */
+    final long getBytesWritten() {
+        return mBytesWritten.sum();
+    }
+
+    private void read(SelectionKey key) {
+        @SuppressWarnings("resource") SocketChannel socketChannel = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        mReadBuffer.clear();
+        int amount;
+        try {
+            amount = socketChannel.read(mReadBuffer);
+            if (amount > 0) {
+                mServer.getMetrics().recordBytesRead(amount);
+                session.requestHandleInput(mReadBuffer);
+                if (session.isReadSuspended()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            } else if (amount == -1) {
+                session.requestClose(false);
+            }
+        } catch (Throwable throwable) {
+            session.requestClose(true);
+        }
+    }
+
+    @SuppressWarnings("resource")
+    private void write(SelectionKey key) {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        Session       session       = (Session) key.attachment();
+        WriteQueue    queue         = session.getWriteQueue();
+        try {
+            if (queue.flush(socketChannel)) {
+                key.interestOps(readInterest(session, 0));
+                session.writesDrained();
+            }
+        } catch (IOException ioe) {
+            queue.abort();
+            key.interestOps(readInterest(session, 0));
+            session.writesDrained();
+        }
+    }
+
+    private static class ChangeRequest {
+        final Session mSession;
+        final boolean mWrite;
+
+        ChangeRequest(Session session, boolean write) {
+            mSession = session;
+            mWrite = write;
+        }
+    }
+}
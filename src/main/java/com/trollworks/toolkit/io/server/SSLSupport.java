@@ -23,22 +23,44 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 
-/** Provides simple SSL processing. */
+/**
+ * Provides simple SSL processing.<br>
+ * <br>
+ * The tasks an {@link SSLEngine} delegates during a handshake, which are where most of its CPU
+ * time goes, are handed to the {@link NioServer}'s handshake executor. The handshake picks up
+ * again once they have finished, so workers are free to process other {@link Session}s in the
+ * meantime.
+ */
 public class SSLSupport {
-    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
-    private              Session    mSession;
-    private              SSLEngine  mEngine;
-    private              SSLSession mSSLSession;
-    private              ByteBuffer mUnderflowData;
-    private              ByteBuffer mAppData;
-    private              ByteBuffer mInboundData;
-    private              ByteBuffer mOutboundData;
+    /** The default maximum number of TLS sessions retained for resumption. */
+    public static final  int              DEFAULT_SESSION_CACHE_SIZE = 10000;
+    /** The default time, in seconds, that a TLS session may be resumed for. */
+    public static final  int              DEFAULT_SESSION_TIMEOUT    = 60 * 60;
+    private static final ByteBuffer       EMPTY_BUFFER               = ByteBuffer.allocate(0);
+    private              Session          mSession;
+    private              BufferPool       mPool;
+    private              SSLEngine        mEngine;
+    private              SSLSession       mSSLSession;
+    private              PooledBuffer     mUnderflowData;
+    private              PooledBuffer     mAppData;
+    private              ByteBuffer       mInboundData;
+    private              PooledBuffer     mMergedInboundData;
+    private              PooledBuffer     mOutboundData;
+    private              HandshakeMetrics mMetrics;
+    private              long             mHandshakeStarted;
+    private              long             mHandshakeStartedMillis;
+    private volatile     boolean          mHandshakeDone;
+    private volatile     boolean          mTasksPending;
+    private              boolean          mReleased;
 
     /**
      * @param keyStore The location to load a valid SSL keystore from.
      * @param password The password required to unlock the keystore.
-     * @return A {@link SSLContext} configured for use with the specified keystore.
+     * @return A {@link SSLContext} configured for use with the specified keystore, with a session
+     *         cache of {@link #DEFAULT_SESSION_CACHE_SIZE} entries that expire after {@link
+     *         #DEFAULT_SESSION_TIMEOUT} seconds.
      */
     public static final SSLContext createContext(URL keyStore, String password) throws GeneralSecurityException, IOException {
         try (InputStream keyStoreIn = keyStore.openStream()) {
@@ -49,42 +71,113 @@ public class SSLSupport {
             keyMgrFactory.init(keystore, passwordArray);
             SSLContext context = SSLContext.getInstance("TLS");
             context.init(keyMgrFactory.getKeyManagers(), null, null);
+            configureSessionCache(context, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
             return context;
         }
     }
 
+    /**
+     * Configures the server-side cache of TLS sessions, which allows returning clients to skip the
+     * expensive part of the handshake.
+     *
+     * @param context        The {@link SSLContext} to configure.
+     * @param size           The maximum number of sessions to retain. Pass in {@code 0} for no
+     *                       limit.
+     * @param timeoutSeconds The time a session may be resumed for. Pass in {@code 0} for no limit.
+     */
+    public static final void configureSessionCache(SSLContext context, int size, int timeoutSeconds) {
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(size);
+        sessions.setSessionTimeout(timeoutSeconds);
+    }
+
+    /**
+     * Controls whether stateless session tickets are issued, allowing clients to resume sessions
+     * without the server keeping them in its cache. This is a JVM-wide setting that only has an
+     * effect if made before the first TLS connection is established.
+     *
+     * @param enabled Whether to issue session tickets.
+     */
+    public static final void setSessionTicketsEnabled(boolean enabled) {
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", Boolean.toString(enabled));
+    }
+
     /**
      * @param session    The {@link Session} to use when sending data.
      * @param sslContext The {@link SSLContext} to use.
      */
     public SSLSupport(Session session, SSLContext sslContext) throws SSLException {
         mSession = session;
+        mPool = session.getServer().getBufferPool();
+        mMetrics = session.getServer().getHandshakeMetrics();
+        mHandshakeStarted = System.nanoTime();
+        mHandshakeStartedMillis = System.currentTimeMillis();
         mEngine = sslContext.createSSLEngine();
         mEngine.setUseClientMode(false);
         mEngine.setNeedClientAuth(false);
         mSSLSession = mEngine.getSession();
-        int applicationBufferSize = mSSLSession.getApplicationBufferSize();
-        int packetBufferSize      = mSSLSession.getPacketBufferSize();
-        mAppData = ByteBuffer.allocate(applicationBufferSize);
-        mOutboundData = ByteBuffer.allocate(packetBufferSize);
+        mAppData = mPool.allocate(mSSLSession.getApplicationBufferSize());
         mEngine.beginHandshake();
     }
 
     private void runSSLTasks() {
+        int      count = 0;
         Runnable task;
         while ((task = mEngine.getDelegatedTask()) != null) {
             task.run();
+            count++;
+        }
+        mMetrics.recordDelegatedTasks(count);
+    }
+
+    /**
+     * Hands the delegated tasks to the handshake executor. Once they have run, an empty input
+     * request is queued for the {@link Session} so that the handshake resumes on a worker.
+     */
+    private void delegateSSLTasks() {
+        mTasksPending = true;
+        mSession.getServer().getHandshakeExecutor().execute(() -> {
+            try {
+                runSSLTasks();
+            } finally {
+                mTasksPending = false;
+                mSession.requestHandleInput(EMPTY_BUFFER.duplicate());
+            }
+        });
+    }
+
+    private void checkFinished(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && !mHandshakeDone) {
+            // Checked again under the lock, as release() may be racing to count it as failed
+            synchronized (mSession.getWriteQueue()) {
+                if (mHandshakeDone) {
+                    return;
+                }
+                mHandshakeDone = true;
+                // A resumed session was created by an earlier handshake
+                mMetrics.recordCompleted(System.nanoTime() - mHandshakeStarted, mEngine.getSession().getCreationTime() < mHandshakeStartedMillis);
+                if (mOutboundData != null) {
+                    // Only needed again if the peer starts another handshake
+                    mOutboundData.release();
+                    mOutboundData = null;
+                }
+            }
         }
     }
 
     private boolean canProceed() throws SSLException {
         while (true) {
+            if (mTasksPending) {
+                return false;
+            }
             switch (mEngine.getHandshakeStatus()) {
             case NEED_TASK:
-                runSSLTasks();
-                break;
+                delegateSSLTasks();
+                return false;
             case NEED_UNWRAP:
-                switch (mEngine.unwrap(mInboundData, mAppData).getStatus()) {
+                SSLEngineResult unwrapped = mEngine.unwrap(mInboundData, mAppData.getBuffer());
+                checkFinished(unwrapped);
+                switch (unwrapped.getStatus()) {
                 case BUFFER_OVERFLOW:
                     resizeAppDataBuffer();
                     break;
@@ -97,16 +190,27 @@ public class SSLSupport {
                 }
                 break;
             case NEED_WRAP:
-                switch (mEngine.wrap(EMPTY_BUFFER, mOutboundData).getStatus()) {
-                case BUFFER_UNDERFLOW:
-                    // Should not be possible
-                    throw new SSLException("Buffer underflow during handshake wrap");
-                case CLOSED:
-                    throw new SSLException("Connection closed (wrap)");
-                default:
-                    break;
+                // Records must reach the write queue in the order they are produced
+                synchronized (mSession.getWriteQueue()) {
+                    if (mReleased) {
+                        throw new SSLException("Connection closed");
+                    }
+                    if (mOutboundData == null) {
+                        mOutboundData = mPool.allocate(mSSLSession.getPacketBufferSize());
+                    }
+                    SSLEngineResult wrapped = mEngine.wrap(EMPTY_BUFFER, mOutboundData.getBuffer());
+                    switch (wrapped.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        // Should not be possible
+                        throw new SSLException("Buffer underflow during handshake wrap");
+                    case CLOSED:
+                        throw new SSLException("Connection closed (wrap)");
+                    default:
+                        break;
+                    }
+                    sendOutboundData();
+                    checkFinished(wrapped);
                 }
-                sendOutboundData();
                 break;
             default:
                 return true;
@@ -115,17 +219,24 @@ public class SSLSupport {
     }
 
     private void resizeAppDataBuffer() {
-        ByteBuffer resized = ByteBuffer.allocate(mAppData.capacity() + mSSLSession.getApplicationBufferSize());
-        mAppData.flip();
-        resized.put(mAppData);
+        ByteBuffer   current = mAppData.getBuffer();
+        PooledBuffer resized = mPool.allocate(current.capacity() + mSSLSession.getApplicationBufferSize());
+        current.flip();
+        resized.getBuffer().put(current);
+        mAppData.release();
         mAppData = resized;
     }
 
     private void preserveRemainingInboundData() {
         if (mInboundData.hasRemaining()) {
-            mUnderflowData = ByteBuffer.allocate(mInboundData.remaining());
-            mUnderflowData.put(mInboundData);
-            mUnderflowData.flip();
+            mUnderflowData = mPool.allocate(mInboundData.remaining());
+            mUnderflowData.getBuffer().put(mInboundData);
+            mUnderflowData.getBuffer().flip();
+        }
+        mInboundData = null;
+        if (mMergedInboundData != null) {
+            mMergedInboundData.release();
+            mMergedInboundData = null;
         }
     }
 
@@ -135,12 +246,14 @@ public class SSLSupport {
      *         method, so callers will need to copy the data elsewhere if they wish to preserve it.
      */
     public ByteBuffer processInput(ByteBuffer buffer) throws SSLException {
-        mAppData.clear();
+        ByteBuffer appData = mAppData.getBuffer();
+        appData.clear();
         mInboundData = buffer;
         insertUnderflowData();
         loop:
-        while (mInboundData.hasRemaining() && canProceed()) {
-            SSLEngineResult result = mEngine.unwrap(mInboundData, mAppData);
+        while (canProceed() && mInboundData.hasRemaining()) {
+            SSLEngineResult result = mEngine.unwrap(mInboundData, mAppData.getBuffer());
+            checkFinished(result);
             switch (result.getStatus()) {
             case BUFFER_OVERFLOW:
                 resizeAppDataBuffer();
@@ -153,70 +266,126 @@ public class SSLSupport {
             }
         }
         preserveRemainingInboundData();
-        mAppData.flip();
-        return mAppData;
+        if (mSession.hasPendingWrite()) {
+            // Data queued while the handshake was in progress may now be sent
+            mSession.getReactor().requestWrite(mSession);
+        }
+        appData = mAppData.getBuffer();
+        appData.flip();
+        return appData;
     }
 
     private void insertUnderflowData() {
         if (mUnderflowData != null) {
-            ByteBuffer newBuffer = ByteBuffer.allocate(mUnderflowData.remaining() + mInboundData.remaining());
-            newBuffer.put(mUnderflowData);
-            newBuffer.put(mInboundData);
-            newBuffer.flip();
-            mInboundData = newBuffer;
+            ByteBuffer underflow = mUnderflowData.getBuffer();
+            mMergedInboundData = mPool.allocate(underflow.remaining() + mInboundData.remaining());
+            ByteBuffer merged = mMergedInboundData.getBuffer();
+            merged.put(underflow);
+            merged.put(mInboundData);
+            merged.flip();
+            mInboundData = merged;
+            mUnderflowData.release();
             mUnderflowData = null;
         }
     }
 
     /**
-     * Sends the specified data to the underlying {@link Session} output after first encrypting it.
+     * Sends the specified data to the underlying {@link Session} output. The data is encrypted as
+     * the connection is able to accept it.
      *
      * @param buffer The data to send.
      */
-    public synchronized void processOutput(ByteBuffer buffer) throws SSLException {
-        if (buffer.hasRemaining()) {
-            do {
-                SSLEngineResult result = mEngine.wrap(buffer, mOutboundData);
-                switch (result.getHandshakeStatus()) {
-                case NEED_TASK:
-                    runSSLTasks();
-                    break;
-                case NEED_UNWRAP:
-                    // Should not be possible
-                    throw new SSLException("Need unwrap during output");
-                case NEED_WRAP:
-                    // Should not be possible
-                    throw new SSLException("Need wrap during output");
-                default:
-                    break;
-                }
-                switch (result.getStatus()) {
-                case BUFFER_OVERFLOW:
-                    sendOutboundData();
-                    break;
-                case BUFFER_UNDERFLOW:
-                    // Should not be possible
-                    throw new SSLException("Buffer underflow during output");
-                case CLOSED:
-                    mOutboundData.clear();
-                    return;
-                default:
-                    break;
-                }
-            } while (buffer.hasRemaining());
-            sendOutboundData();
+    public void processOutput(ByteBuffer buffer) throws SSLException {
+        mSession.send(buffer);
+    }
+
+    /**
+     * Encrypts as much of the source data as will fit into a single packet. Must only be called
+     * while holding the lock on the {@link Session}'s {@link WriteQueue}.
+     *
+     * @param src The data to encrypt.
+     * @param dst The buffer to place the encrypted data into. Must have at least {@link
+     *            #getPacketBufferSize()} bytes available.
+     * @return {@code false} if the connection has been closed.
+     */
+    final boolean wrap(ByteBuffer src, ByteBuffer dst) throws SSLException {
+        SSLEngineResult result = mEngine.wrap(src, dst);
+        checkFinished(result);
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            // Only arises when the peer starts a new handshake mid-stream, which is rare enough
+            // that it isn't worth suspending the queue for
+            runSSLTasks();
         }
+        switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+            // Should not be possible
+            throw new SSLException("Buffer overflow during output");
+        case BUFFER_UNDERFLOW:
+            // Should not be possible
+            throw new SSLException("Buffer underflow during output");
+        case CLOSED:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    /** @return {@code true} if a handshake is in progress. */
+    final boolean isHandshaking() {
+        return mEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    /** @return The size of the buffer needed to hold a single encrypted packet. */
+    final int getPacketBufferSize() {
+        return mSSLSession.getPacketBufferSize();
     }
 
-    private synchronized void sendOutboundData() {
-        mOutboundData.flip();
-        int limit = mOutboundData.limit();
+    /** @return The size of the buffer needed to hold the plain text of a single packet. */
+    final int getApplicationBufferSize() {
+        return mSSLSession.getApplicationBufferSize();
+    }
+
+    private void sendOutboundData() {
+        ByteBuffer outbound = mOutboundData.getBuffer();
+        outbound.flip();
+        int limit = outbound.limit();
         if (limit > 0) {
-            ByteBuffer buffer = ByteBuffer.allocate(limit);
-            buffer.put(mOutboundData);
-            buffer.flip();
-            mSession.getServer().send(mSession.getChannel(), buffer);
+            PooledBuffer buffer = mPool.allocateDirect(limit);
+            buffer.getBuffer().put(outbound);
+            buffer.getBuffer().flip();
+            mSession.getWriteQueue().addEncrypted(buffer);
+            mSession.getReactor().requestWrite(mSession);
+        }
+        outbound.clear();
+    }
+
+    /**
+     * Releases the buffers held by this object. Called once its {@link Session} has closed, from
+     * whichever thread finished closing it, so it takes the same lock as the handshake does.
+     */
+    final void release() {
+        synchronized (mSession.getWriteQueue()) {
+            if (!mHandshakeDone) {
+                mHandshakeDone = true;
+                mMetrics.recordFailed();
+            }
+            mReleased = true;
+            if (mAppData != null) {
+                mAppData.release();
+                mAppData = null;
+            }
+            if (mOutboundData != null) {
+                mOutboundData.release();
+                mOutboundData = null;
+            }
+            if (mUnderflowData != null) {
+                mUnderflowData.release();
+                mUnderflowData = null;
+            }
+            if (mMergedInboundData != null) {
+                mMergedInboundData.release();
+                mMergedInboundData = null;
+            }
         }
-        mOutboundData.clear();
     }
 }
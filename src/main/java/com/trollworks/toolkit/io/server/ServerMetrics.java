@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics on the work done by a {@link NioServer}. Counters are {@link LongAdder}s and
+ * durations go into {@link LatencyHistogram}s, so the threads doing the work never take a lock to
+ * record it. Use {@link #snapshot()} to read them.<br>
+ * <br>
+ * The queue wait is the time a request, such as the arrival of input, spends in its
+ * {@link Session}'s queue before the {@link SessionExecutor} gets to it. Handler latency is
+ * recorded per handler by the {@link Personality} that invokes them, under a name of its choosing,
+ * such as the URI pattern the handler was registered for.
+ */
+public class ServerMetrics {
+    private NioServer                                 mServer;
+    private LongAdder                                 mAccepted         = new LongAdder();
+    private LongAdder                                 mClosed           = new LongAdder();
+    private LongAdder                                 mBytesRead        = new LongAdder();
+    private LongAdder                                 mQueued           = new LongAdder();
+    private LongAdder                                 mProcessed        = new LongAdder();
+    private LatencyHistogram                          mQueueWait        = new LatencyHistogram();
+    private LongAdder[]                               mResponses;
+    private ConcurrentHashMap<String, HandlerMetrics> mHandlers         = new ConcurrentHashMap<>();
+    private LongAdder                                 mWebSocketsOpened = new LongAdder();
+    private LongAdder                                 mWebSocketsClosed = new LongAdder();
+    private LongAdder                                 mMessagesIn       = new LongAdder();
+    private LongAdder                                 mMessageBytesIn   = new LongAdder();
+    private LongAdder                                 mMessagesOut      = new LongAdder();
+
+    ServerMetrics(NioServer server) {
+        mServer = server;
+        mResponses = new LongAdder[5];
+        for (int i = 0; i < mResponses.length; i++) {
+            mResponses[i] = new LongAdder();
+        }
+    }
+
+    /** Records the acceptance of a connection. */
+    final void recordAccepted() {
+        mAccepted.increment();
+    }
+
+    /** Records the closing of a connection. */
+    final void recordClosed() {
+        mClosed.increment();
+    }
+
+    /** @param amount The number of bytes read from a connection. */
+    final void recordBytesRead(int amount) {
+        mBytesRead.add(amount);
+    }
+
+    /** Records the addition of a request to a {@link Session}'s queue. */
+    final void recordQueued() {
+        mQueued.increment();
+    }
+
+    /** @param waitNanos The time a request spent in its {@link Session}'s queue. */
+    final void recordDequeued(long waitNanos) {
+        mQueued.decrement();
+        mProcessed.increment();
+        mQueueWait.record(waitNanos);
+    }
+
+    /** @param status The status code of an HTTP response that was sent. */
+    public final void recordResponse(int status) {
+        int index = status / 100 - 1;
+        if (index >= 0 && index < mResponses.length) {
+            mResponses[index].increment();
+        }
+    }
+
+    /**
+     * @param name   The name of the handler that was invoked.
+     * @param nanos  The time the handler took to produce its response and hand it off.
+     * @param failed Whether the handler failed, or produced a server error response.
+     */
+    public final void recordHandler(String name, long nanos, boolean failed) {
+        HandlerMetrics metrics = mHandlers.get(name);
+        if (metrics == null) {
+            metrics = mHandlers.computeIfAbsent(name, key -> new HandlerMetrics());
+        }
+        metrics.mLatency.record(nanos);
+        if (failed) {
+            metrics.mErrors.increment();
+        }
+    }
+
+    /** Records the opening of a Web Socket. */
+    public final void recordWebSocketOpened() {
+        mWebSocketsOpened.increment();
+    }
+
+    /** Records the closing of a Web Socket. */
+    public final void recordWebSocketClosed() {
+        mWebSocketsClosed.increment();
+    }
+
+    /** @param length The payload length of a Web Socket message that was received. */
+    public final void recordMessageReceived(int length) {
+        mMessagesIn.increment();
+        mMessageBytesIn.add(length);
+    }
+
+    /** Records a Web Socket message being queued for sending. */
+    public final void recordMessageSent() {
+        mMessagesOut.increment();
+    }
+
+    /** @return A copy of the current state. */
+    public final Snapshot snapshot() {
+        long[] responses = new long[mResponses.length];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = mResponses[i].sum();
+        }
+        Map<String, LatencyHistogram.Snapshot> latency = new TreeMap<>();
+        Map<String, Long>                      errors  = new TreeMap<>();
+        for (Map.Entry<String, HandlerMetrics> entry : mHandlers.entrySet()) {
+            latency.put(entry.getKey(), entry.getValue().mLatency.snapshot());
+            errors.put(entry.getKey(), Long.valueOf(entry.getValue().mErrors.sum()));
+        }
+        Snapshot snapshot = new Snapshot();
+        snapshot.mTimestamp = System.currentTimeMillis();
+        // Closed before accepted, so that a connection accepted and closed in between can't make
+        // the number of active connections negative
+        snapshot.mClosed = mClosed.sum();
+        snapshot.mAccepted = mAccepted.sum();
+        snapshot.mBytesRead = mBytesRead.sum();
+        snapshot.mBytesWritten = mServer.getBytesWritten();
+        snapshot.mQueued = Math.max(mQueued.sum(), 0);
+        snapshot.mProcessed = mProcessed.sum();
+        snapshot.mQueueWait = mQueueWait.snapshot();
+        snapshot.mResponses = responses;
+        snapshot.mHandlerLatency = Collections.unmodifiableMap(latency);
+        snapshot.mHandlerErrors = Collections.unmodifiableMap(errors);
+        snapshot.mWebSocketsClosed = mWebSocketsClosed.sum();
+        snapshot.mWebSocketsOpened = mWebSocketsOpened.sum();
+        snapshot.mMessagesIn = mMessagesIn.sum();
+        snapshot.mMessageBytesIn = mMessageBytesIn.sum();
+        snapshot.mMessagesOut = mMessagesOut.sum();
+        return snapshot;
+    }
+
+    private static final class HandlerMetrics {
+        private LatencyHistogram mLatency = new LatencyHistogram();
+        private LongAdder        mErrors  = new LongAdder();
+    }
+
+    /** An immutable copy of the state of a {@link ServerMetrics}. */
+    public static final class Snapshot {
+        private long                                   mTimestamp;
+        private long                                   mAccepted;
+        private long                                   mClosed;
+        private long                                   mBytesRead;
+        private long                                   mBytesWritten;
+        private long                                   mQueued;
+        private long                                   mProcessed;
+        private LatencyHistogram.Snapshot              mQueueWait;
+        private long[]                                 mResponses;
+        private Map<String, LatencyHistogram.Snapshot> mHandlerLatency;
+        private Map<String, Long>                      mHandlerErrors;
+        private long                                   mWebSocketsOpened;
+        private long                                   mWebSocketsClosed;
+        private long                                   mMessagesIn;
+        private long                                   mMessageBytesIn;
+        private long                                   mMessagesOut;
+
+        Snapshot() {
+            // Filled in by ServerMetrics
+        }
+
+        /** @return The time the snapshot was taken, in milliseconds since the epoch. */
+        public final long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /** @return The number of connections accepted. */
+        public final long getAcceptedCount() {
+            return mAccepted;
+        }
+
+        /** @return The number of connections closed. */
+        public final long getClosedCount() {
+            return mClosed;
+        }
+
+        /** @return The number of connections currently open. */
+        public final long getActiveCount() {
+            return mAccepted - mClosed;
+        }
+
+        /** @return The number of bytes read across all connections. */
+        public final long getBytesRead() {
+            return mBytesRead;
+        }
+
+        /** @return The number of bytes written across all connections. */
+        public final long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        /** @return The number of requests waiting in {@link Session} queues. */
+        public final long getQueuedCount() {
+            return mQueued;
+        }
+
+        /** @return The number of requests taken from {@link Session} queues and processed. */
+        public final long getProcessedCount() {
+            return mProcessed;
+        }
+
+        /** @return The time requests spent in {@link Session} queues. */
+        public final LatencyHistogram.Snapshot getQueueWait() {
+            return mQueueWait;
+        }
+
+        /**
+         * @return The number of HTTP responses sent in each status class. Entry {@code 0} counts
+         *         the 1xx responses, entry {@code 1} the 2xx responses, and so on.
+         */
+        public final long[] getResponseCounts() {
+            return mResponses.clone();
+        }
+
+        /** @return The latency of each handler, by name. */
+        public final Map<String, LatencyHistogram.Snapshot> getHandlerLatency() {
+            return mHandlerLatency;
+        }
+
+        /** @return The number of times each handler failed, by name. */
+        public final Map<String, Long> getHandlerErrors() {
+            return mHandlerErrors;
+        }
+
+        /** @return The number of Web Sockets opened. */
+        public final long getWebSocketsOpenedCount() {
+            return mWebSocketsOpened;
+        }
+
+        /** @return The number of Web Sockets closed. */
+        public final long getWebSocketsClosedCount() {
+            return mWebSocketsClosed;
+        }
+
+        /** @return The number of Web Socket messages received. */
+        public final long getMessagesReceivedCount() {
+            return mMessagesIn;
+        }
+
+        /** @return The total payload length of the Web Socket messages received. */
+        public final long getMessageBytesReceived() {
+            return mMessageBytesIn;
+        }
+
+        /** @return The number of Web Socket messages queued for sending. */
+        public final long getMessagesSentCount() {
+            return mMessagesOut;
+        }
+    }
+}
@@ -16,27 +16,53 @@ import com.trollworks.toolkit.io.Log;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 
 /** Tracks a single connection to the server. */
-public class Session implements Runnable, Log.Context {
-    private static final AtomicInteger       NEXT_ID = new AtomicInteger();
+public class Session implements Log.Context {
+    /** The default number of queued outbound bytes above which a {@link Session} is not writable. */
+    public static final  long                DEFAULT_OUTBOUND_HIGH_WATER = 256 * 1024;
+    /** The default number of queued outbound bytes at which a {@link Session} is writable again. */
+    public static final  long                DEFAULT_OUTBOUND_LOW_WATER  = 64 * 1024;
+    /** The default number of queued input requests at which reading is suspended. */
+    public static final  int                 DEFAULT_INBOUND_HIGH_WATER  = 64;
+    /** The default number of queued input requests at which reading is resumed. */
+    public static final  int                 DEFAULT_INBOUND_LOW_WATER   = 16;
+    private static final long                CLOSE_DRAIN_LIMIT           = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+    private static final AtomicInteger       NEXT_ID                     = new AtomicInteger();
     private              int                 mId;
     private              NioServer           mServer;
+    private              Reactor             mReactor;
     private              SocketChannel       mChannel;
     private              InetAddress         mAddress;
     private              Personality         mPersonality;
     private              SSLSupport          mSSLSupport;
+    private              WriteQueue          mWriteQueue;
     private              LinkedList<Request> mRequests;
-    private              long                mLastActivity;
-    private              boolean             mInRequest;
-    private              boolean             mHasClosed;
-    private              boolean             mNoFurtherWrites;
+    private              SessionExecutor     mExecutor;
+    private              Runnable            mProcessor                  = this::processRequest;
+    private              ReentrantLock       mProcessLock                = new ReentrantLock();
+    private              SessionTimeouts     mTimeouts;
+    private              TimingWheel.Timer   mTimer;
+    private              long                mCreated;
+    private volatile     long                mLastActivity;
+    private volatile     long                mHeaderStarted;
+    private volatile     boolean             mHandshakeComplete;
+    private              boolean             mScheduled;
+    private volatile     boolean             mHasClosed;
+    private volatile     boolean             mDraining;
+    private              boolean             mClosed;
+    private              int                 mInboundHighWater           = DEFAULT_INBOUND_HIGH_WATER;
+    private              int                 mInboundLowWater            = DEFAULT_INBOUND_LOW_WATER;
+    private volatile     boolean             mInboundFull;
+    private              boolean             mNotifiedWritable           = true;
 
     /**
      * @param server      The {@link NioServer} that will be providing the connection.
@@ -50,7 +76,13 @@ public class Session implements Runnable, Log.Context {
         mChannel = channel;
         mAddress = channel.socket().getInetAddress();
         mRequests = new LinkedList<>();
+        mExecutor = server.getDefaultExecutor();
+        mWriteQueue = new WriteQueue(this);
         mId = NEXT_ID.incrementAndGet();
+        mTimeouts = server.getDefaultTimeouts();
+        mTimer = new TimingWheel.Timer(this::checkTimeout);
+        mCreated = System.currentTimeMillis();
+        mLastActivity = mCreated;
         if (sslContext != null) {
             mSSLSupport = new SSLSupport(this, sslContext);
         }
@@ -66,6 +98,153 @@ public class Session implements Runnable, Log.Context {
         return mLastActivity;
     }
 
+    /**
+     * @return The {@link SessionTimeouts} in effect, which are those of the current {@link
+     *         Personality} if it has its own.
+     */
+    public final SessionTimeouts getTimeouts() {
+        SessionTimeouts timeouts = getPersonality().getTimeouts();
+        return timeouts != null ? timeouts : mTimeouts;
+    }
+
+    /**
+     * @param timeouts The {@link SessionTimeouts} to use when the current {@link Personality} does
+     *                 not supply its own. Typically set from the {@link SessionFactory} that created
+     *                 this {@link Session}.
+     */
+    public final void setTimeouts(SessionTimeouts timeouts) {
+        mTimeouts = timeouts;
+        updateTimeout();
+    }
+
+    /** Starts the read-header timeout, if it isn't already running. */
+    final void headerStarted() {
+        if (mHeaderStarted == 0) {
+            long now = System.currentTimeMillis();
+            mHeaderStarted = now;
+            long limit = getTimeouts().getReadHeader();
+            if (limit > 0) {
+                tightenTimeout(now + limit);
+            }
+        }
+    }
+
+    /** Stops the read-header timeout. */
+    final void headerCompleted() {
+        mHeaderStarted = 0;
+    }
+
+    /**
+     * Called by the {@link WriteQueue} when data starts waiting to be sent.
+     *
+     * @param now The current time.
+     */
+    final void writePending(long now) {
+        long limit = getTimeouts().getWriteStall();
+        if (limit > 0) {
+            tightenTimeout(now + limit);
+        }
+    }
+
+    /** Reschedules the timeout check for the earliest deadline currently in effect. */
+    final void updateTimeout() {
+        synchronized (mTimer) {
+            if (!mHasClosed) {
+                scheduleTimeout(getDeadline(false));
+            }
+        }
+    }
+
+    private void tightenTimeout(long deadline) {
+        // Checking first keeps the common case, where nothing changes, off the wheel's lock
+        if (deadline < mTimer.getDeadline()) {
+            synchronized (mTimer) {
+                if (deadline < mTimer.getDeadline() && !mHasClosed) {
+                    scheduleTimeout(deadline);
+                }
+            }
+        }
+    }
+
+    private void scheduleTimeout(long deadline) {
+        if (deadline == Long.MAX_VALUE) {
+            // All limits are disabled
+            mServer.getTimingWheel().cancel(mTimer);
+        } else {
+            mServer.getTimingWheel().schedule(mTimer, deadline);
+        }
+    }
+
+    /** Stops checking for timeouts. */
+    final void cancelTimeout() {
+        synchronized (mTimer) {
+            mServer.getTimingWheel().cancel(mTimer);
+        }
+    }
+
+    /**
+     * @param stallOnly Pass in {@code true} to consider only the write-stall limit.
+     * @return The earliest time at which one of the limits will be exceeded.
+     */
+    private long getDeadline(boolean stallOnly) {
+        SessionTimeouts timeouts = getTimeouts();
+        long            deadline = Long.MAX_VALUE;
+        long            limit    = timeouts.getWriteStall();
+        long            since    = mWriteQueue.getStalledSince();
+        if (limit > 0 && since != 0) {
+            deadline = since + limit;
+        }
+        if (stallOnly) {
+            return deadline;
+        }
+        limit = timeouts.getIdle();
+        if (limit > 0) {
+            deadline = Math.min(deadline, mLastActivity + limit);
+        }
+        limit = timeouts.getReadHeader();
+        since = mHeaderStarted;
+        if (limit > 0 && since != 0) {
+            deadline = Math.min(deadline, since + limit);
+        }
+        if (mSSLSupport != null && !mHandshakeComplete) {
+            if (mSSLSupport.isHandshaking()) {
+                limit = timeouts.getHandshake();
+                if (limit > 0) {
+                    deadline = Math.min(deadline, mCreated + limit);
+                }
+            } else {
+                mHandshakeComplete = true;
+            }
+        }
+        return deadline;
+    }
+
+    /** Called by the {@link TimingWheel} once the scheduled deadline has been reached. */
+    private void checkTimeout() {
+        boolean draining;
+        synchronized (mTimer) {
+            draining = mDraining;
+            if (!draining) {
+                if (mHasClosed) {
+                    return;
+                }
+                long deadline = getDeadline(false);
+                if (deadline > System.currentTimeMillis()) {
+                    // Activity since the check was scheduled has moved the deadline out
+                    scheduleTimeout(deadline);
+                    return;
+                }
+            }
+        }
+        if (draining) {
+            // The pending writes didn't drain in time
+            finishClose();
+            return;
+        }
+        // A stalled socket won't drain, so don't wait for it to
+        requestClose(getDeadline(true) <= System.currentTimeMillis());
+    }
+
     /**
      * Requests that the {@link Session} be closed.
      *
@@ -78,32 +257,185 @@ public class Session implements Runnable, Log.Context {
     /**
      * Request that the specified input data be processed.
      *
-     * @param buffer The data to process. The buffer contents are copied to an internal buffer, so
-     *               the passed in buffer may be modified after this call.
+     * @param buffer The data to process. The buffer contents are copied to a pooled buffer, so the
+     *               passed in buffer may be modified after this call.
      */
     final void requestHandleInput(ByteBuffer buffer) {
-        addRequest(new Request(buffer));
+        addRequest(new Request(mServer.getBufferPool(), buffer));
     }
 
     private void addRequest(Request request) {
+        boolean suspend  = false;
+        boolean schedule = false;
+        mServer.getMetrics().recordQueued();
         synchronized (mRequests) {
             mRequests.add(request);
+            if (!mInboundFull && mRequests.size() >= mInboundHighWater) {
+                mInboundFull = true;
+                suspend = true;
+            }
+            if (!mScheduled) {
+                mScheduled = true;
+                schedule = true;
+            }
+        }
+        if (suspend) {
+            mReactor.updateInterest(this);
+        }
+        if (schedule) {
+            mExecutor.execute(this, mProcessor);
         }
-        mServer.scheduleSession(this);
     }
 
-    /** Process a pending request. */
-    final void processNextRequest() throws IOException {
-        Request request = null;
+    /**
+     * @return The {@link SessionExecutor} that processes requests. A {@link Personality} may also
+     *         submit work of its own to it that can proceed in parallel with its requests.
+     */
+    public final SessionExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * @param executor The {@link SessionExecutor} to process requests with. Must be set before the
+     *                 {@link Session} is registered with a {@link Reactor}.
+     */
+    final void setExecutor(SessionExecutor executor) {
+        mExecutor = executor;
+    }
+
+    private void processRequest() {
+        try {
+            processNextRequest();
+        } catch (Throwable throwable) {
+            Log.error(this, throwable);
+            requestClose(true);
+        }
+    }
+
+    /**
+     * Sets the limits on the number of input requests that may be waiting to be processed. Once
+     * the high watermark is reached, no further data is read from the socket until the backlog
+     * has been worked down to the low watermark.
+     *
+     * @param low  The number of waiting requests at which reading resumes.
+     * @param high The number of waiting requests at which reading is suspended.
+     */
+    public final void setInboundWatermarks(int low, int high) {
         synchronized (mRequests) {
-            if (mInRequest) {
-                return;
+            mInboundLowWater = low;
+            mInboundHighWater = high;
+        }
+    }
+
+    /**
+     * Sets the limits on the number of bytes that may be waiting to be sent. Once more than the
+     * high watermark is queued, the {@link Session} is no longer writable: no further data is read
+     * from the socket and the {@link Personality} is notified, until the queue has drained to the
+     * low watermark.
+     *
+     * @param low  The number of waiting bytes at which the {@link Session} becomes writable again.
+     * @param high The number of waiting bytes above which the {@link Session} is not writable.
+     */
+    public final void setOutboundWatermarks(long low, long high) {
+        mWriteQueue.setWatermarks(low, high);
+    }
+
+    /** @return {@code true} if the data waiting to be sent is below the high watermark. */
+    public final boolean isWritable() {
+        return !mWriteQueue.isFull();
+    }
+
+    /** @return {@code true} if reading from the socket should be suspended. */
+    final boolean isReadSuspended() {
+        return mInboundFull || mWriteQueue.isFull();
+    }
+
+    /**
+     * Called by the {@link WriteQueue} when it becomes full or stops being full.
+     *
+     * @param full Whether the queue is now full.
+     */
+    final void outboundFullChanged(boolean full) {
+        mReactor.updateInterest(this);
+        // The state is captured now, so that a queue which fills and drains again before the
+        // requests are processed still produces both notifications
+        Request request = new Request();
+        request.mWritable = !full;
+        addRequest(request);
+    }
+
+    /**
+     * Process a pending request. Only one call is ever outstanding with the {@link
+     * SessionExecutor}, and it submits the next one if more requests are waiting once it is done.
+     */
+    private void processNextRequest() throws IOException {
+        mProcessLock.lock();
+        try {
+            handleRequest(takeRequest());
+        } finally {
+            mProcessLock.unlock();
+            boolean reschedule;
+            synchronized (mRequests) {
+                reschedule = !mRequests.isEmpty();
+                mScheduled = reschedule;
+            }
+            if (reschedule) {
+                mExecutor.execute(this, mProcessor);
             }
-            mInRequest = true;
+        }
+    }
+
+    /**
+     * Processes the requests that are waiting, on the calling thread rather than waiting for the
+     * {@link SessionExecutor} to get to them. For a {@link Personality} whose own tasks wait on the
+     * input of the {@link Session}, which might otherwise never be processed should those tasks
+     * tie up all of the executor's threads. Does nothing if the requests are already being
+     * processed.
+     *
+     * @return {@code true} if any requests were processed.
+     */
+    public final boolean processWaitingRequests() {
+        if (!mProcessLock.tryLock()) {
+            return false;
+        }
+        boolean processed = false;
+        try {
+            Request request;
+            while ((request = takeRequest()) != null) {
+                processed = true;
+                handleRequest(request);
+            }
+        } catch (Throwable throwable) {
+            Log.error(this, throwable);
+            requestClose(true);
+        } finally {
+            mProcessLock.unlock();
+        }
+        return processed;
+    }
+
+    private Request takeRequest() {
+        Request request = null;
+        boolean resume  = false;
+        synchronized (mRequests) {
             if (!mRequests.isEmpty()) {
                 request = mRequests.removeFirst();
+                if (mInboundFull && mRequests.size() <= mInboundLowWater) {
+                    mInboundFull = false;
+                    resume = true;
+                }
             }
         }
+        if (resume) {
+            mReactor.updateInterest(this);
+        }
+        if (request != null) {
+            mServer.getMetrics().recordDequeued(System.nanoTime() - request.mQueuedAt);
+        }
+        return request;
+    }
+
+    private void handleRequest(Request request) throws IOException {
         try {
             if (request != null && !mHasClosed) {
                 mLastActivity = System.currentTimeMillis();
@@ -115,46 +447,133 @@ public class Session implements Runnable, Log.Context {
                     while (buffer.hasRemaining() && !Thread.currentThread().isInterrupted()) {
                         getPersonality().processInput(buffer);
                     }
+                } else if (request.isWritabilityCheck()) {
+                    boolean writable = request.isWritable();
+                    if (writable != mNotifiedWritable) {
+                        mNotifiedWritable = writable;
+                        getPersonality().writabilityChanged(writable);
+                    }
                 } else {
                     mHasClosed = true;
-                    mNoFurtherWrites = request.isCloseRequestDueToError();
                     try {
                         getPersonality().closing();
                     } catch (Throwable throwable) {
                         Log.error(this, throwable);
                     }
-                    Thread thread = new Thread(this, "Closing " + this);
-                    thread.setDaemon(true);
-                    thread.start();
+                    if (request.isCloseRequestDueToError()) {
+                        finishClose();
+                    } else {
+                        drainAndClose();
+                    }
                 }
             }
         } finally {
-            boolean reschedule;
-            synchronized (mRequests) {
-                mInRequest = false;
-                reschedule = !mRequests.isEmpty();
+            if (request != null) {
+                request.release();
             }
-            if (reschedule) {
-                mServer.scheduleSession(this);
+        }
+    }
+
+    /**
+     * Closes the channel once any pending writes have been sent. The {@link Reactor} finishes the
+     * close when it empties the {@link WriteQueue}, and the {@link TimingWheel} forces it should
+     * that not happen in time.
+     */
+    private void drainAndClose() {
+        synchronized (mTimer) {
+            if (mClosed) {
+                return;
             }
+            mDraining = true;
+            mServer.getTimingWheel().schedule(mTimer, System.currentTimeMillis() + CLOSE_DRAIN_LIMIT);
+        }
+        if (hasPendingWrite()) {
+            mReactor.requestWrite(this);
+        } else {
+            finishClose();
+        }
+    }
+
+    /** Called by the {@link Reactor} once it has written everything in the {@link WriteQueue}. */
+    final void writesDrained() {
+        if (mDraining && !hasPendingWrite()) {
+            finishClose();
         }
     }
 
+    private void finishClose() {
+        synchronized (mTimer) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mDraining = false;
+        }
+        try {
+            mChannel.close();
+        } catch (IOException ioe) {
+            Log.error(this, ioe);
+        }
+        // Anything sent from here on is discarded rather than left in the queue
+        mWriteQueue.abort();
+        if (mSSLSupport != null) {
+            mSSLSupport.release();
+        }
+        mServer.sessionClosed(this);
+    }
+
     /**
      * @param buffer The data to send. A copy of the data is not made, so do not modify it once
      *               passed to this method.
      */
     final void send(ByteBuffer buffer) {
         mLastActivity = System.currentTimeMillis();
-        if (isSecure()) {
-            try {
-                mSSLSupport.processOutput(buffer);
-            } catch (Throwable throwable) {
-                Log.error(this, throwable);
-            }
-        } else {
-            mServer.send(mChannel, buffer);
-        }
+        mReactor.send(this, buffer);
+    }
+
+    /**
+     * @param buffer The data to send. The caller's reference is passed on, and is released once
+     *               the data has been written.
+     */
+    final void send(PooledBuffer buffer) {
+        mLastActivity = System.currentTimeMillis();
+        mReactor.send(this, buffer);
+    }
+
+    /**
+     * @param file     The file to send data from. It will be closed once the region has been sent
+     *                 or this {@link Session} is closed.
+     * @param position The starting position within the file.
+     * @param count    The number of bytes to send.
+     */
+    final void send(FileChannel file, long position, long count) {
+        mLastActivity = System.currentTimeMillis();
+        mReactor.send(this, file, position, count);
+    }
+
+    /**
+     * Blocks the calling thread while too much data is waiting to be sent, until the remote end
+     * has caught up. Must not be called from a {@link Reactor} thread.
+     *
+     * @throws IOException if the connection can no longer be written to.
+     */
+    final void waitForWritable() throws IOException {
+        mWriteQueue.awaitDrain();
+    }
+
+    /** @return {@code true} if there is data waiting to be sent. */
+    public final boolean hasPendingWrite() {
+        return !mWriteQueue.isEmpty();
+    }
+
+    /** @return The queue of data waiting to be written. */
+    final WriteQueue getWriteQueue() {
+        return mWriteQueue;
+    }
+
+    /** @return The {@link SSLSupport}, or {@code null} if this {@link Session} isn't secure. */
+    final SSLSupport getSSLSupport() {
+        return mSSLSupport;
     }
 
     /** @return The associated {@link NioServer}. */
@@ -162,6 +581,16 @@ public class Session implements Runnable, Log.Context {
         return mServer;
     }
 
+    /** @return The {@link Reactor} performing the i/o for this {@link Session}. */
+    final Reactor getReactor() {
+        return mReactor;
+    }
+
+    /** @param reactor The {@link Reactor} performing the i/o for this {@link Session}. */
+    final void setReactor(Reactor reactor) {
+        mReactor = reactor;
+    }
+
     /** @return The associated {@link SocketChannel}. */
     public final SocketChannel getChannel() {
         return mChannel;
@@ -176,9 +605,13 @@ public class Session implements Runnable, Log.Context {
      * @param personality The {@link Personality} to set, replacing any existing {@link Personality}
      *                    attached to this {@link Session}.
      */
-    public final synchronized void setPersonality(Personality personality) {
-        mPersonality = personality;
-        mPersonality.setSession(this);
+    public final void setPersonality(Personality personality) {
+        synchronized (this) {
+            mPersonality = personality;
+            mPersonality.setSession(this);
+        }
+        // The new personality may have its own timeouts
+        updateTimeout();
     }
 
     /** @return {@code true} if SSL support has been enabled for this {@link Session}. */
@@ -201,47 +634,35 @@ public class Session implements Runnable, Log.Context {
         return "Session " + mId + " (" + getHumanReadableAddress() + ")";
     }
 
-    @Override
-    public void run() {
-        if (!mNoFurtherWrites) {
-            try {
-                // Wait for any pending writes to finish, but not forever
-                long maxWait = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
-                while (mServer.hasPendingWrite(mChannel) && System.currentTimeMillis() < maxWait) {
-                    Thread.sleep(50);
-                }
-            } catch (InterruptedException exception) {
-                // Even if interrupted, we still want to try and close the channel
-            }
-        }
-        try {
-            mChannel.close();
-        } catch (IOException ioe) {
-            Log.error(this, ioe);
-        }
-        mServer.sessionClosed(this);
-    }
-
     @Override
     public String getLogContext() {
         return getHumanReadableAddress();
     }
 
     private static class Request {
-        private ByteBuffer mBuffer;
-        private boolean    mDueToError;
+        private PooledBuffer mBuffer;
+        private boolean      mDueToError;
+        private boolean      mWritabilityCheck;
+        private boolean      mWritable;
+        private long         mQueuedAt         = System.nanoTime();
+
+        Request() {
+            // Writability check request
+            mWritabilityCheck = true;
+        }
 
         Request(boolean dueToError) {
             // Close request
             mDueToError = dueToError;
         }
 
-        Request(ByteBuffer buffer) {
+        Request(BufferPool pool, ByteBuffer buffer) {
             // Input request
             buffer.flip();
-            mBuffer = ByteBuffer.allocate(buffer.limit());
-            mBuffer.put(buffer);
-            mBuffer.flip();
+            mBuffer = pool.allocate(buffer.limit());
+            ByteBuffer copy = mBuffer.getBuffer();
+            copy.put(buffer);
+            copy.flip();
         }
 
         final boolean isInput() {
@@ -249,7 +670,22 @@ public class Session implements Runnable, Log.Context {
         }
 
         final ByteBuffer getBuffer() {
-            return mBuffer;
+            return mBuffer.getBuffer();
+        }
+
+        final void release() {
+            if (mBuffer != null) {
+                mBuffer.release();
+                mBuffer = null;
+            }
+        }
+
+        final boolean isWritabilityCheck() {
+            return mWritabilityCheck;
+        }
+
+        final boolean isWritable() {
+            return mWritable;
         }
 
         final boolean isCloseRequestDueToError() {
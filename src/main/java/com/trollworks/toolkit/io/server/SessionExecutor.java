@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+/**
+ * Supplies the threads that process the requests queued for {@link Session}s.<br>
+ * <br>
+ * Each task processes a single request, and a {@link Session} never has more than one task
+ * submitted at a time: the next is only submitted once the previous one has finished. So
+ * whichever thread an executor chooses to run a task on, every {@link Session} sees its requests
+ * in the order they arrived, while a busy {@link Session} yields to others between requests. A
+ * {@link Personality} may submit further tasks of its own, such as for the streams multiplexed
+ * over an HTTP/2 connection, which are not bound by this.<br>
+ * <br>
+ * An executor may be shared by any number of {@link SessionFactory}s. It is shut down along with
+ * the {@link NioServer} it was used with.
+ */
+public interface SessionExecutor {
+    /**
+     * @param session The {@link Session} the task is for.
+     * @param task    The task to run. Must be run exactly once.
+     */
+    void execute(Session session, Runnable task);
+
+    /** Waits a reasonable time for the tasks already submitted to finish, then stops. */
+    void shutdown();
+
+    /**
+     * @param threads The number of threads.
+     * @return A {@link SessionExecutor} with a fixed number of platform threads pulling tasks from
+     *         a single shared queue. A handler that blocks holds up one of the threads for the
+     *         duration, so this suits servers whose handlers do little or no blocking i/o.
+     */
+    static SessionExecutor fixedPool(int threads) {
+        return new FixedPoolSessionExecutor(threads);
+    }
+
+    /**
+     * @param parallelism The number of threads to keep active.
+     * @return A {@link SessionExecutor} that runs tasks on a work-stealing pool. Each thread
+     *         prefers the tasks it submitted itself, so a {@link Session}'s follow-on requests
+     *         tend to stay on the same thread and there is no single queue for the threads to
+     *         contend over.
+     */
+    static SessionExecutor workStealing(int parallelism) {
+        return new WorkStealingSessionExecutor(parallelism);
+    }
+
+    /** @return {@code true} if the runtime supports virtual threads. */
+    static boolean isVirtualThreadSupported() {
+        return VirtualThreadSessionExecutor.isSupported();
+    }
+
+    /**
+     * @return A {@link SessionExecutor} that runs each {@link Session}'s processing in a virtual
+     *         thread of its own, so a handler may block without tying up a platform thread.
+     * @throws UnsupportedOperationException if the runtime doesn't support virtual threads.
+     */
+    static SessionExecutor virtualThreads() {
+        return new VirtualThreadSessionExecutor();
+    }
+}
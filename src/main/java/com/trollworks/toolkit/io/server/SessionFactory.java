@@ -22,4 +22,20 @@ public interface SessionFactory {
      * @return The newly created {@link Session}.
      */
     Session createSession(NioServer server, SocketChannel channel) throws IOException;
+
+    /**
+     * @return The {@link SessionTimeouts} to apply to the {@link Session}s this factory creates, or
+     *         {@code null} to use the server's defaults.
+     */
+    default SessionTimeouts getTimeouts() {
+        return null;
+    }
+
+    /**
+     * @return The {@link SessionExecutor} to process the requests of the {@link Session}s this
+     *         factory creates, or {@code null} to use the server's default fixed pool.
+     */
+    default SessionExecutor getExecutor() {
+        return null;
+    }
 }
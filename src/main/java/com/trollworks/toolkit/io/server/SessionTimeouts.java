@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+/**
+ * The limits, in milliseconds, on how long a {@link Session} may sit in various states before it
+ * is closed. A limit of zero or less disables that check. A {@link SessionFactory} supplies the
+ * limits for the {@link Session}s it creates, and a {@link Personality} may supply its own to
+ * override them while it is attached.
+ */
+public class SessionTimeouts {
+    /** The default idle limit. */
+    public static final long DEFAULT_IDLE        = 2 * 60 * 1000;
+    /** The default read-header limit. */
+    public static final long DEFAULT_READ_HEADER = 30 * 1000;
+    /** The default write-stall limit. */
+    public static final long DEFAULT_WRITE_STALL = 2 * 60 * 1000;
+    /** The default handshake limit. */
+    public static final long DEFAULT_HANDSHAKE   = 30 * 1000;
+    private volatile    long mIdle               = DEFAULT_IDLE;
+    private volatile    long mReadHeader         = DEFAULT_READ_HEADER;
+    private volatile    long mWriteStall         = DEFAULT_WRITE_STALL;
+    private volatile    long mHandshake          = DEFAULT_HANDSHAKE;
+
+    /** Creates a new {@link SessionTimeouts} with the default limits. */
+    public SessionTimeouts() {
+    }
+
+    /**
+     * @param other The {@link SessionTimeouts} to copy.
+     */
+    public SessionTimeouts(SessionTimeouts other) {
+        mIdle = other.mIdle;
+        mReadHeader = other.mReadHeader;
+        mWriteStall = other.mWriteStall;
+        mHandshake = other.mHandshake;
+    }
+
+    /** @return The time that may pass without any data being sent or received. */
+    public final long getIdle() {
+        return mIdle;
+    }
+
+    /** @param millis The time that may pass without any data being sent or received. */
+    public final void setIdle(long millis) {
+        mIdle = millis;
+    }
+
+    /**
+     * @return The time that may pass between the arrival of the first bytes of a request and the
+     *         end of its header.
+     */
+    public final long getReadHeader() {
+        return mReadHeader;
+    }
+
+    /**
+     * @param millis The time that may pass between the arrival of the first bytes of a request
+     *               and the end of its header.
+     */
+    public final void setReadHeader(long millis) {
+        mReadHeader = millis;
+    }
+
+    /**
+     * @return The time that data may wait to be sent without the remote end accepting any of it.
+     *         When exceeded, the {@link Session} is closed without waiting for the data to drain.
+     */
+    public final long getWriteStall() {
+        return mWriteStall;
+    }
+
+    /**
+     * @param millis The time that data may wait to be sent without the remote end accepting any
+     *               of it.
+     */
+    public final void setWriteStall(long millis) {
+        mWriteStall = millis;
+    }
+
+    /** @return The time a secure {@link Session} may take to complete its TLS handshake. */
+    public final long getHandshake() {
+        return mHandshake;
+    }
+
+    /** @param millis The time a secure {@link Session} may take to complete its TLS handshake. */
+    public final void setHandshake(long millis) {
+        mHandshake = millis;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel. Time is divided into ticks, and each {@link Timer} is placed into the
+ * bucket for the tick containing its deadline, along with the number of complete turns of the
+ * wheel still to go. Scheduling, rescheduling and cancelling are constant time, and each tick
+ * only looks at a single bucket, no matter how many timers are outstanding.<br>
+ * <br>
+ * Expired timers are run on the wheel's own thread, so they must do very little work.
+ */
+class TimingWheel extends Thread {
+    private Timer[] mBuckets;
+    private long    mTick;
+    private long    mStart;
+    private long    mNextTick;
+
+    /**
+     * @param tick      The length of a tick, in milliseconds. Timers fire up to this much later
+     *                  than their deadline.
+     * @param wheelSize The number of buckets.
+     */
+    TimingWheel(long tick, int wheelSize) {
+        setName(getClass().getSimpleName());
+        setDaemon(true);
+        mBuckets = new Timer[wheelSize];
+        mTick = tick;
+        mStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Schedules a {@link Timer}, moving it if it is already scheduled.
+     *
+     * @param timer    The {@link Timer} to schedule.
+     * @param deadline The time at which the {@link Timer} should fire, in milliseconds since the
+     *                 epoch.
+     */
+    final synchronized void schedule(Timer timer, long deadline) {
+        unlink(timer);
+        long tick = Math.max((deadline - mStart + mTick - 1) / mTick, mNextTick);
+        timer.mDeadline = deadline;
+        timer.mRounds = (tick - mNextTick) / mBuckets.length;
+        int index = (int) (tick % mBuckets.length);
+        timer.mBucket = index;
+        timer.mNext = mBuckets[index];
+        if (timer.mNext != null) {
+            timer.mNext.mPrevious = timer;
+        }
+        mBuckets[index] = timer;
+    }
+
+    /** @param timer The {@link Timer} to cancel. Does nothing if it isn't scheduled. */
+    final synchronized void cancel(Timer timer) {
+        unlink(timer);
+        timer.mDeadline = Long.MAX_VALUE;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.mBucket != -1) {
+            if (timer.mPrevious != null) {
+                timer.mPrevious.mNext = timer.mNext;
+            } else {
+                mBuckets[timer.mBucket] = timer.mNext;
+            }
+            if (timer.mNext != null) {
+                timer.mNext.mPrevious = timer.mPrevious;
+            }
+            timer.mPrevious = null;
+            timer.mNext = null;
+            timer.mBucket = -1;
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Timer> expired = new ArrayList<>();
+        while (!isInterrupted()) {
+            try {
+                long wait;
+                while ((wait = mStart + mNextTick * mTick - System.currentTimeMillis()) > 0) {
+                    Thread.sleep(wait);
+                }
+            } catch (InterruptedException exception) {
+                break;
+            }
+            synchronized (this) {
+                Timer timer = mBuckets[(int) (mNextTick % mBuckets.length)];
+                while (timer != null) {
+                    Timer next = timer.mNext;
+                    if (timer.mRounds > 0) {
+                        timer.mRounds--;
+                    } else {
+                        unlink(timer);
+                        expired.add(timer);
+                    }
+                    timer = next;
+                }
+                mNextTick++;
+            }
+            for (Timer timer : expired) {
+                try {
+                    timer.mTask.run();
+                } catch (Throwable throwable) {
+                    Log.error(throwable);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /** A task that can be scheduled on a {@link TimingWheel}. */
+    static final class Timer {
+        private          Runnable mTask;
+        private volatile long     mDeadline = Long.MAX_VALUE;
+        private          long     mRounds;
+        private          int      mBucket   = -1;
+        private          Timer    mPrevious;
+        private          Timer    mNext;
+
+        /** @param task The task to run when the {@link Timer} fires. */
+        Timer(Runnable task) {
+            mTask = task;
+        }
+
+        /**
+         * @return The time the {@link Timer} was last scheduled to fire at, in milliseconds since
+         *         the epoch, or {@link Long#MAX_VALUE} if it has never been scheduled or was
+         *         cancelled.
+         */
+        long getDeadline() {
+            return mDeadline;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SessionExecutor} that starts a virtual thread for each task. The runtime's support for
+ * virtual threads is found by reflection, as the toolkit is compiled for a release that predates
+ * them.
+ */
+final class VirtualThreadSessionExecutor implements SessionExecutor {
+    private static final Method          NEW_EXECUTOR = lookup();
+    private              ExecutorService mService;
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException exception) {
+            return null;
+        }
+    }
+
+    /** @return {@code true} if the runtime supports virtual threads. */
+    static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    VirtualThreadSessionExecutor() {
+        if (NEW_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this runtime");
+        }
+        try {
+            mService = (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException exception) {
+            throw new UnsupportedOperationException("Unable to create a virtual thread executor", exception);
+        }
+    }
+
+    @Override
+    public void execute(Session session, Runnable task) {
+        try {
+            mService.execute(task);
+        } catch (RejectedExecutionException exception) {
+            // Shutting down
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        mService.shutdown();
+        try {
+            mService.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exception) {
+            // Ignore
+        }
+        mService.shutdownNow();
+    }
+}
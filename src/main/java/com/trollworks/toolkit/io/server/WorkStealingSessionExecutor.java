@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link SessionExecutor} backed by a {@link ForkJoinPool} in FIFO mode. A task submitted from
+ * one of the pool's own threads, as a {@link Session}'s next request is, goes onto that thread's
+ * local queue, and idle threads steal from the others.
+ */
+final class WorkStealingSessionExecutor implements SessionExecutor {
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+    private              ForkJoinPool  mPool;
+
+    WorkStealingSessionExecutor(int parallelism) {
+        mPool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("NioWorker FJ " + NEXT_ID.incrementAndGet());
+            return thread;
+        }, null, true);
+    }
+
+    @Override
+    public void execute(Session session, Runnable task) {
+        try {
+            mPool.execute(task);
+        } catch (RejectedExecutionException exception) {
+            // Shutting down
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        mPool.shutdown();
+        try {
+            mPool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exception) {
+            // Ignore
+        }
+        mPool.shutdownNow();
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The data waiting to be written to a {@link Session}'s socket. Entries are written by the
+ * {@link Reactor} that owns the {@link Session} as the socket is able to accept more data.<br>
+ * <br>
+ * For secure {@link Session}s, entries are held as plain text and only encrypted when the socket
+ * is ready for them. Records produced by the TLS handshake are placed on a separate queue that is
+ * always written first, which keeps the records on the wire in the order the {@link SSLSupport}
+ * produced them. Any code that produces TLS records must hold the lock on this object while doing
+ * so.<br>
+ * <br>
+ * Once more than the high watermark's worth of bytes are queued, the queue is considered full
+ * until the socket drains it down to the low watermark. The {@link Session} is told each time this
+ * changes. Producers that generate data faster than the remote end consumes it can call {@link
+ * #awaitDrain()} between writes to keep the queue from growing without bound.<br>
+ * <br>
+ * To keep the number of system calls down, consecutive small buffers are copied together as they
+ * are added, consecutive buffers are written with a single gathering write, and for secure {@link
+ * Session}s, several TLS records are produced before writing them out together. A shared buffer
+ * for small sends is only started once a second one arrives behind the first, and never from a
+ * read-only buffer, since those are typically shared between {@link Session}s.<br>
+ * <br>
+ * Buffers handed over as {@link PooledBuffer}s, along with the queue's own working buffers, are
+ * released back to the {@link Session}'s {@link BufferPool} once they have been written or the
+ * queue is cleared.
+ */
+class WriteQueue {
+    private static final int                    MAXIMUM_GATHER       = 64;
+    private static final int                    COALESCE_LIMIT       = 1024;
+    private static final int                    COALESCE_BUFFER_SIZE = 8 * 1024;
+    private static final int                    RECORDS_PER_WRITE    = 4;
+    private              Session                mSession;
+    private              ArrayDeque<Entry>      mEntries             = new ArrayDeque<>();
+    private              ArrayDeque<Entry>      mWire                = new ArrayDeque<>();
+    private              ByteBuffer[]           mGather              = new ByteBuffer[MAXIMUM_GATHER];
+    private              PooledBuffer           mChunk;
+    private              PooledBuffer           mWrapBuffer;
+    private              long                   mPending;
+    private              long                   mHighWater           = Session.DEFAULT_OUTBOUND_HIGH_WATER;
+    private              long                   mLowWater            = Session.DEFAULT_OUTBOUND_LOW_WATER;
+    private volatile     boolean                mFull;
+    private volatile     long                   mStalledSince;
+    private              boolean                mAborted;
+
+    /** @param session The {@link Session} this queue belongs to. */
+    WriteQueue(Session session) {
+        mSession = session;
+    }
+
+    /**
+     * @param buffer The data to send. A copy of the data is not made, so do not modify it once
+     *               passed to this method.
+     */
+    final synchronized void add(ByteBuffer buffer) {
+        if (!coalesce(buffer)) {
+            add(new Entry(buffer, null));
+        }
+    }
+
+    /**
+     * @param buffer The data to send. The caller's reference is passed to the queue, which
+     *               releases it once the data has been written.
+     */
+    final synchronized void add(PooledBuffer buffer) {
+        if (coalesce(buffer.getBuffer())) {
+            buffer.release();
+        } else {
+            add(new Entry(buffer.getBuffer(), buffer));
+        }
+    }
+
+    /**
+     * @return {@code true} if the data was small enough to be copied into the buffer at the end of
+     *         the queue.
+     */
+    private boolean coalesce(ByteBuffer buffer) {
+        int   amount = buffer.remaining();
+        Entry last   = mEntries.peekLast();
+        if (amount > COALESCE_LIMIT || mAborted || last == null || last.mBuffer == null) {
+            // A lone send goes out as is, which keeps shared buffers from being copied
+            return false;
+        }
+        if (!last.mCoalesced) {
+            ByteBuffer tail = last.mBuffer;
+            if (tail.isReadOnly() || buffer.isReadOnly() || tail.remaining() > COALESCE_LIMIT) {
+                return false;
+            }
+            // A second small send in a row starts a shared buffer, so the two cost a single
+            // buffer to write
+            PooledBuffer pooled = getBufferPool().allocate(COALESCE_BUFFER_SIZE);
+            ByteBuffer   target = pooled.getBuffer();
+            target.put(tail);
+            target.flip();
+            if (last.mPooled != null) {
+                last.mPooled.release();
+            }
+            last.mBuffer = target;
+            last.mPooled = pooled;
+            last.mCoalesced = true;
+        }
+        ByteBuffer target = last.mBuffer;
+        if (target.capacity() - target.limit() < amount) {
+            return false;
+        }
+        int position = target.position();
+        target.position(target.limit());
+        target.limit(target.capacity());
+        target.put(buffer);
+        target.limit(target.position());
+        target.position(position);
+        last.mSize += amount;
+        mPending += amount;
+        checkFull();
+        mSession.getReactor().recordCoalesced();
+        return true;
+    }
+
+    private BufferPool getBufferPool() {
+        return mSession.getServer().getBufferPool();
+    }
+
+    /**
+     * @param file     The file to send data from. It will be closed once the region has been sent
+     *                 or the queue is cleared.
+     * @param position The starting position within the file.
+     * @param count    The number of bytes to send.
+     */
+    final synchronized void add(FileChannel file, long position, long count) {
+        add(new Entry(file, position, count));
+    }
+
+    private void add(Entry entry) {
+        if (mAborted) {
+            // Nothing more will ever be written, so don't hold on to it
+            entry.close();
+        } else {
+            mPending += entry.mSize;
+            mEntries.add(entry);
+            if (mStalledSince == 0) {
+                long now = System.currentTimeMillis();
+                mStalledSince = now;
+                mSession.writePending(now);
+            }
+            checkFull();
+        }
+    }
+
+    /**
+     * @param buffer Data that has already been encrypted and must be sent ahead of anything that
+     *               has not yet been encrypted. The caller's reference is passed to the queue.
+     */
+    final synchronized void addEncrypted(PooledBuffer buffer) {
+        mWire.add(new Entry(buffer.getBuffer(), buffer));
+    }
+
+    /** @return {@code true} if there is no data waiting to be written. */
+    final synchronized boolean isEmpty() {
+        return mWire.isEmpty() && mEntries.isEmpty();
+    }
+
+    private void checkFull() {
+        if (mFull) {
+            if (mPending <= mLowWater) {
+                mFull = false;
+                notifyAll();
+                mSession.outboundFullChanged(false);
+            }
+        } else if (mPending > mHighWater) {
+            mFull = true;
+            mSession.outboundFullChanged(true);
+        }
+    }
+
+    /**
+     * @param low  The number of queued bytes at or below which the queue stops being full.
+     * @param high The number of queued bytes above which the queue becomes full.
+     */
+    final synchronized void setWatermarks(long low, long high) {
+        mLowWater = low;
+        mHighWater = high;
+        checkFull();
+    }
+
+    /** @return {@code true} if the queue has exceeded its high watermark and not yet drained. */
+    final boolean isFull() {
+        return mFull;
+    }
+
+    /**
+     * @return The time at which the socket last accepted data while there was more waiting, or
+     *         when data started waiting if none has been accepted since. Returns {@code 0} if
+     *         nothing is waiting.
+     */
+    final long getStalledSince() {
+        return mStalledSince;
+    }
+
+    /** @return The number of bytes waiting to be written, not counting TLS overhead. */
+    final synchronized long getPendingBytes() {
+        return mPending;
+    }
+
+    /** Discards any data waiting to be written and releases the queue's working buffers. */
+    final synchronized void clear() {
+        for (Entry entry : mEntries) {
+            entry.close();
+        }
+        mEntries.clear();
+        for (Entry entry : mWire) {
+            entry.close();
+        }
+        mWire.clear();
+        if (mChunk != null) {
+            mChunk.release();
+            mChunk = null;
+        }
+        if (mWrapBuffer != null) {
+            mWrapBuffer.release();
+            mWrapBuffer = null;
+        }
+        mPending = 0;
+        mStalledSince = 0;
+        notifyAll();
+        checkFull();
+    }
+
+    /**
+     * Discards any data waiting to be written, as well as any data added later. Called once the
+     * socket can no longer be written to.
+     */
+    final synchronized void abort() {
+        mAborted = true;
+        clear();
+    }
+
+    /**
+     * Blocks the calling thread while the queue is full, until the socket has drained it down to
+     * the low watermark. Must not be called from a {@link Reactor} thread.
+     *
+     * @throws IOException if the socket can no longer be written to, or the thread was
+     *                     interrupted.
+     */
+    final synchronized void awaitDrain() throws IOException {
+        while (mFull && !mAborted && mSession.getChannel().isOpen()) {
+            try {
+                wait(1000);
+            } catch (InterruptedException exception) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (mAborted || !mSession.getChannel().isOpen()) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    /**
+     * Writes as much of the queued data as the socket will accept.
+     *
+     * @param channel The socket to write to.
+     * @return {@code true} if there is nothing further that can be written at this time.
+     */
+    final synchronized boolean flush(SocketChannel channel) throws IOException {
+        SSLSupport ssl     = mSession.getSSLSupport();
+        Reactor    reactor = mSession.getReactor();
+        while (true) {
+            if (!mWire.isEmpty()) {
+                int count = 0;
+                for (Entry one : mWire) {
+                    if (count == MAXIMUM_GATHER) {
+                        break;
+                    }
+                    mGather[count++] = one.mBuffer;
+                }
+                recordWrite(reactor, channel.write(mGather, 0, count));
+                Arrays.fill(mGather, 0, count, null);
+                while (!mWire.isEmpty() && !mWire.peek().mBuffer.hasRemaining()) {
+                    mWire.poll().close();
+                }
+                if (!mWire.isEmpty()) {
+                    return false;
+                }
+            }
+            Entry entry = mEntries.peek();
+            if (entry == null) {
+                return true;
+            }
+            if (ssl == null) {
+                if (entry.mBuffer != null) {
+                    int count = 0;
+                    for (Entry one : mEntries) {
+                        if (one.mBuffer == null || count == MAXIMUM_GATHER) {
+                            break;
+                        }
+                        mGather[count++] = one.mBuffer;
+                    }
+                    recordWrite(reactor, channel.write(mGather, 0, count));
+                    Arrays.fill(mGather, 0, count, null);
+                    while (entry != null && entry.mBuffer != null && !entry.mBuffer.hasRemaining()) {
+                        complete();
+                        entry = mEntries.peek();
+                    }
+                    if (entry != null && entry.mBuffer != null) {
+                        // The socket didn't take everything
+                        return false;
+                    }
+                } else {
+                    long    remaining = entry.mRemaining;
+                    boolean done      = entry.writeTo(channel, reactor);
+                    if (entry.mRemaining < remaining) {
+                        mStalledSince = System.currentTimeMillis();
+                    }
+                    if (!done) {
+                        return false;
+                    }
+                    complete();
+                }
+            } else {
+                // Encrypt as many records as will fit, so that they go out in a single write
+                int packetSize = ssl.getPacketBufferSize();
+                if (mWrapBuffer == null || mWrapBuffer.getBuffer().capacity() < packetSize * RECORDS_PER_WRITE) {
+                    if (mWrapBuffer != null) {
+                        mWrapBuffer.release();
+                    }
+                    mWrapBuffer = getBufferPool().allocateDirect(packetSize * RECORDS_PER_WRITE);
+                }
+                ByteBuffer wrapBuffer = mWrapBuffer.getBuffer();
+                wrapBuffer.clear();
+                boolean stalled = false;
+                while (entry != null && wrapBuffer.remaining() >= packetSize) {
+                    ByteBuffer plainText = entry.mBuffer != null ? entry.mBuffer : nextChunk(entry, ssl);
+                    if (!plainText.hasRemaining()) {
+                        complete();
+                        entry = mEntries.peek();
+                        continue;
+                    }
+                    int remaining = plainText.remaining();
+                    int position  = wrapBuffer.position();
+                    if (!ssl.wrap(plainText, wrapBuffer)) {
+                        clear();
+                        return true;
+                    }
+                    if (wrapBuffer.position() == position && plainText.remaining() == remaining) {
+                        // The engine isn't ready to accept application data yet
+                        stalled = true;
+                        break;
+                    }
+                }
+                wrapBuffer.flip();
+                if (wrapBuffer.hasRemaining()) {
+                    // Owned by the queue and reused, so not released when written
+                    mWire.add(new Entry(wrapBuffer, null));
+                } else if (stalled) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private void recordWrite(Reactor reactor, long amount) {
+        reactor.recordWrite(amount);
+        if (amount > 0 && mStalledSince != 0) {
+            mStalledSince = System.currentTimeMillis();
+        }
+    }
+
+    private void complete() {
+        Entry entry = mEntries.poll();
+        entry.close();
+        mPending -= entry.mSize;
+        if (mEntries.isEmpty()) {
+            mStalledSince = 0;
+        }
+        checkFull();
+    }
+
+    private ByteBuffer nextChunk(Entry entry, SSLSupport ssl) throws IOException {
+        if (mChunk == null) {
+            mChunk = getBufferPool().allocate(ssl.getApplicationBufferSize());
+            mChunk.getBuffer().flip();
+        }
+        ByteBuffer chunk = mChunk.getBuffer();
+        if (!chunk.hasRemaining() && entry.mRemaining > 0) {
+            chunk.clear();
+            chunk.limit((int) Math.min(ssl.getApplicationBufferSize(), entry.mRemaining));
+            int amount = entry.mFile.read(chunk, entry.mPosition);
+            if (amount < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            entry.mPosition += amount;
+            entry.mRemaining -= amount;
+            chunk.flip();
+        }
+        return chunk;
+    }
+
+    private static class Entry {
+        ByteBuffer   mBuffer;
+        PooledBuffer mPooled;
+        FileChannel  mFile;
+        long         mPosition;
+        long         mRemaining;
+        long         mSize;
+        boolean      mCoalesced;
+
+        Entry(ByteBuffer buffer, PooledBuffer pooled) {
+            mBuffer = buffer;
+            mPooled = pooled;
+            mSize = buffer.remaining();
+        }
+
+        Entry(FileChannel file, long position, long count) {
+            mFile = file;
+            mPosition = position;
+            mRemaining = count;
+            mSize = count;
+        }
+
+        boolean isDone() {
+            return mBuffer != null ? !mBuffer.hasRemaining() : mRemaining <= 0;
+        }
+
+        /** @return {@code true} if the entry has been completely written. */
+        boolean writeTo(SocketChannel channel, Reactor reactor) throws IOException {
+            if (mBuffer != null) {
+                reactor.recordWrite(channel.write(mBuffer));
+            } else {
+                while (mRemaining > 0) {
+                    long amount = mFile.transferTo(mPosition, mRemaining, channel);
+                    reactor.recordWrite(amount);
+                    if (amount <= 0) {
+                        if (mPosition >= mFile.size()) {
+                            throw new IOException("Unexpected end of file");
+                        }
+                        break;
+                    }
+                    mPosition += amount;
+                    mRemaining -= amount;
+                }
+            }
+            return isDone();
+        }
+
+        void close() {
+            if (mPooled != null) {
+                mPooled.release();
+                mPooled = null;
+            }
+            if (mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException ioe) {
+                    Log.error(ioe);
+                }
+                mFile = null;
+            }
+        }
+    }
+}
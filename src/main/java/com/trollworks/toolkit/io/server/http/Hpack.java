@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The parts of HPACK (RFC 7541) shared by {@link HpackEncoder} and {@link HpackDecoder}: the
+ * static table, the dynamic table and the Huffman code. Field names and values are held as
+ * ISO-8859-1 strings, so that each char is exactly one octet of the original field.
+ */
+final class Hpack {
+    /** The default size of the dynamic table, in octets. */
+    static final         int                  DEFAULT_TABLE_SIZE = 4096;
+    private static final String[]             STATIC_NAMES       = {null, ":authority", ":method", ":method", ":path", ":path", ":scheme", ":scheme", ":status", ":status", ":status", ":status", ":status", ":status", ":status", "accept-charset", "accept-encoding", "accept-language", "accept-ranges", "accept", "access-control-allow-origin", "age", "allow", "authorization", "cache-control", "content-disposition", "content-encoding", "content-language", "content-length", "content-location", "content-range", "content-type", "cookie", "date", "etag", "expect", "expires", "from", "host", "if-match", "if-modified-since", "if-none-match", "if-range", "if-unmodified-since", "last-modified", "link", "location", "max-forwards", "proxy-authenticate", "proxy-authorization", "range", "referer", "refresh", "retry-after", "server", "set-cookie", "strict-transport-security", "transfer-encoding", "user-agent", "vary", "via", "www-authenticate"};
+    private static final String[]             STATIC_VALUES      = {null, "", "GET", "POST", "/", "/index.html", "http", "https", "200", "204", "206", "304", "400", "404", "500", "", "gzip, deflate"};
+    /** The number of entries in the static table. Dynamic table indexes follow on from it. */
+    static final         int                  STATIC_COUNT       = STATIC_NAMES.length - 1;
+    private static final Map<String, Integer> STATIC_NAME_INDEX  = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELD_INDEX = new HashMap<>();
+    private static final int[]                HUFFMAN_CODES      = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc,
+        0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2,
+        0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14,
+        0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19,
+        0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61,
+        0x62, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd,
+        0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28, 0x29,
+        0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc,
+        0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb,
+        0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4,
+        0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6,
+        0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+        0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+        0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7,
+        0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+        0x3fffffff
+    };
+    private static final byte[]               HUFFMAN_LENGTHS    = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28,
+        28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6,
+        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6,
+        5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23,
+        23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22,
+        22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25,
+        26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21,
+        21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30
+    };
+    private static final int                  EOS                = 256;
+    /**
+     * The Huffman code as a binary tree. The children of node n are at 2n and 2n+1, for a 0 and 1
+     * bit respectively. A positive entry is the index of a child node, and a negative entry is a
+     * leaf, holding the one's complement of its symbol.
+     */
+    private static final int[]                HUFFMAN_TREE;
+
+    static {
+        for (int i = STATIC_COUNT; i > 0; i--) {
+            // Iterating backwards leaves the lowest index for each name
+            STATIC_NAME_INDEX.put(STATIC_NAMES[i], Integer.valueOf(i));
+            STATIC_FIELD_INDEX.put(STATIC_NAMES[i] + ':' + getStaticValue(i), Integer.valueOf(i));
+        }
+        int[] tree  = new int[4 * HUFFMAN_CODES.length];
+        int   nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int index = node * 2 + (code >>> bit & 1);
+                if (tree[index] == 0) {
+                    tree[index] = nodes++;
+                }
+                node = tree[index];
+            }
+            tree[node * 2 + (code & 1)] = ~symbol;
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    private static String getStaticValue(int index) {
+        return index < STATIC_VALUES.length ? STATIC_VALUES[index] : "";
+    }
+
+    /**
+     * @param name The field name.
+     * @return The lowest index in the static table with the field name, or {@code 0} if there is
+     *         none.
+     */
+    static int findStaticName(String name) {
+        Integer index = STATIC_NAME_INDEX.get(name);
+        return index != null ? index.intValue() : 0;
+    }
+
+    /**
+     * @param name  The field name.
+     * @param value The field value.
+     * @return The index in the static table of the field, or {@code 0} if there is none.
+     */
+    static int findStaticField(String name, String value) {
+        Integer index = STATIC_FIELD_INDEX.get(name + ':' + value);
+        return index != null ? index.intValue() : 0;
+    }
+
+    /**
+     * @param value The string to measure.
+     * @return The number of octets the string occupies once Huffman encoded.
+     */
+    static int getHuffmanLength(String value) {
+        long bits   = 0;
+        int  length = value.length();
+        for (int i = 0; i < length; i++) {
+            bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xFF];
+        }
+        return (int) ((bits + 7) >>> 3);
+    }
+
+    /**
+     * @param value  The string to encode.
+     * @param out    The buffer to write the encoded octets to.
+     * @param offset The offset to start writing at. There must be room for {@link
+     *               #getHuffmanLength(String)} octets.
+     * @return The offset following the encoded octets.
+     */
+    static int encodeHuffman(String value, byte[] out, int offset) {
+        long bits   = 0;
+        int  count  = 0;
+        int  length = value.length();
+        for (int i = 0; i < length; i++) {
+            int symbol = value.charAt(i) & 0xFF;
+            int size   = HUFFMAN_LENGTHS[symbol];
+            bits = bits << size | HUFFMAN_CODES[symbol];
+            count += size;
+            while (count >= 8) {
+                count -= 8;
+                out[offset++] = (byte) (bits >>> count);
+            }
+        }
+        if (count > 0) {
+            // Pad with the most significant bits of the EOS symbol, which are all ones
+            out[offset++] = (byte) (bits << 8 - count | 0xFF >>> count);
+        }
+        return offset;
+    }
+
+    /**
+     * @param in     The buffer holding the encoded octets.
+     * @param offset The offset of the first encoded octet.
+     * @param length The number of encoded octets.
+     * @param out    The builder to append the decoded characters to.
+     */
+    static void decodeHuffman(byte[] in, int offset, int length, StringBuilder out) throws Http2Exception {
+        int     node    = 0;
+        int     pending = 0;
+        boolean padding = true;
+        for (int end = offset + length; offset < end; offset++) {
+            int octet = in[offset];
+            for (int shift = 7; shift >= 0; shift--) {
+                int bit  = octet >>> shift & 1;
+                int next = HUFFMAN_TREE[node * 2 + bit];
+                if (next < 0) {
+                    if (~next == EOS) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "EOS in Huffman encoded string");
+                    }
+                    out.append((char) ~next);
+                    node = 0;
+                    pending = 0;
+                    padding = true;
+                } else {
+                    node = next;
+                    pending++;
+                    padding &= bit == 1;
+                }
+            }
+        }
+        if (pending > 7 || !padding) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid Huffman padding");
+        }
+    }
+
+    /**
+     * The dynamic table. Entries are numbered from the most recently added, starting at {@link
+     * #STATIC_COUNT} + 1.
+     */
+    static final class Table {
+        /** The overhead RFC 7541 adds to the length of the name and value of an entry. */
+        private static final int      ENTRY_OVERHEAD = 32;
+        private              String[] mNames         = new String[16];
+        private              String[] mValues        = new String[16];
+        private              int      mFirst;
+        private              int      mCount;
+        private              int      mSize;
+        private              int      mMaxSize       = DEFAULT_TABLE_SIZE;
+
+        /** @return The number of entries. */
+        final int getCount() {
+            return mCount;
+        }
+
+        /** @return The maximum size, in octets. */
+        final int getMaxSize() {
+            return mMaxSize;
+        }
+
+        /** @param maxSize The maximum size, in octets. Entries are evicted to fit. */
+        final void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            evict(0);
+        }
+
+        /**
+         * @param index The index of the entry, counting the static table.
+         * @return The name of the entry.
+         */
+        final String getName(int index) throws Http2Exception {
+            if (index > 0 && index <= STATIC_COUNT) {
+                return STATIC_NAMES[index];
+            }
+            return mNames[slot(index)];
+        }
+
+        /**
+         * @param index The index of the entry, counting the static table.
+         * @return The value of the entry.
+         */
+        final String getValue(int index) throws Http2Exception {
+            if (index > 0 && index <= STATIC_COUNT) {
+                return getStaticValue(index);
+            }
+            return mValues[slot(index)];
+        }
+
+        private int slot(int index) throws Http2Exception {
+            index -= STATIC_COUNT + 1;
+            if (index < 0 || index >= mCount) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid table index");
+            }
+            return (mFirst + index) % mNames.length;
+        }
+
+        /**
+         * @param name  The field name.
+         * @param value The field value, or {@code null} to match on the name alone.
+         * @return The index of the most recently added entry that matches, counting the static
+         *         table, or {@code 0} if there is none.
+         */
+        final int find(String name, String value) {
+            for (int i = 0; i < mCount; i++) {
+                int slot = (mFirst + i) % mNames.length;
+                if (mNames[slot].equals(name) && (value == null || mValues[slot].equals(value))) {
+                    return STATIC_COUNT + 1 + i;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Adds an entry, evicting older ones to make room. An entry larger than the table empties
+         * the table and is not added.
+         *
+         * @param name  The field name.
+         * @param value The field value.
+         */
+        final void add(String name, String value) {
+            int size = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(size);
+            if (size > mMaxSize) {
+                return;
+            }
+            if (mCount == mNames.length) {
+                String[] names  = new String[mCount * 2];
+                String[] values = new String[mCount * 2];
+                for (int i = 0; i < mCount; i++) {
+                    int slot = (mFirst + i) % mCount;
+                    names[i] = mNames[slot];
+                    values[i] = mValues[slot];
+                }
+                mNames = names;
+                mValues = values;
+                mFirst = 0;
+            }
+            mFirst = (mFirst + mNames.length - 1) % mNames.length;
+            mNames[mFirst] = name;
+            mValues[mFirst] = value;
+            mCount++;
+            mSize += size;
+        }
+
+        private void evict(int needed) {
+            while (mCount > 0 && mSize + needed > mMaxSize) {
+                int slot = (mFirst + mCount - 1) % mNames.length;
+                mSize -= mNames[slot].length() + mValues[slot].length() + ENTRY_OVERHEAD;
+                mNames[slot] = null;
+                mValues[slot] = null;
+                mCount--;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks. Every block received on a connection must be decoded, in the order
+ * received, even those for streams that are about to be refused, as each may change the dynamic
+ * table that later blocks refer to.
+ */
+final class HpackDecoder {
+    /** The overhead RFC 7540 adds to the length of each field when measuring a header list. */
+    private static final int           FIELD_OVERHEAD = 32;
+    private              Hpack.Table   mTable         = new Hpack.Table();
+    private              StringBuilder mBuffer        = new StringBuilder();
+    private              byte[]        mBlock;
+    private              int           mPosition;
+    private              int           mLimit;
+
+    /**
+     * @param block   The header block.
+     * @param length  The number of bytes in the header block.
+     * @param maxSize The maximum size of the decoded header list, measured as RFC 7540 measures
+     *                SETTINGS_MAX_HEADER_LIST_SIZE.
+     * @return The names and values of the fields, alternating, or {@code null} if the header list
+     *         exceeds the maximum size. The whole block is decoded either way.
+     */
+    final List<String> decode(byte[] block, int length, int maxSize) throws Http2Exception {
+        List<String> fields    = new ArrayList<>();
+        int          size      = 0;
+        boolean      fieldSeen = false;
+        mBlock = block;
+        mPosition = 0;
+        mLimit = length;
+        try {
+            while (mPosition < mLimit) {
+                int    first = mBlock[mPosition] & 0xFF;
+                String name;
+                String value;
+                if ((first & 0x80) != 0) {
+                    int index = readInteger(7);
+                    if (index == 0) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid table index");
+                    }
+                    name = mTable.getName(index);
+                    value = mTable.getValue(index);
+                } else if ((first & 0xE0) == 0x20) {
+                    if (fieldSeen) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size update after a field");
+                    }
+                    int max = readInteger(5);
+                    if (max > Hpack.DEFAULT_TABLE_SIZE) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size exceeds the limit");
+                    }
+                    mTable.setMaxSize(max);
+                    continue;
+                } else {
+                    // Literals with incremental indexing have a 6-bit prefix, the rest a 4-bit one
+                    boolean indexed = (first & 0xC0) == 0x40;
+                    int     index   = readInteger(indexed ? 6 : 4);
+                    name = index != 0 ? mTable.getName(index) : readString();
+                    value = readString();
+                    if (indexed) {
+                        mTable.add(name, value);
+                    }
+                }
+                fieldSeen = true;
+                size += name.length() + value.length() + FIELD_OVERHEAD;
+                if (size <= maxSize) {
+                    fields.add(name);
+                    fields.add(value);
+                }
+            }
+        } finally {
+            mBlock = null;
+        }
+        return size <= maxSize ? fields : null;
+    }
+
+    private int readInteger(int prefixBits) throws Http2Exception {
+        int max   = (1 << prefixBits) - 1;
+        int value = mBlock[mPosition++] & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; shift <= 21; shift += 7) {
+            if (mPosition >= mLimit) {
+                break;
+            }
+            int octet = mBlock[mPosition++];
+            value += (octet & 0x7F) << shift;
+            if ((octet & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid integer");
+    }
+
+    private String readString() throws Http2Exception {
+        if (mPosition >= mLimit) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated string");
+        }
+        boolean huffman = (mBlock[mPosition] & 0x80) != 0;
+        int     length  = readInteger(7);
+        if (length > mLimit - mPosition) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated string");
+        }
+        String value;
+        if (huffman) {
+            mBuffer.setLength(0);
+            Hpack.decodeHuffman(mBlock, mPosition, length, mBuffer);
+            value = mBuffer.toString();
+        } else {
+            value = new String(mBlock, mPosition, length, StandardCharsets.ISO_8859_1);
+        }
+        mPosition += length;
+        return value;
+    }
+}
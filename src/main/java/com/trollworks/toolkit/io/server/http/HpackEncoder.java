@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Encodes HPACK header blocks. Fields whose values tend to repeat from one response to the next
+ * are added to the dynamic table, so that later responses can refer to them with a single byte.
+ * Fields that change with every response are not, so that they don't push out the ones that
+ * don't, and credentials are marked as never to be indexed by intermediaries either. Strings are
+ * Huffman encoded whenever that makes them shorter. Blocks must be sent in the order they are
+ * encoded.
+ */
+final class HpackEncoder {
+    private static final Set<String> UNINDEXED     = Set.of("content-length", "content-range", "date", "etag", "last-modified", "location");
+    private static final Set<String> SENSITIVE     = Set.of("authorization", "cookie", "proxy-authorization", "set-cookie");
+    private              Hpack.Table mTable        = new Hpack.Table();
+    private              int         mSmallestSize = -1;
+    private              byte[]      mBlock        = new byte[1024];
+    private              int         mLength;
+
+    /**
+     * @param size The value of the remote end's SETTINGS_HEADER_TABLE_SIZE. The change is
+     *             signalled at the start of the next block.
+     */
+    final void setMaxTableSize(int size) {
+        size = Math.min(size, Hpack.DEFAULT_TABLE_SIZE);
+        if (size != mTable.getMaxSize()) {
+            // Should the size shrink and then grow again, the decoder must still be told of the
+            // smallest, so that it evicts the same entries as the encoder
+            if (mSmallestSize == -1 || size < mSmallestSize) {
+                mSmallestSize = size;
+            }
+            mTable.setMaxSize(size);
+        }
+    }
+
+    /** Starts a new header block, discarding the previous one. */
+    final void begin() {
+        mLength = 0;
+        if (mSmallestSize != -1) {
+            writeInteger(0x20, 5, mSmallestSize);
+            if (mSmallestSize != mTable.getMaxSize()) {
+                writeInteger(0x20, 5, mTable.getMaxSize());
+            }
+            mSmallestSize = -1;
+        }
+    }
+
+    /**
+     * Adds a field to the header block.
+     *
+     * @param name  The field name, in lowercase.
+     * @param value The field value, with each char holding one octet.
+     */
+    final void encode(String name, String value) {
+        int index = Hpack.findStaticField(name, value);
+        if (index == 0) {
+            index = mTable.find(name, value);
+        }
+        if (index != 0) {
+            writeInteger(0x80, 7, index);
+            return;
+        }
+        index = Hpack.findStaticName(name);
+        if (index == 0) {
+            index = mTable.find(name, null);
+        }
+        if (SENSITIVE.contains(name)) {
+            writeInteger(0x10, 4, index);
+        } else if (UNINDEXED.contains(name)) {
+            writeInteger(0x00, 4, index);
+        } else {
+            writeInteger(0x40, 6, index);
+            mTable.add(name, value);
+        }
+        if (index == 0) {
+            writeString(name);
+        }
+        writeString(value);
+    }
+
+    /** @return The buffer holding the header block. */
+    final byte[] getBlock() {
+        return mBlock;
+    }
+
+    /** @return The number of bytes in the header block. */
+    final int getLength() {
+        return mLength;
+    }
+
+    private void ensureCapacity(int amount) {
+        if (mLength + amount > mBlock.length) {
+            mBlock = Arrays.copyOf(mBlock, Math.max(mBlock.length * 2, mLength + amount));
+        }
+    }
+
+    private void writeInteger(int pattern, int prefixBits, int value) {
+        ensureCapacity(6);
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            mBlock[mLength++] = (byte) (pattern | value);
+            return;
+        }
+        mBlock[mLength++] = (byte) (pattern | max);
+        value -= max;
+        while (value >= 0x80) {
+            mBlock[mLength++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        mBlock[mLength++] = (byte) value;
+    }
+
+    private void writeString(String value) {
+        int length  = value.length();
+        int huffman = Hpack.getHuffmanLength(value);
+        if (huffman < length) {
+            writeInteger(0x80, 7, huffman);
+            ensureCapacity(huffman);
+            mLength = Hpack.encodeHuffman(value, mBlock, mLength);
+        } else {
+            writeInteger(0x00, 7, length);
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                mBlock[mLength++] = (byte) value.charAt(i);
+            }
+        }
+    }
+}
@@ -13,51 +13,42 @@ package com.trollworks.toolkit.io.server.http;
 
 import com.trollworks.toolkit.io.Log;
 import com.trollworks.toolkit.io.server.Personality;
+import com.trollworks.toolkit.io.server.PooledBuffer;
 import com.trollworks.toolkit.io.server.Session;
+import com.trollworks.toolkit.io.server.sse.EventSource;
+import com.trollworks.toolkit.io.server.sse.EventStream;
 import com.trollworks.toolkit.io.server.websocket.WebSocket;
 import com.trollworks.toolkit.io.server.websocket.WebSocketFactory;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /** A {@link Personality} for handling HTTP connections. */
 public class Http extends Personality {
-    private static final int                       MAXIMUM_HEADER_SIZE  = 8 * 1024;
-    private static final int                       MAXIMUM_CONTENT_SIZE = 1024 * 1024;
-    private static final Pattern                   REQUEST_PATTERN      = Pattern.compile("^(\\S+)\\s+(\\S+)\\s+HTTP/(\\d+)\\.(\\d+)$");
-    private              HttpSessionFactory        mFactory;
-    private              int                       mState;
-    private              int                       mContentSize;
-    private              ByteArrayOutputStream     mBuffer              = new ByteArrayOutputStream(MAXIMUM_HEADER_SIZE);
-    private              byte[]                    mBody;
-    private              String                    mUri;
-    private              HttpMethod                mMethod;
-    private              int                       mVersionMajor;
-    private              int                       mVersionMinor;
-    private              Map<String, List<String>> mParameters          = new HashMap<>();
-    private              Map<String, List<String>> mHeaders             = new HashMap<>();
+    private static final byte[]                               CONTINUE        = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private              HttpSessionFactory                   mFactory;
+    private              HttpRequestParser                    mParser         = new HttpRequestParser();
+    private              String                               mUri;
+    private              Map<String, List<String>>            mParameters     = new HashMap<>();
+    private              HttpRouter.Route<HttpRequestHandler> mRoute;
+    private              Map<String, String>                  mPathParameters = Collections.emptyMap();
+    private              boolean                              mFailed;
 
     /** @param factory The factory to use when creating new {@link Session}s. */
     public Http(HttpSessionFactory factory) {
@@ -70,24 +61,87 @@ public class Http extends Personality {
     }
 
     private void reset() {
-        mState = 0;
-        mContentSize = 0;
-        mBuffer = new ByteArrayOutputStream(MAXIMUM_HEADER_SIZE);
-        mBody = null;
+        mParser.reset();
         mUri = null;
-        mMethod = null;
-        mVersionMajor = 0;
-        mVersionMinor = 0;
-        mParameters = new HashMap<>();
-        mHeaders = new HashMap<>();
+        mParameters.clear();
+        mRoute = null;
+        mPathParameters = Collections.emptyMap();
     }
 
     @Override
     public void processInput(ByteBuffer buffer) throws IOException {
-        while (buffer.hasRemaining()) {
-            if (parse(buffer.get())) {
-                processRequest();
-                reset();
+        if (mFailed) {
+            // Discard anything further the remote end sends
+            buffer.position(buffer.limit());
+            return;
+        }
+        try {
+            while (true) {
+                if (buffer.hasRemaining() && mParser.isReadingHeader()) {
+                    headerStarted();
+                }
+                int result = mParser.parse(buffer);
+                if (result == HttpRequestParser.HEADER_COMPLETE) {
+                    headerCompleted();
+                    if (mParser.isPreface()) {
+                        startHttp2();
+                        break;
+                    }
+                    beginRequest();
+                } else if (result == HttpRequestParser.REQUEST_COMPLETE) {
+                    prepareRequest();
+                    processRequest();
+                    reset();
+                    if (getSession().getPersonality() != this) {
+                        // Upgraded to another protocol, which will handle any remaining data
+                        break;
+                    }
+                } else {
+                    break;
+                }
+            }
+        } catch (HttpResponseException re) {
+            mFailed = true;
+            buffer.position(buffer.limit());
+            HttpResponse response = new HttpResponse(re.getStatus(), MimeTypes.TEXT, re.getMessage());
+            response.addHeader("Connection", "close");
+            response.send(this);
+            closeAfterResponse(false);
+        }
+    }
+
+    private void beginRequest() throws IOException {
+        String uri   = mParser.getRawUri();
+        int    index = uri.indexOf('?');
+        if (index != -1) {
+            if (uri.length() > index + 1) {
+                decodeParameters(uri.substring(index + 1));
+            }
+            uri = uri.substring(0, index);
+        }
+        mUri = decodePercent(uri);
+        mRoute = mFactory.routeHttpRequest(getMethod(), mUri);
+        if (mRoute != null) {
+            mPathParameters = mRoute.getParameters();
+        }
+        if (mParser.hasBody()) {
+            HttpRequestHandler handler = mRoute != null ? mRoute.getHandler() : null;
+            if (handler instanceof HttpStreamingRequestHandler) {
+                mParser.setBodyChannel(((HttpStreamingRequestHandler) handler).openHttpBody(this));
+            }
+            if ("100-continue".equalsIgnoreCase(getFirstHeader("expect"))) {
+                sendContinue();
+            }
+        }
+    }
+
+    private void prepareRequest() {
+        if (HttpMethod.POST == getMethod() && mParser.getBodyLength() > 0) {
+            if ("application/x-www-form-urlencoded".equals(getFirstHeader("content-type"))) {
+                StringTokenizer tokenizer = new StringTokenizer(new String(mParser.getBody(), 0, mParser.getBodyLength(), StandardCharsets.UTF_8), "\r\n");
+                while (tokenizer.hasMoreTokens()) {
+                    decodeParameters(tokenizer.nextToken());
+                }
             }
         }
     }
@@ -101,78 +155,112 @@ public class Http extends Personality {
             }
 
             if (hasHeader("upgrade")) {
-                upgradeToWebSocket();
-                return;
+                if (!"h2c".equalsIgnoreCase(getFirstHeader("upgrade"))) {
+                    upgradeToWebSocket();
+                    return;
+                }
+                if (canUpgradeToHttp2()) {
+                    upgradeToHttp2();
+                    return;
+                }
+                // Otherwise the upgrade is ignored, and the request answered as usual
             }
 
-            HttpRequestHandler handler = mFactory.getHttpHandler(mUri);
-            if (handler != null) {
-                handler.handleHttpRequest(this).send(this);
+            if (getMethod() == HttpMethod.GET) {
+                HttpRouter.Route<EventSource> events = mFactory.routeEventSource(mUri);
+                if (events != null) {
+                    openEventStream(events);
+                    return;
+                }
+            }
+
+            if (mRoute != null) {
+                if (mRoute.getHandler() == null) {
+                    HttpResponse response = new HttpResponse(HttpStatusCode.METHOD_NOT_ALLOWED, MimeTypes.TEXT, "METHOD NOT ALLOWED");
+                    response.addHeader("Allow", mRoute.getAllowedMethods());
+                    response.send(this);
+                } else {
+                    respond(mRoute);
+                }
             } else {
-                if (!Files.exists(path)) {
+                HttpStaticContent content = mFactory.getStaticContent();
+                HttpStaticFile    file    = content.lookup(path);
+                if (file == null) {
                     throw new HttpResponseException(HttpStatusCode.NOT_FOUND, "File not found");
                 }
 
-                if (Files.isDirectory(path)) {
+                if (file.isDirectory()) {
                     if (!mUri.endsWith("/")) {
                         HttpResponse response = new HttpResponse(HttpStatusCode.REDIRECT, MimeTypes.HTML, "<html><body>Redirected: <a href=\"" + mUri + "/\">" + mUri + "/</a></body></html>");
                         response.addHeader("Location", mUri + "/");
                         response.send(this);
-                        requestClose(false);
+                        closeAfterResponse(false);
                         return;
                     }
-                    handler = mFactory.getHttpHandler(mUri + "index.html");
-                    if (handler != null) {
-                        handler.handleHttpRequest(this).send(this);
+                    HttpRouter.Route<HttpRequestHandler> index = mFactory.routeHttpRequest(getMethod(), mUri + "index.html");
+                    if (index != null && index.getHandler() != null) {
+                        mPathParameters = index.getParameters();
+                        respond(index);
                         closeIfNotKeepAlive();
                         return;
                     }
-                    Path newPath = path.resolve("index.html");
-                    if (Files.exists(newPath)) {
-                        path = newPath;
-                    } else {
+                    file = content.lookup(path.resolve("index.html"));
+                    if (file == null || file.isDirectory()) {
                         throw new HttpResponseException(HttpStatusCode.FORBIDDEN, "FORBIDDEN: No directory listings");
                     }
                 }
 
-                try {
-                    String name = path.getFileName().toString();
-                    int    dot  = name.lastIndexOf('.');
-                    if (dot != -1 && dot + 1 < name.length()) {
-                        name = name.substring(dot + 1);
-                    }
-                    String       mime     = MimeTypes.lookup(name);
-                    long         size     = Files.size(path);
-                    HttpResponse response = new HttpResponse(HttpStatusCode.OK, mime, path);
-                    response.addHeader("Content-Length", Long.toString(size));
-                    response.setRequestMethod(mMethod);
-                    response.send(this);
-                } catch (IOException ioe) {
-                    throw new HttpResponseException(HttpStatusCode.FORBIDDEN, "FORBIDDEN: Reading file failed");
+                HttpResponse response;
+                if (HttpStaticContent.isNotModified(this, file)) {
+                    response = new HttpResponse(HttpStatusCode.NOT_MODIFIED, null, null);
+                } else {
+                    response = new HttpResponse(HttpStatusCode.OK, file.getMimeType(), file);
                 }
+                response.addHeader("ETag", file.getETag());
+                response.addHeader("Last-Modified", file.getLastModifiedText());
+                response.setRequestMethod(getMethod());
+                response.send(this);
             }
             closeIfNotKeepAlive();
-        } catch (SocketTimeoutException timeoutEx) {
-            throw timeoutEx;
         } catch (HttpResponseException re) {
             HttpResponse response = new HttpResponse(re.getStatus(), MimeTypes.TEXT, re.getMessage());
             response.send(this);
-            requestClose(false);
+            closeAfterResponse(false);
         } catch (IOException ioe) {
             HttpResponse response = new HttpResponse(HttpStatusCode.INTERNAL_ERROR, MimeTypes.TEXT, "INTERNAL ERROR: " + ioe.getMessage());
             response.send(this);
-            requestClose(false);
+            closeAfterResponse(false);
         } catch (Exception exception) {
             Log.warn(getSession(), exception);
             HttpResponse response = new HttpResponse(HttpStatusCode.INTERNAL_ERROR, MimeTypes.TEXT, "INTERNAL ERROR: " + exception.getMessage());
             response.send(this);
-            requestClose(false);
+            closeAfterResponse(false);
+        }
+    }
+
+    private void respond(HttpRouter.Route<HttpRequestHandler> route) throws IOException {
+        long    start  = System.nanoTime();
+        boolean failed = true;
+        try {
+            HttpResponse response = route.getHandler().handleHttpRequest(this);
+            if (getMethod() == HttpMethod.HEAD && response.getRequestMethod() == null) {
+                // May have been routed to a GET handler, so make sure no body is sent
+                response.setRequestMethod(HttpMethod.HEAD);
+            }
+            response.send(this);
+            failed = response.getStatus() == null || response.getStatus().getRequestStatus() >= 500;
+        } catch (HttpResponseException re) {
+            // A deliberate error response only counts against the handler if it is a server error
+            failed = re.getStatus().getRequestStatus() >= 500;
+            throw re;
+        } finally {
+            getSession().getServer().getMetrics().recordHandler(route.getPattern(), System.nanoTime() - start, failed);
         }
     }
 
     private void closeIfNotKeepAlive() {
         if ("close".equals(getFirstHeader("connection"))) {
-            requestClose(false);
+            closeAfterResponse(false);
         }
     }
 
@@ -188,18 +276,23 @@ public class Http extends Personality {
             HttpResponse response = new HttpResponse(HttpStatusCode.BAD_REQUEST, MimeTypes.TEXT, "Unsupported websocket version specification");
             response.addHeader("Sec-WebSocket-Version", "13");
             response.send(this);
-            requestClose(false);
+            closeAfterResponse(false);
             return;
         }
         String key = getFirstHeader("sec-websocket-key");
         if (key == null) {
             throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid key");
         }
-        WebSocketFactory factory = mFactory.getWebSocketFactory(mUri);
+        HttpRouter.Route<WebSocketFactory> route   = mFactory.routeWebSocket(mUri);
+        WebSocketFactory                   factory = route != null ? route.getHandler() : null;
         if (factory == null) {
             throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: No handler");
         }
+        mPathParameters = route.getParameters();
         WebSocket ws = factory.createWebSocket(this);
+        if (ws.getTimeouts() == null) {
+            ws.setTimeouts(mFactory.getWebSocketTimeouts());
+        }
         getSession().setPersonality(ws);
         HttpResponse response = new HttpResponse(HttpStatusCode.SWITCHING_PROTOCOLS);
         response.addHeader("Upgrade", "WebSocket");
@@ -207,142 +300,64 @@ public class Http extends Personality {
         MessageDigest md = MessageDigest.getInstance("SHA1");
         md.update((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.UTF_8));
         response.addHeader("Sec-WebSocket-Accept", Base64.getEncoder().encodeToString(md.digest()));
+        String extensions = ws.negotiateExtensions(getHeader("sec-websocket-extensions"));
+        if (extensions != null) {
+            response.addHeader("Sec-WebSocket-Extensions", extensions);
+        }
         response.send(this);
         ws.startConnection();
     }
 
-    private boolean parse(byte b) throws IOException {
-        mBuffer.write(b & 0xFF);
-        switch (mState) {
-        case 0:
-            if (b == '\r') {
-                mState = 1;
-            }
-            break;
-        case 1:
-            if (b == '\n') {
-                mState = 2;
-            } else if (b != '\r') {
-                mState = 0;
-            }
-            break;
-        case 2:
-            mState = b == '\r' ? 3 : 0;
-            break;
-        case 3:
-            if (b == '\n') {
-                mState = 4;
-                parseHeaders();
-                return mContentSize == 0;
-            }
-            mState = b == '\r' ? 1 : 0;
-            break;
-        case 4:
-            if (mContentSize != -1 && mBuffer.size() == mContentSize) {
-                parseBody();
-                return true;
-            }
-            return false;
-        default:
-            throw new EOFException("Read past end of request");
+    private void openEventStream(HttpRouter.Route<EventSource> route) throws IOException {
+        if (getVersionMajor() != 1) {
+            // A stream multiplexed over the connection can't take over the connection
+            throw new HttpResponseException(HttpStatusCode.HTTP_VERSION_NOT_SUPPORTED, "HTTP VERSION NOT SUPPORTED: Event streams require HTTP/1.x");
         }
-        if (mBuffer.size() > MAXIMUM_HEADER_SIZE) {
-            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Header too large");
-        }
-        return false;
+        mPathParameters = route.getParameters();
+        EventStream stream = new EventStream(route.getHandler());
+        stream.setTimeouts(mFactory.getEventStreamTimeouts());
+        getSession().setPersonality(stream);
+        // With neither a length nor chunking, the body runs until the connection closes
+        HttpResponse response = new HttpResponse(HttpStatusCode.OK, MimeTypes.EVENT_STREAM, null);
+        response.addHeader("Cache-Control", "no-cache");
+        response.send(this);
+        stream.startConnection(getFirstHeader("last-event-id"));
     }
 
-    private void parseHeaders() throws IOException {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mBuffer.toByteArray()), StandardCharsets.UTF_8))) {
-            String line = in.readLine();
-            if (line == null) {
-                throw new SocketTimeoutException();
-            }
-
-            Matcher matcher = REQUEST_PATTERN.matcher(line);
-            if (!matcher.find() || matcher.groupCount() != 4) {
-                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
-            }
-
-            mMethod = HttpMethod.lookup(matcher.group(1));
-            if (mMethod == null) {
-                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
-            }
-
-            mUri = matcher.group(2);
-            mVersionMajor = Integer.parseInt(matcher.group(3));
-            mVersionMinor = Integer.parseInt(matcher.group(4));
-
-            int index = mUri.indexOf('?');
-            if (index != -1) {
-                if (mUri.length() > index + 1) {
-                    decodeParameters(mUri.substring(index + 1));
-                }
-                mUri = mUri.substring(0, index);
-            }
-            mUri = decodePercent(mUri);
-
-            line = in.readLine();
-            while (line != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    break;
-                }
-                index = line.indexOf(':');
-                if (index != -1) {
-                    String       name = line.substring(0, index).trim().toLowerCase();
-                    List<String> list = mHeaders.get(name);
-                    if (list == null) {
-                        list = new ArrayList<>();
-                        mHeaders.put(name, list);
-                    }
-                    if (++index < line.length()) {
-                        list.add(line.substring(index).trim());
-                    }
-                }
-                line = in.readLine();
-            }
-            mBuffer.reset();
-            String hdr = getFirstHeader("content-length");
-            if (hdr == null) {
-                mContentSize = 0;
-            } else {
-                try {
-                    mContentSize = Integer.parseInt(hdr);
-                    if (mContentSize > 0) {
-                        if (mContentSize > MAXIMUM_CONTENT_SIZE) {
-                            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Content too large");
-                        }
-                        if (mContentSize > MAXIMUM_HEADER_SIZE) {
-                            mBuffer = new ByteArrayOutputStream(mContentSize);
-                        }
-                    } else {
-                        mContentSize = 0;
-                    }
-                } catch (Exception exception) {
-                    // No support for indeterminate content size for now, as I don't need it. Assume zero in
-                    // this case.
-                    mContentSize = 0;
-                }
-            }
+    private void startHttp2() throws IOException {
+        if (!mFactory.isHttp2Enabled() || isSecure()) {
+            // Over TLS, HTTP/2 may only be negotiated with ALPN
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
         }
+        // The request line and blank line that make up the first part of the preface have been
+        // consumed, leaving the rest for the new personality
+        Http2 http2 = new Http2(mFactory, true);
+        getSession().setPersonality(http2);
+        http2.start(null);
     }
 
-    private void parseBody() throws IOException {
-        mState = 5;
-        mBody = mBuffer.toByteArray();
-        mBuffer = null;
-        if (HttpMethod.POST == mMethod) {
-            if ("application/x-www-form-urlencoded".equals(getFirstHeader("content-type"))) {
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mBody), StandardCharsets.UTF_8))) {
-                    String line = in.readLine();
-                    while (line != null) {
-                        decodeParameters(line);
-                        line = in.readLine();
-                    }
-                }
-            }
+    private boolean canUpgradeToHttp2() {
+        // An upgrade to h2c isn't permitted over TLS, and a request whose body has already been
+        // read can't be replayed as a stream
+        return mFactory.isHttp2Enabled() && !isSecure() && !mParser.hasBody() && getHeader("http2-settings") != null && getHeader("http2-settings").size() == 1;
+    }
+
+    private void upgradeToHttp2() throws IOException {
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(getFirstHeader("http2-settings").trim());
+        } catch (IllegalArgumentException exception) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid HTTP2-Settings");
         }
+        HttpResponse response = new HttpResponse(HttpStatusCode.SWITCHING_PROTOCOLS);
+        response.addHeader("Connection", "Upgrade");
+        response.addHeader("Upgrade", "h2c");
+        response.send(this);
+        Http2 http2 = new Http2(mFactory, false);
+        getSession().setPersonality(http2);
+        http2.start(settings);
+        // The request that carried the upgrade is answered on stream 1
+        http2.startUpgradeStream(getMethod(), mParser.getRawUri(), getHeaders());
     }
 
     private static String decodePercent(String str) {
@@ -373,6 +388,86 @@ public class Http extends Personality {
         }
     }
 
+    /** @return The {@link HttpCompression} policy to apply to responses. */
+    final HttpCompression getCompression() {
+        return mFactory.getCompression();
+    }
+
+    /** Tells the client to go ahead and send the body of the current request. */
+    void sendContinue() {
+        send(ByteBuffer.wrap(CONTINUE));
+    }
+
+    /**
+     * Sends the status and header fields of a response to the current request.
+     *
+     * @param status   The status of the response.
+     * @param fields   The names and values of the header fields, alternating.
+     * @param body     The entire body, or {@code null} if there is none or it is to be sent
+     *                 separately.
+     * @param complete Whether nothing further will be sent for the response.
+     */
+    void sendResponseHead(HttpStatusCode status, List<String> fields, byte[] body, boolean complete) throws IOException {
+        // The header and any in-memory body go out together in a single pooled buffer
+        int          length = HttpHeaderEncoder.getLength(status, fields);
+        PooledBuffer pooled = getBufferPool().allocate(length + (body != null ? body.length : 0));
+        ByteBuffer   buffer = pooled.getBuffer();
+        HttpHeaderEncoder.encode(buffer, status, fields);
+        if (body != null) {
+            buffer.put(body);
+        }
+        buffer.flip();
+        send(pooled);
+    }
+
+    /**
+     * @param data Part of the body of the response to the current request. A copy of the data is
+     *             not made, so do not modify it once passed to this method.
+     */
+    void sendResponseBody(ByteBuffer data) throws IOException {
+        send(data);
+    }
+
+    /**
+     * @param data Part of the body of the response to the current request. The caller's reference
+     *             is passed on, and the buffer is released once the data has been written.
+     */
+    void sendResponseBody(PooledBuffer data) throws IOException {
+        send(data);
+    }
+
+    /**
+     * @param file     The file to send part of the body of the response to the current request
+     *                 from. It will be closed once the region has been sent or the connection is
+     *                 closed.
+     * @param position The starting position within the file.
+     * @param count    The number of bytes to send.
+     */
+    void sendResponseBody(FileChannel file, long position, long count) throws IOException {
+        send(file, position, count);
+    }
+
+    /**
+     * Blocks the calling thread while too much of the response to the current request is waiting
+     * to be sent.
+     *
+     * @throws IOException if the response can no longer be sent.
+     */
+    void waitToSendResponseBody() throws IOException {
+        waitForWritable();
+    }
+
+    /**
+     * Requests that the connection be closed once the response to the current request has been
+     * sent. A stream multiplexed with others over the connection ends along with its response
+     * anyway, so it instead just abandons the stream if the response failed part way through.
+     *
+     * @param dueToError Pass in {@code true} if an error condition triggered this request.
+     */
+    void closeAfterResponse(boolean dueToError) {
+        requestClose(dueToError);
+    }
+
     /** @return The URI of the current request. */
     public final String getUri() {
         return mUri;
@@ -380,22 +475,25 @@ public class Http extends Personality {
 
     /** @return The {@link HttpMethod} that was used for the current request. */
     public final HttpMethod getMethod() {
-        return mMethod;
+        return mParser.getMethod();
     }
 
     /** @return The major version number of the HTTP protocol used for the current request. */
     public final int getVersionMajor() {
-        return mVersionMajor;
+        return mParser.getVersionMajor();
     }
 
     /** @return The minor version number of the HTTP protocol used for the current request. */
     public final int getVersionMinor() {
-        return mVersionMinor;
+        return mParser.getVersionMinor();
     }
 
-    /** @return An {@link InputStream} containing the body of the current request. */
+    /**
+     * @return An {@link InputStream} containing the body of the current request. If the body was
+     *         streamed to a {@link HttpStreamingRequestHandler}, this will be empty.
+     */
     public final InputStream getBody() {
-        return new ByteArrayInputStream(mBody);
+        return new ByteArrayInputStream(mParser.getBody(), 0, mParser.getBodyLength());
     }
 
     /** @return All HTTP parameters in the current request. */
@@ -425,9 +523,27 @@ public class Http extends Personality {
         return null;
     }
 
+    /**
+     * @return The path parameters captured from the URI of the current request by the pattern its
+     *         handler was registered with.
+     */
+    public final Map<String, String> getPathParameters() {
+        return mPathParameters;
+    }
+
+    /**
+     * @param name The name of a path parameter to return. The part of the URI matched by a
+     *             trailing {@code *} segment is named {@code "*"}.
+     * @return The value for that path parameter, or {@code null} if no path parameter with that
+     *         name exists.
+     */
+    public final String getPathParameter(String name) {
+        return mPathParameters.get(name);
+    }
+
     /** @return All HTTP headers in the current request. */
     public final Map<String, List<String>> getHeaders() {
-        return mHeaders;
+        return mParser.getHeaders();
     }
 
     /**
@@ -435,7 +551,7 @@ public class Http extends Personality {
      * @return The value(s) for that header, or {@code null} if no header with that name exists.
      */
     public final List<String> getHeader(String name) {
-        return mHeaders.get(name);
+        return mParser.getHeader(name);
     }
 
     /**
@@ -443,7 +559,7 @@ public class Http extends Personality {
      * @return {@code true} if the header exists in the current request.
      */
     public final boolean hasHeader(String name) {
-        return mHeaders.containsKey(name);
+        return mParser.hasHeader(name);
     }
 
     /**
@@ -451,11 +567,7 @@ public class Http extends Personality {
      * @return The first value for that header, or {@code null} if no header with that name exists.
      */
     public final String getFirstHeader(String name) {
-        List<String> list = getHeader(name);
-        if (list != null) {
-            return list.isEmpty() ? "" : list.get(0);
-        }
-        return null;
+        return mParser.getFirstHeader(name);
     }
 
     /**
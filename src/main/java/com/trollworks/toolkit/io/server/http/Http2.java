@@ -0,0 +1,1266 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.Log;
+import com.trollworks.toolkit.io.server.Personality;
+import com.trollworks.toolkit.io.server.PooledBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link Personality} for handling HTTP/2 connections over cleartext (h2c), entered either by a
+ * client that starts the connection with the HTTP/2 connection preface or by one that upgrades an
+ * HTTP/1.1 request.<br>
+ * <br>
+ * Each stream is handled by a {@link Http2Stream}, which processes its request on a task of its
+ * own, so that a slow handler doesn't hold up the other streams of the connection. Response
+ * headers are sent as soon as they are ready, while response bodies are queued and sent as the
+ * flow control windows and the connection's outbound queue permit. When several streams have data
+ * waiting, those of the most urgent priority, as signalled by the RFC 9218 {@code priority} header
+ * field or PRIORITY_UPDATE frame, go first, and the rest share the connection in proportion to
+ * the weights given by RFC 7540 priority signals. The RFC 7540 dependency tree, which RFC 9113 has
+ * deprecated, is otherwise ignored. Server push is not supported.
+ */
+public class Http2 extends Personality {
+    /** The size of the flow control window each stream is given for receiving. */
+    static final         int                       STREAM_WINDOW_SIZE     = 256 * 1024;
+    private static final byte[]                    PREFACE                = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int                       CONNECTION_WINDOW_SIZE = 1024 * 1024;
+    private static final int                       DEFAULT_WINDOW_SIZE    = 65535;
+    private static final int                       MAXIMUM_WINDOW_SIZE    = Integer.MAX_VALUE;
+    /** The frame size every endpoint must accept, which is used for all frames in both directions. */
+    private static final int                       FRAME_SIZE             = 16384;
+    private static final int                       FRAME_HEADER_SIZE      = 9;
+    private static final int                       MAXIMUM_HEADER_BLOCK   = 64 * 1024;
+    private static final int                       MAXIMUM_STREAMS        = 100;
+    /** The number of bytes a stream may queue before a body being generated has to wait. */
+    private static final long                      MAXIMUM_PENDING        = 64 * 1024;
+    /** The longest a stream waits to send, in milliseconds, before checking for input again. */
+    private static final long                      AWAIT_INTERVAL         = 10;
+    private static final int                       DEFAULT_URGENCY        = 3;
+    private static final int                       DEFAULT_WEIGHT         = 16;
+    private static final int                       DATA                   = 0x0;
+    private static final int                       HEADERS                = 0x1;
+    private static final int                       PRIORITY               = 0x2;
+    private static final int                       RST_STREAM             = 0x3;
+    private static final int                       SETTINGS               = 0x4;
+    private static final int                       PUSH_PROMISE           = 0x5;
+    private static final int                       PING                   = 0x6;
+    private static final int                       GOAWAY                 = 0x7;
+    private static final int                       WINDOW_UPDATE          = 0x8;
+    private static final int                       CONTINUATION           = 0x9;
+    private static final int                       PRIORITY_UPDATE        = 0x10;
+    private static final int                       FLAG_END_STREAM        = 0x1;
+    private static final int                       FLAG_ACK               = 0x1;
+    private static final int                       FLAG_END_HEADERS       = 0x4;
+    private static final int                       FLAG_PADDED            = 0x8;
+    private static final int                       FLAG_PRIORITY          = 0x20;
+    private static final int                       HEADER_TABLE_SIZE      = 0x1;
+    private static final int                       ENABLE_PUSH            = 0x2;
+    private static final int                       MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int                       INITIAL_WINDOW_SIZE    = 0x4;
+    private static final int                       MAX_FRAME_SIZE         = 0x5;
+    private static final int                       MAX_HEADER_LIST_SIZE   = 0x6;
+    private static final Set<String>               CONNECTION_HEADERS     = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+    private              HttpSessionFactory        mFactory;
+    private              HpackDecoder              mDecoder               = new HpackDecoder();
+    private              HpackEncoder              mEncoder               = new HpackEncoder();
+    private              Map<Integer, StreamState> mStreams               = new HashMap<>();
+    private              int                       mPrefaceIndex;
+    private              byte[]                    mFrameHeader           = new byte[FRAME_HEADER_SIZE];
+    private              int                       mFrameHeaderCount;
+    private              int                       mFrameLength;
+    private              int                       mFrameType;
+    private              int                       mFrameFlags;
+    private              int                       mFrameStreamId;
+    private              byte[]                    mPayload               = new byte[FRAME_SIZE];
+    private              int                       mPayloadCount;
+    private              byte[]                    mHeaderBlock           = new byte[1024];
+    private              int                       mHeaderBlockLength;
+    private              int                       mHeaderStreamId;
+    private              int                       mHeaderFlags;
+    private              int                       mHeaderWeight;
+    private              boolean                   mSettingsReceived;
+    private              int                       mLastStreamId;
+    private              int                       mReceiveWindow         = CONNECTION_WINDOW_SIZE;
+    private              int                       mUnacknowledged;
+    private              boolean                   mFailed;
+    // The remaining fields are guarded by this object's lock
+    private              int                       mSendWindow            = DEFAULT_WINDOW_SIZE;
+    private              int                       mInitialSendWindow     = DEFAULT_WINDOW_SIZE;
+    private              long                      mVirtualTime;
+    private              boolean                   mGoAwayReceived;
+    private              boolean                   mDataAllowed;
+    private              boolean                   mClosed;
+
+    /**
+     * @param factory          The factory that created the connection.
+     * @param afterPrefaceLine Pass in {@code true} if the request line and blank line that start
+     *                         the connection preface have already been consumed.
+     */
+    Http2(HttpSessionFactory factory, boolean afterPrefaceLine) {
+        mFactory = factory;
+        if (afterPrefaceLine) {
+            mPrefaceIndex = PREFACE.length - 6;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HTTP/2";
+    }
+
+    /**
+     * Sends the server's connection preface. Must be called once this {@link Personality} has been
+     * attached to its {@link com.trollworks.toolkit.io.server.Session}.
+     *
+     * @param settings The settings from the HTTP2-Settings header field of an upgrade request, or
+     *                 {@code null}.
+     */
+    final void start(byte[] settings) {
+        synchronized (this) {
+            ByteBuffer payload = ByteBuffer.allocate(18);
+            payload.putShort((short) MAX_CONCURRENT_STREAMS).putInt(MAXIMUM_STREAMS);
+            payload.putShort((short) INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW_SIZE);
+            payload.putShort((short) MAX_HEADER_LIST_SIZE).putInt(HttpRequestParser.MAXIMUM_HEADER_SIZE);
+            writeFrame(SETTINGS, 0, 0, payload.array(), 0, payload.capacity());
+            writeIntFrame(WINDOW_UPDATE, 0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+        }
+        if (settings != null) {
+            try {
+                // Accepting the upgrade acknowledges these, so no SETTINGS frame is sent in reply
+                applySettings(settings, settings.length);
+            } catch (Http2Exception exception) {
+                fail(exception);
+            }
+        }
+    }
+
+    /**
+     * Starts stream 1 with the request that carried an upgrade to h2c, so that the response to it
+     * is sent over HTTP/2.
+     *
+     * @param method  The method of the request.
+     * @param uri     The undecoded URI of the request.
+     * @param headers The header fields of the request.
+     */
+    final void startUpgradeStream(HttpMethod method, String uri, Map<String, List<String>> headers) {
+        if (mFailed) {
+            return;
+        }
+        StringBuilder request = new StringBuilder();
+        request.append(method.name());
+        request.append(' ');
+        request.append(HttpHeaderEncoder.toOctets(uri));
+        request.append(" HTTP/2.0\r\n");
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            String name = entry.getKey();
+            if (!CONNECTION_HEADERS.contains(name) && !"http2-settings".equals(name)) {
+                for (String value : entry.getValue()) {
+                    request.append(name);
+                    request.append(": ");
+                    request.append(HttpHeaderEncoder.toOctets(value));
+                    request.append("\r\n");
+                }
+            }
+        }
+        request.append("\r\n");
+        mLastStreamId = 1;
+        Http2Stream stream = new Http2Stream(mFactory, this, 1);
+        StreamState state  = new StreamState(stream);
+        state.mRemoteClosed = true;
+        synchronized (this) {
+            state.mSendWindow = mInitialSendWindow;
+            mStreams.put(Integer.valueOf(1), state);
+        }
+        stream.enqueue(toPooledBuffer(request.toString().getBytes(StandardCharsets.ISO_8859_1)), 0, true);
+    }
+
+    @Override
+    public void processInput(ByteBuffer buffer) throws IOException {
+        if (mFailed) {
+            // Discard anything further the remote end sends
+            buffer.position(buffer.limit());
+            return;
+        }
+        try {
+            while (mPrefaceIndex < PREFACE.length) {
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+                if (buffer.get() != PREFACE[mPrefaceIndex++]) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+                }
+            }
+            while (buffer.hasRemaining()) {
+                if (mFrameHeaderCount < FRAME_HEADER_SIZE) {
+                    int amount = Math.min(buffer.remaining(), FRAME_HEADER_SIZE - mFrameHeaderCount);
+                    buffer.get(mFrameHeader, mFrameHeaderCount, amount);
+                    mFrameHeaderCount += amount;
+                    if (mFrameHeaderCount < FRAME_HEADER_SIZE) {
+                        break;
+                    }
+                    mFrameLength = (mFrameHeader[0] & 0xFF) << 16 | (mFrameHeader[1] & 0xFF) << 8 | mFrameHeader[2] & 0xFF;
+                    mFrameType = mFrameHeader[3] & 0xFF;
+                    mFrameFlags = mFrameHeader[4] & 0xFF;
+                    mFrameStreamId = (mFrameHeader[5] & 0x7F) << 24 | (mFrameHeader[6] & 0xFF) << 16 | (mFrameHeader[7] & 0xFF) << 8 | mFrameHeader[8] & 0xFF;
+                    if (mFrameLength > FRAME_SIZE) {
+                        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame too large");
+                    }
+                    mPayloadCount = 0;
+                }
+                int amount = Math.min(buffer.remaining(), mFrameLength - mPayloadCount);
+                buffer.get(mPayload, mPayloadCount, amount);
+                mPayloadCount += amount;
+                if (mPayloadCount < mFrameLength) {
+                    break;
+                }
+                mFrameHeaderCount = 0;
+                try {
+                    processFrame();
+                } catch (Http2Exception exception) {
+                    if (exception.getStreamId() == 0) {
+                        throw exception;
+                    }
+                    resetStream(exception.getStreamId(), exception.getErrorCode());
+                }
+            }
+        } catch (Http2Exception exception) {
+            buffer.position(buffer.limit());
+            fail(exception);
+        }
+    }
+
+    private void fail(Http2Exception exception) {
+        mFailed = true;
+        synchronized (this) {
+            byte[]     message = exception.getMessage().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer payload = ByteBuffer.allocate(8 + message.length);
+            payload.putInt(mLastStreamId).putInt(exception.getErrorCode()).put(message);
+            writeFrame(GOAWAY, 0, 0, payload.array(), 0, payload.capacity());
+        }
+        requestClose(false);
+    }
+
+    private void processFrame() throws Http2Exception {
+        if (mHeaderStreamId != 0 && (mFrameType != CONTINUATION || mFrameStreamId != mHeaderStreamId)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected a CONTINUATION frame");
+        }
+        if (!mSettingsReceived && mFrameType != SETTINGS) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected a SETTINGS frame");
+        }
+        switch (mFrameType) {
+        case DATA:
+            receiveData();
+            break;
+        case HEADERS:
+            receiveHeaders();
+            break;
+        case PRIORITY:
+            receivePriority();
+            break;
+        case RST_STREAM:
+            receiveResetStream();
+            break;
+        case SETTINGS:
+            receiveSettings();
+            break;
+        case PUSH_PROMISE:
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Clients may not push streams");
+        case PING:
+            receivePing();
+            break;
+        case GOAWAY:
+            receiveGoAway();
+            break;
+        case WINDOW_UPDATE:
+            receiveWindowUpdate();
+            break;
+        case CONTINUATION:
+            receiveContinuation();
+            break;
+        case PRIORITY_UPDATE:
+            receivePriorityUpdate();
+            break;
+        default:
+            // Frames of unknown types are ignored
+            break;
+        }
+    }
+
+    private void receiveData() throws Http2Exception {
+        if (mFrameStreamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA frame without a stream");
+        }
+        int offset = 0;
+        int length = mFrameLength;
+        if ((mFrameFlags & FLAG_PADDED) != 0) {
+            offset = 1;
+            length -= getPadding();
+        }
+        // The whole frame counts against the connection's window, whatever becomes of it, and is
+        // given back straight away, as the streams' own windows limit what each may have queued
+        mReceiveWindow -= mFrameLength;
+        if (mReceiveWindow < 0) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection flow control window exceeded");
+        }
+        mUnacknowledged += mFrameLength;
+        if (mUnacknowledged >= CONNECTION_WINDOW_SIZE / 4) {
+            synchronized (this) {
+                writeIntFrame(WINDOW_UPDATE, 0, mUnacknowledged);
+            }
+            mReceiveWindow += mUnacknowledged;
+            mUnacknowledged = 0;
+        }
+        boolean     end = (mFrameFlags & FLAG_END_STREAM) != 0;
+        StreamState state;
+        synchronized (this) {
+            state = mStreams.get(Integer.valueOf(mFrameStreamId));
+            if (state == null) {
+                if (mFrameStreamId > mLastStreamId) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA frame for an idle stream");
+                }
+                // The stream has already been closed, such as by a reset crossing this frame
+                return;
+            }
+            if (state.mRemoteClosed) {
+                throw new Http2Exception(Http2Exception.STREAM_CLOSED, mFrameStreamId, "DATA frame after the end of the stream");
+            }
+            state.mReceiveWindow -= mFrameLength;
+            if (state.mReceiveWindow < 0) {
+                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, mFrameStreamId, "Stream flow control window exceeded");
+            }
+            state.mReceivedLength += length;
+            if (state.mExpectedLength >= 0 && (state.mReceivedLength > state.mExpectedLength || end && state.mReceivedLength != state.mExpectedLength)) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, mFrameStreamId, "Content length mismatch");
+            }
+            if (end) {
+                state.mRemoteClosed = true;
+            }
+        }
+        PooledBuffer data = null;
+        if (length > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(mPayload, offset, length);
+            data = state.mChunked ? HttpResponse.frameChunk(getBufferPool(), buffer) : toPooledBuffer(buffer);
+        } else if (!end) {
+            // Nothing for the stream to process, so the window is given back now
+            consumed(state.mStream, mFrameLength);
+            return;
+        }
+        state.mStream.enqueue(data, mFrameLength, false);
+        if (end) {
+            state.mStream.enqueue(state.mChunked ? toPooledBuffer(HttpResponse.LAST_CHUNK) : null, 0, true);
+        }
+    }
+
+    private void receiveHeaders() throws Http2Exception {
+        if (mFrameStreamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS frame without a stream");
+        }
+        int offset = 0;
+        int end    = mFrameLength;
+        if ((mFrameFlags & FLAG_PADDED) != 0) {
+            offset = 1;
+            end = 1 + end - getPadding();
+        }
+        mHeaderWeight = -1;
+        if ((mFrameFlags & FLAG_PRIORITY) != 0) {
+            if (end - offset < 5) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "HEADERS frame too short");
+            }
+            // A stream that depends on itself is marked with a weight of zero, to be reset once
+            // the header block has been decoded
+            mHeaderWeight = (readInt(offset) & 0x7FFFFFFF) == mFrameStreamId ? 0 : (mPayload[offset + 4] & 0xFF) + 1;
+            offset += 5;
+        }
+        mHeaderStreamId = mFrameStreamId;
+        mHeaderFlags = mFrameFlags;
+        mHeaderBlockLength = 0;
+        appendHeaderBlock(offset, end - offset);
+    }
+
+    private void receiveContinuation() throws Http2Exception {
+        if (mHeaderStreamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+        }
+        appendHeaderBlock(0, mFrameLength);
+    }
+
+    private void appendHeaderBlock(int offset, int length) throws Http2Exception {
+        if (mHeaderBlockLength + length > MAXIMUM_HEADER_BLOCK) {
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        if (mHeaderBlockLength + length > mHeaderBlock.length) {
+            byte[] block = new byte[Math.min(Math.max(mHeaderBlock.length * 2, mHeaderBlockLength + length), MAXIMUM_HEADER_BLOCK)];
+            System.arraycopy(mHeaderBlock, 0, block, 0, mHeaderBlockLength);
+            mHeaderBlock = block;
+        }
+        System.arraycopy(mPayload, offset, mHeaderBlock, mHeaderBlockLength, length);
+        mHeaderBlockLength += length;
+        if ((mFrameFlags & FLAG_END_HEADERS) != 0) {
+            int streamId = mHeaderStreamId;
+            mHeaderStreamId = 0;
+            headerBlockCompleted(streamId);
+        }
+    }
+
+    private void headerBlockCompleted(int streamId) throws Http2Exception {
+        // The block is always decoded, as it may have changed the table that later blocks use
+        List<String> fields    = mDecoder.decode(mHeaderBlock, mHeaderBlockLength, HttpRequestParser.MAXIMUM_HEADER_SIZE);
+        boolean      endStream = (mHeaderFlags & FLAG_END_STREAM) != 0;
+        StreamState  state;
+        synchronized (this) {
+            state = mStreams.get(Integer.valueOf(streamId));
+        }
+        if (state != null) {
+            receiveTrailers(state, endStream);
+            return;
+        }
+        if (streamId <= mLastStreamId) {
+            // The stream has already been closed, such as by a reset crossing this frame
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid stream identifier");
+        }
+        mLastStreamId = streamId;
+        if (mHeaderWeight == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Stream depends on itself");
+        }
+        Http2Stream stream = new Http2Stream(mFactory, this, streamId);
+        state = new StreamState(stream);
+        state.mRemoteClosed = endStream;
+        if (mHeaderWeight > 0) {
+            state.mWeight = mHeaderWeight;
+        }
+        byte[] request = fields != null ? buildRequest(state, fields, endStream) : null;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            if (mStreams.size() >= MAXIMUM_STREAMS) {
+                throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Too many streams");
+            }
+            state.mSendWindow = mInitialSendWindow;
+            mStreams.put(Integer.valueOf(streamId), state);
+        }
+        if (request == null) {
+            HttpResponse response = new HttpResponse(HttpStatusCode.BAD_REQUEST, MimeTypes.TEXT, "BAD REQUEST: Header too large");
+            response.send(stream);
+            endStream(stream);
+        } else {
+            stream.enqueue(toPooledBuffer(request), 0, endStream);
+        }
+    }
+
+    private void receiveTrailers(StreamState state, boolean endStream) throws Http2Exception {
+        int streamId = state.mStream.getId();
+        synchronized (this) {
+            if (state.mRemoteClosed) {
+                throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "HEADERS frame after the end of the stream");
+            }
+            if (!endStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers must end the stream");
+            }
+            if (state.mExpectedLength >= 0 && state.mReceivedLength != state.mExpectedLength) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Content length mismatch");
+            }
+            state.mRemoteClosed = true;
+        }
+        // The trailer fields themselves are of no interest to the handlers, so are dropped
+        state.mStream.enqueue(state.mChunked ? toPooledBuffer(HttpResponse.LAST_CHUNK) : null, 0, true);
+    }
+
+    /**
+     * Rebuilds a request in HTTP/1.1 form from the header fields of a stream, so that it can be
+     * parsed as an HTTP/1.1 connection would parse it. A body without a known length is framed
+     * with the chunked transfer coding as its data arrives.
+     */
+    private static byte[] buildRequest(StreamState state, List<String> fields, boolean endStream) throws Http2Exception {
+        int           streamId  = state.mStream.getId();
+        String        method    = null;
+        String        scheme    = null;
+        String        path      = null;
+        String        authority = null;
+        String        cookie    = null;
+        long          length    = -1;
+        boolean       regular   = false;
+        StringBuilder headers   = new StringBuilder();
+        int           count     = fields.size();
+        for (int i = 0; i < count; i += 2) {
+            String name  = fields.get(i);
+            String value = fields.get(i + 1);
+            if (!isValidValue(value)) {
+                throw malformed(streamId, "Invalid header field value");
+            }
+            if (name.startsWith(":")) {
+                if (regular) {
+                    throw malformed(streamId, "Pseudo-header field after a regular one");
+                }
+                if (":method".equals(name) && method == null) {
+                    method = value;
+                } else if (":scheme".equals(name) && scheme == null) {
+                    scheme = value;
+                } else if (":path".equals(name) && path == null) {
+                    path = value;
+                } else if (":authority".equals(name) && authority == null) {
+                    authority = value;
+                } else {
+                    throw malformed(streamId, "Invalid pseudo-header field");
+                }
+                continue;
+            }
+            regular = true;
+            if (!isToken(name, false)) {
+                throw malformed(streamId, "Invalid header field name");
+            }
+            if (CONNECTION_HEADERS.contains(name) || "te".equals(name) && !"trailers".equals(value)) {
+                throw malformed(streamId, "Connection-specific header field");
+            }
+            if ("cookie".equals(name)) {
+                // Cookies may be split into several fields for better compression
+                cookie = cookie == null ? value : cookie + "; " + value;
+                continue;
+            }
+            if ("host".equals(name) && authority != null) {
+                continue;
+            }
+            if ("content-length".equals(name)) {
+                long declared;
+                try {
+                    declared = Long.parseLong(value);
+                } catch (NumberFormatException exception) {
+                    declared = -1;
+                }
+                if (declared < 0 || length != -1 && declared != length) {
+                    throw malformed(streamId, "Invalid content length");
+                }
+                length = declared;
+            }
+            if ("priority".equals(name)) {
+                state.mUrgency = parseUrgency(value, state.mUrgency);
+            }
+            headers.append(name);
+            headers.append(": ");
+            headers.append(value);
+            headers.append("\r\n");
+        }
+        if (method == null || scheme == null || path == null || !isToken(method, true)) {
+            throw malformed(streamId, "Missing or invalid pseudo-header field");
+        }
+        if (!path.startsWith("/") && !("*".equals(path) && "OPTIONS".equals(method)) || !isValidPath(path)) {
+            throw malformed(streamId, "Invalid path");
+        }
+        if (endStream && length > 0) {
+            throw malformed(streamId, "Content length mismatch");
+        }
+        StringBuilder request = new StringBuilder();
+        request.append(method);
+        request.append(' ');
+        request.append(path);
+        request.append(" HTTP/2.0\r\n");
+        if (authority != null) {
+            request.append("host: ");
+            request.append(authority);
+            request.append("\r\n");
+        }
+        request.append(headers);
+        if (cookie != null) {
+            request.append("cookie: ");
+            request.append(cookie);
+            request.append("\r\n");
+        }
+        state.mExpectedLength = length;
+        if (!endStream && length == -1) {
+            state.mChunked = true;
+            request.append("transfer-encoding: chunked\r\n");
+        }
+        request.append("\r\n");
+        return request.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static Http2Exception malformed(int streamId, String message) {
+        return new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, message);
+    }
+
+    private static boolean isToken(String text, boolean allowUpperCase) {
+        int length = text.length();
+        if (length == 0) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char ch = text.charAt(i);
+            if (ch <= ' ' || ch >= 0x7F || "\"(),/:;<=>?@[\\]{}".indexOf(ch) != -1 || !allowUpperCase && ch >= 'A' && ch <= 'Z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidValue(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char ch = value.charAt(i);
+            if (ch == 0 || ch == '\r' || ch == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidPath(String path) {
+        int length = path.length();
+        for (int i = 0; i < length; i++) {
+            char ch = path.charAt(i);
+            if (ch <= ' ' || ch >= 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param value   The value of a {@code priority} header field or PRIORITY_UPDATE frame.
+     * @param urgency The urgency to return if the value doesn't specify one.
+     * @return The urgency, from 0 (the most urgent) to 7.
+     */
+    private static int parseUrgency(String value, int urgency) {
+        for (String parameter : value.split(",")) {
+            parameter = parameter.trim();
+            if (parameter.length() == 3 && parameter.startsWith("u=")) {
+                char ch = parameter.charAt(2);
+                if (ch >= '0' && ch <= '7') {
+                    urgency = ch - '0';
+                }
+            }
+        }
+        return urgency;
+    }
+
+    private void receivePriority() throws Http2Exception {
+        if (mFrameStreamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY frame without a stream");
+        }
+        if (mFrameLength != 5) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, mFrameStreamId, "Invalid PRIORITY frame");
+        }
+        if ((readInt(0) & 0x7FFFFFFF) == mFrameStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, mFrameStreamId, "Stream depends on itself");
+        }
+        synchronized (this) {
+            StreamState state = mStreams.get(Integer.valueOf(mFrameStreamId));
+            if (state != null) {
+                state.mWeight = (mPayload[4] & 0xFF) + 1;
+            }
+        }
+    }
+
+    private void receivePriorityUpdate() throws Http2Exception {
+        if (mFrameStreamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY_UPDATE frame for a stream");
+        }
+        if (mFrameLength < 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid PRIORITY_UPDATE frame");
+        }
+        int    streamId = readInt(0) & 0x7FFFFFFF;
+        String value    = new String(mPayload, 4, mFrameLength - 4, StandardCharsets.US_ASCII);
+        synchronized (this) {
+            StreamState state = mStreams.get(Integer.valueOf(streamId));
+            if (state != null) {
+                state.mUrgency = parseUrgency(value, state.mUrgency);
+            }
+        }
+    }
+
+    private void receiveResetStream() throws Http2Exception {
+        if (mFrameStreamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM frame without a stream");
+        }
+        if (mFrameLength != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+        }
+        if (mFrameStreamId > mLastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM frame for an idle stream");
+        }
+        synchronized (this) {
+            StreamState state = mStreams.get(Integer.valueOf(mFrameStreamId));
+            if (state != null) {
+                state.mLocalClosed = true;
+                remove(state);
+            }
+        }
+    }
+
+    private void receiveSettings() throws Http2Exception {
+        if (mFrameStreamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS frame for a stream");
+        }
+        mSettingsReceived = true;
+        if ((mFrameFlags & FLAG_ACK) != 0) {
+            if (mFrameLength != 0) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS acknowledgement");
+            }
+            return;
+        }
+        applySettings(mPayload, mFrameLength);
+        synchronized (this) {
+            writeFrame(SETTINGS, FLAG_ACK, 0, mPayload, 0, 0);
+            if (!mDataAllowed) {
+                // Data isn't sent until the remote end has sent its connection preface, as a
+                // client that has just upgraded may not yet be ready to buffer much of it
+                mDataAllowed = true;
+                pump();
+            }
+        }
+    }
+
+    private synchronized void applySettings(byte[] data, int length) throws Http2Exception {
+        if (length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            int id    = buffer.getShort() & 0xFFFF;
+            int value = buffer.getInt();
+            switch (id) {
+            case HEADER_TABLE_SIZE:
+                mEncoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                break;
+            case ENABLE_PUSH:
+                if (value != 0 && value != 1) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                }
+                break;
+            case INITIAL_WINDOW_SIZE:
+                if (value < 0) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                }
+                // The change applies to the windows of the streams already open, too
+                int delta = value - mInitialSendWindow;
+                for (StreamState state : mStreams.values()) {
+                    long window = (long) state.mSendWindow + delta;
+                    if (window > MAXIMUM_WINDOW_SIZE) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Stream flow control window too large");
+                    }
+                    state.mSendWindow = (int) window;
+                }
+                mInitialSendWindow = value;
+                break;
+            case MAX_FRAME_SIZE:
+                if (value < FRAME_SIZE || value > 0xFFFFFF) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                }
+                break;
+            default:
+                // Other settings don't affect what is sent, and unknown ones are ignored
+                break;
+            }
+        }
+        pump();
+    }
+
+    private void receivePing() throws Http2Exception {
+        if (mFrameStreamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING frame for a stream");
+        }
+        if (mFrameLength != 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid PING frame");
+        }
+        if ((mFrameFlags & FLAG_ACK) == 0) {
+            synchronized (this) {
+                writeFrame(PING, FLAG_ACK, 0, mPayload, 0, 8);
+            }
+        }
+    }
+
+    private void receiveGoAway() throws Http2Exception {
+        if (mFrameStreamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY frame for a stream");
+        }
+        if (mFrameLength < 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid GOAWAY frame");
+        }
+        synchronized (this) {
+            // Streams already under way are allowed to finish
+            mGoAwayReceived = true;
+            if (mStreams.isEmpty()) {
+                requestClose(false);
+            }
+        }
+    }
+
+    private void receiveWindowUpdate() throws Http2Exception {
+        if (mFrameLength != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        }
+        int increment = readInt(0) & 0x7FFFFFFF;
+        if (increment == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, mFrameStreamId, "Invalid window increment");
+        }
+        synchronized (this) {
+            if (mFrameStreamId == 0) {
+                if ((long) mSendWindow + increment > MAXIMUM_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection flow control window too large");
+                }
+                mSendWindow += increment;
+            } else {
+                StreamState state = mStreams.get(Integer.valueOf(mFrameStreamId));
+                if (state == null) {
+                    if (mFrameStreamId > mLastStreamId) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE frame for an idle stream");
+                    }
+                    return;
+                }
+                if ((long) state.mSendWindow + increment > MAXIMUM_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, mFrameStreamId, "Stream flow control window too large");
+                }
+                state.mSendWindow += increment;
+            }
+            pump();
+        }
+    }
+
+    private int getPadding() throws Http2Exception {
+        int padding = mFrameLength > 0 ? (mPayload[0] & 0xFF) + 1 : Integer.MAX_VALUE;
+        if (padding > mFrameLength) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+        }
+        return padding;
+    }
+
+    private int readInt(int offset) {
+        return (mPayload[offset] & 0xFF) << 24 | (mPayload[offset + 1] & 0xFF) << 16 | (mPayload[offset + 2] & 0xFF) << 8 | mPayload[offset + 3] & 0xFF;
+    }
+
+    private PooledBuffer toPooledBuffer(byte[] data) {
+        return toPooledBuffer(ByteBuffer.wrap(data));
+    }
+
+    private PooledBuffer toPooledBuffer(ByteBuffer data) {
+        PooledBuffer pooled = getBufferPool().allocate(data.remaining());
+        pooled.getBuffer().put(data).flip();
+        return pooled;
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) {
+        PooledBuffer pooled = getBufferPool().allocate(FRAME_HEADER_SIZE + length);
+        ByteBuffer   buffer = pooled.getBuffer();
+        putFrameHeader(buffer, length, type, flags, streamId);
+        buffer.put(payload, offset, length);
+        buffer.flip();
+        send(pooled);
+    }
+
+    private void writeIntFrame(int type, int streamId, int value) {
+        PooledBuffer pooled = getBufferPool().allocate(FRAME_HEADER_SIZE + 4);
+        ByteBuffer   buffer = pooled.getBuffer();
+        putFrameHeader(buffer, 4, type, 0, streamId);
+        buffer.putInt(value);
+        buffer.flip();
+        send(pooled);
+    }
+
+    private static void putFrameHeader(ByteBuffer buffer, int length, int type, int flags, int streamId) {
+        buffer.put((byte) (length >>> 16));
+        buffer.put((byte) (length >>> 8));
+        buffer.put((byte) length);
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.putInt(streamId);
+    }
+
+    /**
+     * Gives back flow control window for input a stream has processed.
+     *
+     * @param stream The stream.
+     * @param credit The number of bytes processed.
+     */
+    final synchronized void consumed(Http2Stream stream, int credit) {
+        StreamState state = mStreams.get(Integer.valueOf(stream.getId()));
+        if (state != null && !state.mRemoteClosed) {
+            state.mUnacknowledged += credit;
+            if (state.mUnacknowledged >= STREAM_WINDOW_SIZE / 4) {
+                writeIntFrame(WINDOW_UPDATE, stream.getId(), state.mUnacknowledged);
+                state.mReceiveWindow += state.mUnacknowledged;
+                state.mUnacknowledged = 0;
+            }
+        }
+    }
+
+    /**
+     * Sends the header of a response. The header is sent straight away, ahead of the data queued
+     * for other streams, so that the order of the header blocks on the wire matches the order they
+     * were compressed in.
+     *
+     * @param stream The stream the response is for.
+     * @param status The status of the response.
+     * @param fields The names and values of the header fields, alternating, or {@code null}.
+     * @param end    Whether the response has no body.
+     */
+    final synchronized void sendHeaders(Http2Stream stream, int status, List<String> fields, boolean end) {
+        StreamState state = mStreams.get(Integer.valueOf(stream.getId()));
+        if (state == null || state.mLocalClosed) {
+            return;
+        }
+        mEncoder.begin();
+        mEncoder.encode(":status", Integer.toString(status));
+        if (fields != null) {
+            int count = fields.size();
+            for (int i = 0; i < count; i += 2) {
+                String name = fields.get(i).toLowerCase(Locale.US);
+                if (!CONNECTION_HEADERS.contains(name)) {
+                    mEncoder.encode(name, HttpHeaderEncoder.toOctets(fields.get(i + 1)));
+                }
+            }
+        }
+        byte[]       block  = mEncoder.getBlock();
+        int          length = mEncoder.getLength();
+        PooledBuffer pooled = getBufferPool().allocate(length + FRAME_HEADER_SIZE * Math.max((length + FRAME_SIZE - 1) / FRAME_SIZE, 1));
+        ByteBuffer   buffer = pooled.getBuffer();
+        int          offset = 0;
+        do {
+            int amount = Math.min(length - offset, FRAME_SIZE);
+            int flags  = offset + amount == length ? FLAG_END_HEADERS : 0;
+            if (offset == 0) {
+                putFrameHeader(buffer, amount, HEADERS, end ? flags | FLAG_END_STREAM : flags, stream.getId());
+            } else {
+                putFrameHeader(buffer, amount, CONTINUATION, flags, stream.getId());
+            }
+            buffer.put(block, offset, amount);
+            offset += amount;
+        } while (offset < length);
+        buffer.flip();
+        send(pooled);
+        if (end) {
+            localEnded(state);
+        }
+    }
+
+    /**
+     * Queues data to be sent as part of a response body.
+     *
+     * @param stream The stream the response is for.
+     * @param data   A {@link ByteBuffer}, which must not be modified afterwards, or a {@link
+     *               PooledBuffer}, whose reference is passed on.
+     * @param length The number of bytes to send.
+     */
+    final synchronized void queueData(Http2Stream stream, Object data, long length) {
+        StreamState state = mStreams.get(Integer.valueOf(stream.getId()));
+        if (state == null || state.mLocalClosed || state.mEndQueued || length == 0) {
+            discard(data);
+            return;
+        }
+        if (state.mPendingBytes == 0) {
+            // A stream that has been idle doesn't get credit for the time it wasn't sending
+            state.mVirtualFinish = Math.max(state.mVirtualFinish, mVirtualTime);
+        }
+        state.mPending.add(data);
+        state.mPendingBytes += length;
+        pump();
+    }
+
+    /**
+     * Queues a region of a file to be sent as part of a response body.
+     *
+     * @param stream   The stream the response is for.
+     * @param file     The file to send data from. It will be closed once the region has been sent
+     *                 or the stream is closed.
+     * @param position The starting position within the file.
+     * @param count    The number of bytes to send.
+     */
+    final void queueData(Http2Stream stream, FileChannel file, long position, long count) {
+        queueData(stream, new FileRegion(file, position, count), count);
+    }
+
+    /**
+     * Marks the end of a response, which is sent once any data queued for it has been.
+     *
+     * @param stream The stream the response is for.
+     */
+    final synchronized void endStream(Http2Stream stream) {
+        StreamState state = mStreams.get(Integer.valueOf(stream.getId()));
+        if (state != null && !state.mLocalClosed && !state.mEndQueued) {
+            state.mEndQueued = true;
+            pump();
+        }
+    }
+
+    /**
+     * Blocks the calling thread while the data queued for a stream is more than it should be
+     * allowed to get ahead of the remote end by. Gives up on the stream if the remote end hasn't
+     * caught up within the write-stall limit.<br>
+     * <br>
+     * While waiting, the thread processes the connection's input itself whenever it can, as the
+     * WINDOW_UPDATE frames it is waiting for would otherwise never be read should the streams of
+     * the connection be holding all of the executor's threads.
+     *
+     * @param stream The stream.
+     * @throws IOException if the stream has been closed.
+     */
+    final void awaitPending(Http2Stream stream) throws IOException {
+        long limit    = getSession().getTimeouts().getWriteStall();
+        long deadline = limit > 0 ? System.currentTimeMillis() + limit : Long.MAX_VALUE;
+        while (true) {
+            synchronized (this) {
+                StreamState state = mStreams.get(Integer.valueOf(stream.getId()));
+                if (state == null || state.mLocalClosed) {
+                    throw new IOException("Stream closed");
+                }
+                if (state.mPendingBytes <= MAXIMUM_PENDING) {
+                    return;
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    resetStream(stream.getId(), Http2Exception.CANCEL);
+                    throw new IOException("Stream closed");
+                }
+            }
+            if (!getSession().processWaitingRequests()) {
+                synchronized (this) {
+                    try {
+                        wait(Math.max(Math.min(deadline - System.currentTimeMillis(), AWAIT_INTERVAL), 1));
+                    } catch (InterruptedException exception) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Abandons a stream, telling the remote end why.
+     *
+     * @param streamId  The stream identifier.
+     * @param errorCode The error code to send.
+     */
+    final synchronized void resetStream(int streamId, int errorCode) {
+        StreamState state = mStreams.get(Integer.valueOf(streamId));
+        if (state != null) {
+            state.mLocalClosed = true;
+            remove(state);
+        } else if (mClosed) {
+            return;
+        }
+        writeIntFrame(RST_STREAM, streamId, errorCode);
+    }
+
+    private void localEnded(StreamState state) {
+        state.mLocalClosed = true;
+        if (!state.mRemoteClosed) {
+            // The response is complete, so the rest of the request isn't wanted
+            writeIntFrame(RST_STREAM, state.mStream.getId(), Http2Exception.NO_ERROR);
+        }
+        remove(state);
+    }
+
+    private void remove(StreamState state) {
+        mStreams.remove(Integer.valueOf(state.mStream.getId()));
+        state.releasePending();
+        state.mStream.discardInput();
+        // Wake any thread waiting for the stream's queued data to drain
+        notifyAll();
+        if (mGoAwayReceived && mStreams.isEmpty()) {
+            requestClose(false);
+        }
+    }
+
+    /** Sends as much of the queued data as flow control and the outbound queue permit. */
+    private void pump() {
+        if (mClosed || !mDataAllowed) {
+            return;
+        }
+        boolean sent = false;
+        while (isWritable()) {
+            StreamState state = selectStream();
+            if (state == null) {
+                break;
+            }
+            int          amount = (int) Math.min(Math.min(state.mPendingBytes, FRAME_SIZE), Math.min(mSendWindow, state.mSendWindow));
+            boolean      end    = state.mEndQueued && state.mPendingBytes == amount;
+            PooledBuffer pooled = getBufferPool().allocate(FRAME_HEADER_SIZE + amount);
+            ByteBuffer   buffer = pooled.getBuffer();
+            putFrameHeader(buffer, amount, DATA, end ? FLAG_END_STREAM : 0, state.mStream.getId());
+            try {
+                state.fill(buffer, amount);
+            } catch (IOException exception) {
+                pooled.release();
+                Log.error(getSession(), exception);
+                resetStream(state.mStream.getId(), Http2Exception.INTERNAL_ERROR);
+                continue;
+            }
+            buffer.flip();
+            send(pooled);
+            sent = true;
+            mSendWindow -= amount;
+            state.mSendWindow -= amount;
+            mVirtualTime = state.mVirtualFinish;
+            state.mVirtualFinish += (long) Math.max(amount, 1) * DEFAULT_WEIGHT / state.mWeight;
+            if (end) {
+                localEnded(state);
+            }
+        }
+        if (sent) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return The stream that should send the next DATA frame, or {@code null} if none can. Of the
+     *         streams that are able to send, those of the most urgent priority are chosen first,
+     *         and of those the one that is furthest behind its weighted share of the connection.
+     */
+    private StreamState selectStream() {
+        StreamState selected = null;
+        for (StreamState state : mStreams.values()) {
+            if (state.mPendingBytes > 0 ? mSendWindow > 0 && state.mSendWindow > 0 : state.mEndQueued) {
+                if (selected == null || state.mUrgency < selected.mUrgency || state.mUrgency == selected.mUrgency && state.mVirtualFinish < selected.mVirtualFinish) {
+                    selected = state;
+                }
+            }
+        }
+        return selected;
+    }
+
+    private static void discard(Object data) {
+        if (data instanceof PooledBuffer) {
+            ((PooledBuffer) data).release();
+        } else if (data instanceof FileRegion) {
+            try {
+                ((FileRegion) data).mChannel.close();
+            } catch (IOException exception) {
+                // Ignore
+            }
+        }
+    }
+
+    @Override
+    public void writabilityChanged(boolean writable) {
+        if (writable) {
+            synchronized (this) {
+                pump();
+            }
+        }
+    }
+
+    @Override
+    public void closing() {
+        synchronized (this) {
+            mClosed = true;
+            for (StreamState state : mStreams.values()) {
+                state.mLocalClosed = true;
+                state.releasePending();
+                state.mStream.discardInput();
+            }
+            mStreams.clear();
+            notifyAll();
+        }
+    }
+
+    /** The state of a stream that the connection tracks on the stream's behalf. */
+    private static final class StreamState {
+        private Http2Stream        mStream;
+        private ArrayDeque<Object> mPending        = new ArrayDeque<>();
+        private long               mPendingBytes;
+        private int                mSendWindow;
+        private int                mReceiveWindow  = STREAM_WINDOW_SIZE;
+        private int                mUnacknowledged;
+        private long               mExpectedLength = -1;
+        private long               mReceivedLength;
+        private boolean            mChunked;
+        private boolean            mRemoteClosed;
+        private boolean            mEndQueued;
+        private boolean            mLocalClosed;
+        private int                mUrgency        = DEFAULT_URGENCY;
+        private int                mWeight         = DEFAULT_WEIGHT;
+        private long               mVirtualFinish;
+
+        StreamState(Http2Stream stream) {
+            mStream = stream;
+        }
+
+        /**
+         * Moves queued data into a frame.
+         *
+         * @param buffer The buffer to fill.
+         * @param amount The number of bytes to move.
+         */
+        final void fill(ByteBuffer buffer, int amount) throws IOException {
+            mPendingBytes -= amount;
+            while (amount > 0) {
+                Object data = mPending.peek();
+                if (data instanceof FileRegion) {
+                    FileRegion region = (FileRegion) data;
+                    int        limit  = buffer.limit();
+                    int        count  = (int) Math.min(amount, region.mRemaining);
+                    buffer.limit(buffer.position() + count);
+                    while (buffer.hasRemaining()) {
+                        int read = region.mChannel.read(buffer, region.mPosition);
+                        if (read < 0) {
+                            throw new EOFException();
+                        }
+                        region.mPosition += read;
+                        region.mRemaining -= read;
+                    }
+                    buffer.limit(limit);
+                    amount -= count;
+                    if (region.mRemaining == 0) {
+                        mPending.remove();
+                        discard(region);
+                    }
+                } else {
+                    ByteBuffer source = data instanceof PooledBuffer ? ((PooledBuffer) data).getBuffer() : (ByteBuffer) data;
+                    int        count  = Math.min(amount, source.remaining());
+                    ByteBuffer slice  = source.duplicate();
+                    slice.limit(slice.position() + count);
+                    buffer.put(slice);
+                    source.position(source.position() + count);
+                    amount -= count;
+                    if (!source.hasRemaining()) {
+                        mPending.remove();
+                        discard(data);
+                    }
+                }
+            }
+        }
+
+        final void releasePending() {
+            for (Object data : mPending) {
+                discard(data);
+            }
+            mPending.clear();
+            mPendingBytes = 0;
+        }
+    }
+
+    private static final class FileRegion {
+        private FileChannel mChannel;
+        private long        mPosition;
+        private long        mRemaining;
+
+        FileRegion(FileChannel channel, long position, long count) {
+            mChannel = channel;
+            mPosition = position;
+            mRemaining = count;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 protocol error. An error for a stream ends just that stream, while an error for the
+ * connection ends the connection and every stream on it.
+ */
+class Http2Exception extends IOException {
+    static final  int NO_ERROR           = 0x0;
+    static final  int PROTOCOL_ERROR     = 0x1;
+    static final  int INTERNAL_ERROR     = 0x2;
+    static final  int FLOW_CONTROL_ERROR = 0x3;
+    static final  int STREAM_CLOSED      = 0x5;
+    static final  int FRAME_SIZE_ERROR   = 0x6;
+    static final  int REFUSED_STREAM     = 0x7;
+    static final  int CANCEL             = 0x8;
+    static final  int COMPRESSION_ERROR  = 0x9;
+    static final  int ENHANCE_YOUR_CALM  = 0xb;
+    private final int mErrorCode;
+    private final int mStreamId;
+
+    /**
+     * Creates an error for the connection.
+     *
+     * @param errorCode The error code to report to the remote end.
+     * @param message   The message to use.
+     */
+    Http2Exception(int errorCode, String message) {
+        this(errorCode, 0, message);
+    }
+
+    /**
+     * @param errorCode The error code to report to the remote end.
+     * @param streamId  The stream the error applies to, or {@code 0} for the connection.
+     * @param message   The message to use.
+     */
+    Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        mErrorCode = errorCode;
+        mStreamId = streamId;
+    }
+
+    /** @return The error code to report to the remote end. */
+    final int getErrorCode() {
+        return mErrorCode;
+    }
+
+    /** @return The stream the error applies to, or {@code 0} for the connection. */
+    final int getStreamId() {
+        return mStreamId;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.Log;
+import com.trollworks.toolkit.io.server.PooledBuffer;
+import com.trollworks.toolkit.io.server.Session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * A single stream of an {@link Http2} connection. The request arriving on the stream is rebuilt
+ * in HTTP/1.1 form and parsed and answered just as a request on an HTTP/1.1 connection would be,
+ * while the response is handed to the connection to be framed. Each stream processes its input on
+ * tasks of its own, submitted to the {@link Session}'s executor, so that the streams of a
+ * connection are handled in parallel.
+ */
+final class Http2Stream extends Http {
+    private final Http2             mConnection;
+    private final int               mId;
+    private final ArrayDeque<Input> mInput = new ArrayDeque<>();
+    private       boolean           mProcessing;
+    private       boolean           mDiscarded;
+    private       boolean           mResponded;
+
+    /**
+     * @param factory    The factory that created the connection.
+     * @param connection The connection the stream belongs to.
+     * @param id         The stream identifier.
+     */
+    Http2Stream(HttpSessionFactory factory, Http2 connection, int id) {
+        super(factory);
+        setStreamSession(connection.getSession());
+        mConnection = connection;
+        mId = id;
+    }
+
+    @Override
+    public String toString() {
+        return "HTTP/2 stream " + mId;
+    }
+
+    /** @return The stream identifier. */
+    final int getId() {
+        return mId;
+    }
+
+    /**
+     * Queues input for the stream to process.
+     *
+     * @param buffer The data to process, or {@code null} if there is none. The caller's reference
+     *               is passed on.
+     * @param credit The number of bytes of flow control window to give back to the remote end
+     *               once the data has been processed.
+     * @param last   Whether this is the last input the stream will receive.
+     */
+    final void enqueue(PooledBuffer buffer, int credit, boolean last) {
+        boolean schedule = false;
+        synchronized (mInput) {
+            if (mDiscarded) {
+                if (buffer != null) {
+                    buffer.release();
+                }
+                return;
+            }
+            mInput.add(new Input(buffer, credit, last));
+            if (!mProcessing) {
+                mProcessing = true;
+                schedule = true;
+            }
+        }
+        if (schedule) {
+            getSession().getExecutor().execute(getSession(), this::processQueuedInput);
+        }
+    }
+
+    /** Releases any input waiting to be processed, and discards any further input. */
+    final void discardInput() {
+        synchronized (mInput) {
+            mDiscarded = true;
+            for (Input input : mInput) {
+                input.release();
+            }
+            mInput.clear();
+        }
+    }
+
+    private void processQueuedInput() {
+        while (true) {
+            Input input;
+            synchronized (mInput) {
+                input = mInput.poll();
+                if (input == null) {
+                    mProcessing = false;
+                    return;
+                }
+            }
+            try {
+                if (input.mBuffer != null && !mResponded) {
+                    ByteBuffer buffer = input.mBuffer.getBuffer();
+                    while (buffer.hasRemaining()) {
+                        processInput(buffer);
+                    }
+                }
+                if (input.mCredit > 0) {
+                    mConnection.consumed(this, input.mCredit);
+                }
+                if (mResponded) {
+                    mConnection.endStream(this);
+                } else if (input.mLast) {
+                    // The request ended without the parser seeing all of it
+                    mConnection.resetStream(mId, Http2Exception.PROTOCOL_ERROR);
+                }
+            } catch (Throwable throwable) {
+                Log.error(getSession(), throwable);
+                mConnection.resetStream(mId, Http2Exception.INTERNAL_ERROR);
+            } finally {
+                input.release();
+            }
+        }
+    }
+
+    @Override
+    void sendContinue() {
+        mConnection.sendHeaders(this, 100, null, false);
+    }
+
+    @Override
+    void sendResponseHead(HttpStatusCode status, List<String> fields, byte[] body, boolean complete) throws IOException {
+        mResponded = true;
+        boolean hasBody = body != null && body.length > 0;
+        mConnection.sendHeaders(this, status.getRequestStatus(), fields, complete && !hasBody);
+        if (hasBody) {
+            mConnection.queueData(this, ByteBuffer.wrap(body), body.length);
+        }
+    }
+
+    @Override
+    void sendResponseBody(ByteBuffer data) throws IOException {
+        mConnection.queueData(this, data, data.remaining());
+    }
+
+    @Override
+    void sendResponseBody(PooledBuffer data) throws IOException {
+        mConnection.queueData(this, data, data.getBuffer().remaining());
+    }
+
+    @Override
+    void sendResponseBody(FileChannel file, long position, long count) throws IOException {
+        mConnection.queueData(this, file, position, count);
+    }
+
+    @Override
+    void waitToSendResponseBody() throws IOException {
+        mConnection.awaitPending(this);
+    }
+
+    @Override
+    void closeAfterResponse(boolean dueToError) {
+        // The stream ends along with the response, so only a failure needs acting on
+        if (dueToError) {
+            mConnection.resetStream(mId, Http2Exception.INTERNAL_ERROR);
+        }
+    }
+
+    private static final class Input {
+        private PooledBuffer mBuffer;
+        private int          mCredit;
+        private boolean      mLast;
+
+        Input(PooledBuffer buffer, int credit, boolean last) {
+            mBuffer = buffer;
+            mCredit = credit;
+            mLast = last;
+        }
+
+        final void release() {
+            if (mBuffer != null) {
+                mBuffer.release();
+                mBuffer = null;
+            }
+        }
+    }
+}
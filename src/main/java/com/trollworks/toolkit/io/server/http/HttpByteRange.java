@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/** A range of bytes within a response body, as requested by a Range header. */
+class HttpByteRange {
+    /** The most ranges a single request may ask for before the Range header is ignored. */
+    static final int  MAXIMUM_RANGES = 16;
+    private      long mStart;
+    private      long mLength;
+
+    /**
+     * @param start  The offset of the first byte.
+     * @param length The number of bytes.
+     */
+    HttpByteRange(long start, long length) {
+        mStart = start;
+        mLength = length;
+    }
+
+    /** @return The offset of the first byte. */
+    final long getStart() {
+        return mStart;
+    }
+
+    /** @return The number of bytes. */
+    final long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @param size The size of the complete body.
+     * @return The value for a Content-Range header describing this range.
+     */
+    final String getContentRange(long size) {
+        return "bytes " + mStart + "-" + (mStart + mLength - 1) + "/" + size;
+    }
+
+    /**
+     * @param header The value of a Range header.
+     * @param size   The size of the complete body.
+     * @return The satisfiable ranges, in the order requested. This will be empty if none of the
+     *         ranges could be satisfied. Returns {@code null} if the header is malformed, uses a unit
+     *         other than bytes, or asks for more than {@link #MAXIMUM_RANGES} ranges or more data
+     *         than the body holds, in which case the header should be ignored and the complete
+     *         body sent.
+     */
+    static List<HttpByteRange> parse(String header, long size) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        List<HttpByteRange> ranges    = new ArrayList<>();
+        long                total     = 0;
+        int                 count     = 0;
+        StringTokenizer     tokenizer = new StringTokenizer(header.substring(6), ",");
+        while (tokenizer.hasMoreTokens()) {
+            String token = tokenizer.nextToken().trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (++count > MAXIMUM_RANGES) {
+                return null;
+            }
+            int dash = token.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // A suffix range, giving the number of bytes at the end
+                    long suffix = Long.parseLong(token.substring(1).trim());
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    start = Math.max(size - suffix, 0);
+                    end = size - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = Long.parseLong(token.substring(0, dash).trim());
+                    String last = token.substring(dash + 1).trim();
+                    end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                    if (start < 0 || !last.isEmpty() && Long.parseLong(last) < start) {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException exception) {
+                return null;
+            }
+            if (start < size) {
+                HttpByteRange range = new HttpByteRange(start, end - start + 1);
+                total += range.mLength;
+                ranges.add(range);
+            }
+        }
+        if (count == 0 || total > size) {
+            return null;
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Controls the compression of HTTP response bodies.<br>
+ * <br>
+ * Whether a body is eligible is decided by its mime type, using {@link
+ * MimeTypes#isCompressible(String)} unless overridden with {@link #setCompressible(String,
+ * boolean)}. Static files are compressed once at the highest level and the result is kept in a
+ * size-bounded cache, keyed by the file's path and last modification time. Dynamic bodies are
+ * compressed at the fastest level, and buffered bodies are only compressed up to {@link
+ * #getMaximumDynamicSize()} bytes, so that compression cannot monopolize the worker threads that
+ * also parse requests.
+ */
+public class HttpCompression {
+    /** The name of the gzip content coding. */
+    public static final String               GZIP                = "gzip";
+    /** The name of the deflate content coding. */
+    public static final String               DEFLATE             = "deflate";
+    private             Map<String, Boolean> mOverrides          = new ConcurrentHashMap<>();
+    private             Map<String, Cached>  mCache              = new LinkedHashMap<>(16, 0.75f, true);
+    private             long                 mCacheSize;
+    private             long                 mMaximumCacheSize   = 32 * 1024 * 1024;
+    private             long                 mMaximumStaticSize  = 4 * 1024 * 1024;
+    private             int                  mMaximumDynamicSize = 1024 * 1024;
+    private             int                  mMinimumSize        = 1024;
+    private             boolean              mEnabled            = true;
+
+    /** @return {@code true} if response bodies may be compressed. */
+    public final boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** @param enabled Whether response bodies may be compressed. */
+    public final void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /** @return The size a body must be before it will be compressed. */
+    public final int getMinimumSize() {
+        return mMinimumSize;
+    }
+
+    /** @param size The size a body must be before it will be compressed. */
+    public final void setMinimumSize(int size) {
+        mMinimumSize = size;
+    }
+
+    /**
+     * @return The largest buffered dynamic body that will be compressed. Streamed bodies are always
+     *         compressed as they are produced when eligible.
+     */
+    public final int getMaximumDynamicSize() {
+        return mMaximumDynamicSize;
+    }
+
+    /** @param size The largest buffered dynamic body that will be compressed. */
+    public final void setMaximumDynamicSize(int size) {
+        mMaximumDynamicSize = size;
+    }
+
+    /**
+     * @return The largest static file that will be compressed. Larger files are sent as-is,
+     *         directly from disk.
+     */
+    public final long getMaximumStaticSize() {
+        return mMaximumStaticSize;
+    }
+
+    /** @param size The largest static file that will be compressed. */
+    public final void setMaximumStaticSize(long size) {
+        mMaximumStaticSize = size;
+    }
+
+    /** @return The maximum number of bytes the cache of compressed static files may hold. */
+    public final synchronized long getMaximumCacheSize() {
+        return mMaximumCacheSize;
+    }
+
+    /**
+     * @param size The maximum number of bytes the cache of compressed static files may hold. The
+     *             least recently used entries are discarded to stay within this size.
+     */
+    public final synchronized void setMaximumCacheSize(long size) {
+        mMaximumCacheSize = size;
+        trimCache();
+    }
+
+    /** @return The number of bytes currently held by the cache of compressed static files. */
+    public final synchronized long getCacheSize() {
+        return mCacheSize;
+    }
+
+    /**
+     * @param mimeType     The mime type to set the policy for.
+     * @param compressible Whether content of that type should be compressed.
+     */
+    public final void setCompressible(String mimeType, boolean compressible) {
+        mOverrides.put(baseType(mimeType), Boolean.valueOf(compressible));
+    }
+
+    /**
+     * @param mimeType The mime type to check.
+     * @return {@code true} if content of the specified type should be compressed.
+     */
+    public final boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        Boolean override = mOverrides.get(baseType(mimeType));
+        return override != null ? override.booleanValue() : MimeTypes.isCompressible(mimeType);
+    }
+
+    private static String baseType(String mimeType) {
+        int index = mimeType.indexOf(';');
+        return (index != -1 ? mimeType.substring(0, index) : mimeType).trim().toLowerCase();
+    }
+
+    /**
+     * @param acceptEncoding The value of the request's Accept-Encoding header. May be {@code null}.
+     * @param mimeType       The mime type of the response body.
+     * @return The content coding to use for the response body, either {@link #GZIP} or {@link
+     *         #DEFLATE}, or {@code null} if the body should not be compressed.
+     */
+    public final String selectEncoding(String acceptEncoding, String mimeType) {
+        if (!mEnabled || acceptEncoding == null || !isCompressible(mimeType)) {
+            return null;
+        }
+        double          gzip      = -1;
+        double          deflate   = -1;
+        double          wildcard  = 0;
+        StringTokenizer tokenizer = new StringTokenizer(acceptEncoding, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String token   = tokenizer.nextToken();
+            double quality = 1;
+            int    index   = token.indexOf(';');
+            if (index != -1) {
+                String parameter = token.substring(index + 1).trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException exception) {
+                        quality = 0;
+                    }
+                }
+                token = token.substring(0, index);
+            }
+            token = token.trim().toLowerCase();
+            if (GZIP.equals(token) || "x-gzip".equals(token)) {
+                gzip = quality;
+            } else if (DEFLATE.equals(token)) {
+                deflate = quality;
+            } else if ("*".equals(token)) {
+                wildcard = quality;
+            }
+        }
+        if (gzip < 0) {
+            gzip = wildcard;
+        }
+        if (deflate < 0) {
+            deflate = wildcard;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * @param out      The stream to send compressed data to.
+     * @param encoding The content coding to use.
+     * @param level    The compression level to use.
+     * @return A stream that compresses data written to it. Closing it finishes the compressed data
+     *         and closes the underlying stream.
+     */
+    static OutputStream compress(OutputStream out, String encoding, int level) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(out, 8192) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        return new DeflaterOutputStream(out, new Deflater(level), 8192) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                // Deflaters we create are not released by the superclass
+                def.end();
+            }
+        };
+    }
+
+    /**
+     * @param data     The data to compress.
+     * @param encoding The content coding to use.
+     * @return The compressed data, or {@code null} if the data isn't eligible or compressing it
+     *         would not make it smaller.
+     */
+    final byte[] compressDynamic(byte[] data, String encoding) throws IOException {
+        if (data.length < mMinimumSize || data.length > mMaximumDynamicSize) {
+            return null;
+        }
+        return compress(data, encoding, Deflater.BEST_SPEED);
+    }
+
+    private static byte[] compress(byte[] data, String encoding, int level) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 3 + 64);
+        try (OutputStream out = compress(baos, encoding, level)) {
+            out.write(data);
+        }
+        return baos.size() < data.length ? baos.toByteArray() : null;
+    }
+
+    /**
+     * @param path     The static file.
+     * @param encoding The content coding to use.
+     * @return The compressed contents of the file, or {@code null} if the file isn't eligible or
+     *         compressing it would not make it smaller.
+     */
+    final byte[] getCompressedFile(Path path, String encoding) throws IOException {
+        return getCompressedFile(path, Files.getLastModifiedTime(path).toMillis(), Files.size(path), encoding);
+    }
+
+    /**
+     * @param path         The static file.
+     * @param lastModified The last modification time of the file.
+     * @param size         The size of the file.
+     * @param encoding     The content coding to use.
+     * @return The compressed contents of the file, or {@code null} if the file isn't eligible or
+     *         compressing it would not make it smaller.
+     */
+    final byte[] getCompressedFile(Path path, long lastModified, long size, String encoding) throws IOException {
+        if (size < mMinimumSize || size > mMaximumStaticSize) {
+            return null;
+        }
+        String key = encoding + ':' + path;
+        synchronized (this) {
+            Cached cached = mCache.get(key);
+            if (cached != null) {
+                if (cached.mLastModified == lastModified) {
+                    return cached.mData;
+                }
+                mCache.remove(key);
+                mCacheSize -= cached.size();
+            }
+        }
+        byte[] data;
+        try (InputStream in = Files.newInputStream(path)) {
+            data = compress(in.readAllBytes(), encoding, Deflater.BEST_COMPRESSION);
+        }
+        // A file that doesn't shrink is remembered too, so the attempt isn't repeated
+        Cached cached = new Cached(lastModified, data, key.length());
+        synchronized (this) {
+            if (cached.size() <= mMaximumCacheSize) {
+                Cached previous = mCache.put(key, cached);
+                if (previous != null) {
+                    mCacheSize -= previous.size();
+                }
+                mCacheSize += cached.size();
+                trimCache();
+            }
+        }
+        return data;
+    }
+
+    private void trimCache() {
+        Iterator<Cached> iterator = mCache.values().iterator();
+        while (mCacheSize > mMaximumCacheSize && iterator.hasNext()) {
+            mCacheSize -= iterator.next().size();
+            iterator.remove();
+        }
+    }
+
+    /** Discards all cached compressed static files. */
+    public final synchronized void clearCache() {
+        mCache.clear();
+        mCacheSize = 0;
+    }
+
+    private static class Cached {
+        long   mLastModified;
+        byte[] mData;
+        int    mKeySize;
+
+        Cached(long lastModified, byte[] data, int keySize) {
+            mLastModified = lastModified;
+            mData = data;
+            mKeySize = keySize;
+        }
+
+        long size() {
+            return (mData != null ? mData.length : 0) + mKeySize;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the status line and header fields of HTTP/1.1 responses directly into bytes. The status
+ * lines, and the header fields that most responses have in common, are encoded up front and
+ * copied in whole. The value of the Date header is formatted at most once a second and shared by
+ * every response sent within that second. Field names and values are encoded as UTF-8, as they
+ * are for HTTP/2.
+ */
+final class HttpHeaderEncoder {
+    private static final    byte[]                           CRLF         = { '\r', '\n' };
+    private static final    byte[]                           SEPARATOR    = { ':', ' ' };
+    private static final    byte[][]                         STATUS_LINES = new byte[HttpStatusCode.values().length][];
+    private static final    Map<String, Map<String, byte[]>> FIELDS       = new HashMap<>();
+    private static volatile CachedDate                       DATE         = new CachedDate(System.currentTimeMillis() / 1000);
+
+    static {
+        for (HttpStatusCode status : HttpStatusCode.values()) {
+            STATUS_LINES[status.ordinal()] = ("HTTP/1.1 " + status.getDescription() + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        addField("Connection", "keep-alive", "close", "Upgrade");
+        addField("Transfer-Encoding", "chunked");
+        addField("Accept-Ranges", "bytes");
+        addField("Vary", "Accept-Encoding");
+        addField("Content-Encoding", "gzip", "br", "deflate");
+        addField("Content-Length", "0");
+        addField("Cache-Control", "no-cache");
+        addField("Upgrade", "WebSocket", "h2c");
+        addField("Content-Type", MimeTypes.BINARY, MimeTypes.CSS, MimeTypes.EVENT_STREAM, MimeTypes.GIF, MimeTypes.HTML, MimeTypes.JAVASCRIPT, MimeTypes.JPEG, MimeTypes.JSON, MimeTypes.PNG, MimeTypes.SVG, MimeTypes.TEXT, MimeTypes.XML);
+    }
+
+    private static void addField(String name, String... values) {
+        Map<String, byte[]> fields = FIELDS.computeIfAbsent(name, key -> new HashMap<>());
+        for (String value : values) {
+            fields.put(value, (name + ": " + value + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /** @return The value for the Date header of a response sent now. */
+    static String getDate() {
+        return currentDate().mValue;
+    }
+
+    private static CachedDate currentDate() {
+        long       second = System.currentTimeMillis() / 1000;
+        CachedDate date   = DATE;
+        if (date.mSecond != second) {
+            // Threads that race to replace it format the same value, so any of them may win
+            date = new CachedDate(second);
+            DATE = date;
+        }
+        return date;
+    }
+
+    /**
+     * @param status The status of the response.
+     * @param fields The names and values of the header fields, alternating.
+     * @return The number of bytes {@link #encode(ByteBuffer, HttpStatusCode, List)} will write.
+     */
+    static int getLength(HttpStatusCode status, List<String> fields) {
+        int length = STATUS_LINES[status.ordinal()].length + CRLF.length;
+        for (int i = 0; i < fields.size(); i += 2) {
+            length += getOctetLength(fields.get(i)) + getOctetLength(fields.get(i + 1)) + SEPARATOR.length + CRLF.length;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the status line and header fields of a response, along with the blank line that ends
+     * them.
+     *
+     * @param buffer The buffer to write to. Must have at least {@link #getLength(HttpStatusCode,
+     *               List)} bytes remaining.
+     * @param status The status of the response.
+     * @param fields The names and values of the header fields, alternating.
+     */
+    static void encode(ByteBuffer buffer, HttpStatusCode status, List<String> fields) {
+        buffer.put(STATUS_LINES[status.ordinal()]);
+        CachedDate date = DATE;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name  = fields.get(i);
+            String value = fields.get(i + 1);
+            if (value == date.mValue && "Date".equals(name)) {
+                buffer.put(date.mField);
+                continue;
+            }
+            Map<String, byte[]> common = FIELDS.get(name);
+            byte[]              field  = common != null ? common.get(value) : null;
+            if (field != null) {
+                buffer.put(field);
+            } else {
+                putOctets(buffer, name);
+                buffer.put(SEPARATOR);
+                putOctets(buffer, value);
+                buffer.put(CRLF);
+            }
+        }
+        buffer.put(CRLF);
+    }
+
+    /**
+     * @param value A header field value.
+     * @return The value with each char holding one octet of its UTF-8 encoding.
+     */
+    static String toOctets(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                return new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+            }
+        }
+        return value;
+    }
+
+    private static int getOctetLength(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) >= 0x80) {
+                return text.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return length;
+    }
+
+    private static void putOctets(ByteBuffer buffer, String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char ch = text.charAt(i);
+            if (ch >= 0x80) {
+                // Everything from the first non-ASCII char on goes out as UTF-8
+                buffer.put(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put((byte) ch);
+        }
+    }
+
+    /** The Date header for a particular second. */
+    private static final class CachedDate {
+        private long   mSecond;
+        private String mValue;
+        private byte[] mField;
+
+        CachedDate(long second) {
+            mSecond = second;
+            mValue = HttpStaticContent.formatDate(second * 1000);
+            mField = ("Date: " + mValue + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
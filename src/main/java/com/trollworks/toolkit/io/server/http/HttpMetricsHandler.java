@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.server.BufferPool;
+import com.trollworks.toolkit.io.server.HandshakeMetrics;
+import com.trollworks.toolkit.io.server.LatencyHistogram;
+import com.trollworks.toolkit.io.server.NioServer;
+import com.trollworks.toolkit.io.server.ServerMetrics;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * A {@link HttpRequestHandler} that reports the {@link ServerMetrics} of the server the request
+ * arrived on, along with its TLS handshake and buffer pool statistics, in the Prometheus text
+ * exposition format. Not registered by default; register it for a URI such as {@code /metrics} to
+ * make it available.
+ */
+public class HttpMetricsHandler implements HttpRequestHandler {
+    /** The content type of the Prometheus text exposition format. */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    public HttpResponse handleHttpRequest(Http http) {
+        NioServer              server   = http.getSession().getServer();
+        ServerMetrics.Snapshot snapshot = server.getMetrics().snapshot();
+        StringBuilder          out      = new StringBuilder(4096);
+        counter(out, "nio_connections_accepted_total", "Connections accepted.", snapshot.getAcceptedCount());
+        counter(out, "nio_connections_closed_total", "Connections closed.", snapshot.getClosedCount());
+        gauge(out, "nio_connections_active", "Connections currently open.", snapshot.getActiveCount());
+        counter(out, "nio_bytes_read_total", "Bytes read from connections.", snapshot.getBytesRead());
+        counter(out, "nio_bytes_written_total", "Bytes written to connections.", snapshot.getBytesWritten());
+        gauge(out, "nio_requests_queued", "Requests waiting in session queues.", snapshot.getQueuedCount());
+        counter(out, "nio_requests_processed_total", "Requests taken from session queues.", snapshot.getProcessedCount());
+        header(out, "nio_queue_wait_seconds", "Time requests spent in session queues.", "histogram");
+        histogram(out, "nio_queue_wait_seconds", null, snapshot.getQueueWait());
+
+        header(out, "nio_http_responses_total", "HTTP responses sent, by status class.", "counter");
+        long[] responses = snapshot.getResponseCounts();
+        for (int i = 0; i < responses.length; i++) {
+            sample(out, "nio_http_responses_total", "code=\"" + (i + 1) + "xx\"", Long.toString(responses[i]));
+        }
+        Map<String, LatencyHistogram.Snapshot> latency = snapshot.getHandlerLatency();
+        if (!latency.isEmpty()) {
+            header(out, "nio_http_handler_duration_seconds", "Time taken by request handlers.", "histogram");
+            for (Map.Entry<String, LatencyHistogram.Snapshot> entry : latency.entrySet()) {
+                histogram(out, "nio_http_handler_duration_seconds", label("handler", entry.getKey()), entry.getValue());
+            }
+            header(out, "nio_http_handler_errors_total", "Request handler failures and server error responses.", "counter");
+            for (Map.Entry<String, Long> entry : snapshot.getHandlerErrors().entrySet()) {
+                sample(out, "nio_http_handler_errors_total", label("handler", entry.getKey()), entry.getValue().toString());
+            }
+        }
+
+        counter(out, "nio_websocket_opened_total", "Web Sockets opened.", snapshot.getWebSocketsOpenedCount());
+        gauge(out, "nio_websocket_active", "Web Sockets currently open.", snapshot.getWebSocketsOpenedCount() - snapshot.getWebSocketsClosedCount());
+        counter(out, "nio_websocket_messages_received_total", "Web Socket messages received.", snapshot.getMessagesReceivedCount());
+        counter(out, "nio_websocket_message_bytes_received_total", "Payload bytes of the Web Socket messages received.", snapshot.getMessageBytesReceived());
+        counter(out, "nio_websocket_messages_sent_total", "Web Socket messages queued for sending.", snapshot.getMessagesSentCount());
+
+        HandshakeMetrics handshakes = server.getHandshakeMetrics();
+        counter(out, "nio_tls_handshakes_total", "TLS handshakes completed.", handshakes.getCompletedCount());
+        counter(out, "nio_tls_handshakes_resumed_total", "TLS handshakes that resumed a session.", handshakes.getResumedCount());
+        counter(out, "nio_tls_handshakes_failed_total", "Secure connections closed before their handshake completed.", handshakes.getFailedCount());
+
+        BufferPool pool = server.getBufferPool();
+        gauge(out, "nio_buffer_pool_outstanding", "Pooled buffers currently in use.", pool.getOutstandingCount());
+        counter(out, "nio_buffer_pool_misses_total", "Pooled buffer allocations that had to create a buffer.", pool.getMissCount());
+        counter(out, "nio_buffer_pool_leaks_total", "Pooled buffers that were never released.", pool.getLeakCount());
+
+        HttpResponse response = new HttpResponse(HttpStatusCode.OK, CONTENT_TYPE, out.toString());
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        sample(out, name, null, Long.toString(value));
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        sample(out, name, null, Long.toString(value));
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram.Snapshot snapshot) {
+        String prefix = labels != null ? labels + "," : "";
+        long[] counts = snapshot.getHistogram();
+        long   total  = 0;
+        for (int i = 0; i < LatencyHistogram.BOUNDS_MICROS.length; i++) {
+            // Prometheus buckets are cumulative
+            total += counts[i];
+            sample(out, name + "_bucket", prefix + "le=\"" + seconds(LatencyHistogram.BOUNDS_MICROS[i]) + "\"", Long.toString(total));
+        }
+        sample(out, name + "_bucket", prefix + "le=\"+Inf\"", Long.toString(snapshot.getCount()));
+        sample(out, name + "_sum", labels, seconds(snapshot.getTotalMicros()));
+        sample(out, name + "_count", labels, Long.toString(snapshot.getCount()));
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String label(String name, String value) {
+        StringBuilder buffer = new StringBuilder(name.length() + value.length() + 3);
+        buffer.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+            case '\\':
+                buffer.append("\\\\");
+                break;
+            case '"':
+                buffer.append("\\\"");
+                break;
+            case '\n':
+                buffer.append("\\n");
+                break;
+            default:
+                buffer.append(ch);
+                break;
+            }
+        }
+        return buffer.append('"').toString();
+    }
+
+    private static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,651 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An incremental HTTP request parser. Bytes are scanned directly out of the {@link ByteBuffer}s
+ * handed to {@link #parse(ByteBuffer)}, with the header block copied in bulk into a reusable array
+ * and the request line and header fields recorded as offsets into it. Strings are only created for
+ * the parts of the request that are actually asked for, and well-known header names are mapped to
+ * shared constants. A single instance is meant to be reused for every request on a connection.<br>
+ * <br>
+ * Bodies may be delimited by either a {@code Content-Length} or {@code Transfer-Encoding: chunked}.
+ * They are normally buffered in memory, subject to {@link #MAXIMUM_CONTENT_SIZE}, but may instead
+ * be streamed to a {@link WritableByteChannel} as they arrive, in which case no limit applies.
+ */
+class HttpRequestParser {
+    static final         int                       MAXIMUM_HEADER_SIZE  = 8 * 1024;
+    static final         int                       MAXIMUM_CONTENT_SIZE = 1024 * 1024;
+    /** Returned by {@link #parse(ByteBuffer)} when more data is required. */
+    static final         int                       NEED_MORE            = 0;
+    /** Returned by {@link #parse(ByteBuffer)} once the request line and headers are available. */
+    static final         int                       HEADER_COMPLETE      = 1;
+    /** Returned by {@link #parse(ByteBuffer)} once the entire request has been received. */
+    static final         int                       REQUEST_COMPLETE     = 2;
+    private static final int                       MAXIMUM_LINE_SIZE    = 1024;
+    private static final int                       STATE_HEADER         = 0;
+    private static final int                       STATE_BODY_START     = 1;
+    private static final int                       STATE_BODY           = 2;
+    private static final int                       STATE_CHUNK_SIZE     = 3;
+    private static final int                       STATE_CHUNK_DATA     = 4;
+    private static final int                       STATE_CHUNK_END      = 5;
+    private static final int                       STATE_TRAILER        = 6;
+    private static final int                       STATE_DONE           = 7;
+    /** The request line that starts the HTTP/2 connection preface. */
+    private static final byte[]                    PREFACE_LINE         = "PRI * HTTP/2.0".getBytes(StandardCharsets.US_ASCII);
+    private static final String[][]                KNOWN_HEADERS;
+    private              byte[]                    mHeader              = new byte[MAXIMUM_HEADER_SIZE];
+    private              int                       mHeaderLength;
+    private              boolean                   mAtLineStart;
+    private              int                       mState;
+    private              HttpMethod                mMethod;
+    private              boolean                   mPreface;
+    private              int                       mUriStart;
+    private              int                       mUriEnd;
+    private              int                       mVersionMajor;
+    private              int                       mVersionMinor;
+    private              int                       mHeaderCount;
+    private              String[]                  mNames               = new String[16];
+    private              int[]                     mValues              = new int[32];
+    private              Map<String, List<String>> mHeaderMap;
+    private              boolean                   mChunked;
+    private              long                      mContentLength;
+    private              long                      mRemaining;
+    private              byte[]                    mLine                = new byte[MAXIMUM_LINE_SIZE];
+    private              int                       mLineLength;
+    private              byte[]                    mBody;
+    private              int                       mBodyLength;
+    private              WritableByteChannel       mBodyChannel;
+
+    static {
+        String[] names = {"accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "cache-control", "connection", "content-encoding", "content-length", "content-type", "cookie", "expect", "host", "if-match", "if-modified-since", "if-none-match", "if-range", "if-unmodified-since", "last-event-id", "origin", "pragma", "range", "referer", "sec-websocket-draft", "sec-websocket-extensions", "sec-websocket-key", "sec-websocket-protocol", "sec-websocket-version", "te", "transfer-encoding", "upgrade", "user-agent", "x-forwarded-for"};
+        int max = 0;
+        for (String name : names) {
+            max = Math.max(max, name.length());
+        }
+        KNOWN_HEADERS = new String[max + 1][];
+        for (String name : names) {
+            String[] existing = KNOWN_HEADERS[name.length()];
+            if (existing == null) {
+                existing = new String[0];
+            }
+            existing = Arrays.copyOf(existing, existing.length + 1);
+            existing[existing.length - 1] = name;
+            KNOWN_HEADERS[name.length()] = existing;
+        }
+    }
+
+    /** Prepares this parser for the next request on the connection. */
+    final void reset() {
+        mHeaderLength = 0;
+        mAtLineStart = false;
+        mState = STATE_HEADER;
+        mMethod = null;
+        mPreface = false;
+        mUriStart = 0;
+        mUriEnd = 0;
+        mVersionMajor = 0;
+        mVersionMinor = 0;
+        Arrays.fill(mNames, 0, mHeaderCount, null);
+        mHeaderCount = 0;
+        mHeaderMap = null;
+        mChunked = false;
+        mContentLength = 0;
+        mRemaining = 0;
+        mLineLength = 0;
+        if (mBody != null && mBody.length > MAXIMUM_HEADER_SIZE) {
+            mBody = null;
+        }
+        mBodyLength = 0;
+        if (mBodyChannel != null) {
+            try {
+                mBodyChannel.close();
+            } catch (IOException ioe) {
+                // Ignore, as the request is being abandoned
+            }
+            mBodyChannel = null;
+        }
+    }
+
+    /**
+     * Consumes bytes from the buffer until either the buffer is exhausted, the headers have been
+     * seen, or the entire request has been seen. Bytes beyond the end of the request are left in
+     * the buffer.
+     *
+     * @param buffer The data to parse.
+     * @return {@link #HEADER_COMPLETE} the first time it is called after the headers have been
+     *         received, {@link #REQUEST_COMPLETE} once the entire request has been received, or
+     *         {@link #NEED_MORE} if the buffer was exhausted before either of those occurred.
+     */
+    final int parse(ByteBuffer buffer) throws IOException {
+        while (true) {
+            switch (mState) {
+            case STATE_HEADER:
+                if (!scanHeader(buffer)) {
+                    return NEED_MORE;
+                }
+                parseHeader();
+                mState = STATE_BODY_START;
+                return HEADER_COMPLETE;
+            case STATE_BODY_START:
+                startBody();
+                break;
+            case STATE_BODY:
+                if (mRemaining > 0) {
+                    if (!buffer.hasRemaining()) {
+                        return NEED_MORE;
+                    }
+                    consumeBody(buffer);
+                }
+                if (mRemaining == 0) {
+                    mState = STATE_DONE;
+                }
+                break;
+            case STATE_CHUNK_SIZE:
+                if (!scanLine(buffer)) {
+                    return NEED_MORE;
+                }
+                mRemaining = parseChunkSize();
+                mState = mRemaining == 0 ? STATE_TRAILER : STATE_CHUNK_DATA;
+                break;
+            case STATE_CHUNK_DATA:
+                if (!buffer.hasRemaining()) {
+                    return NEED_MORE;
+                }
+                consumeBody(buffer);
+                if (mRemaining == 0) {
+                    mState = STATE_CHUNK_END;
+                }
+                break;
+            case STATE_CHUNK_END:
+                if (!scanLine(buffer)) {
+                    return NEED_MORE;
+                }
+                if (mLineLength != 0) {
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk");
+                }
+                mState = STATE_CHUNK_SIZE;
+                break;
+            case STATE_TRAILER:
+                // Trailer fields are accepted, but ignored
+                if (!scanLine(buffer)) {
+                    return NEED_MORE;
+                }
+                if (mLineLength == 0) {
+                    mState = STATE_DONE;
+                }
+                mLineLength = 0;
+                break;
+            default:
+                closeBodyChannel();
+                return REQUEST_COMPLETE;
+            }
+        }
+    }
+
+    private void startBody() throws IOException {
+        if (mChunked) {
+            mState = STATE_CHUNK_SIZE;
+        } else {
+            mRemaining = mContentLength;
+            mState = STATE_BODY;
+        }
+        if (mBodyChannel == null) {
+            if (mContentLength > MAXIMUM_CONTENT_SIZE) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Content too large");
+            }
+            if (mContentLength > MAXIMUM_HEADER_SIZE) {
+                mBody = new byte[(int) mContentLength];
+            } else if (mBody == null) {
+                mBody = new byte[MAXIMUM_HEADER_SIZE];
+            }
+        }
+    }
+
+    private void consumeBody(ByteBuffer buffer) throws IOException {
+        int amount = (int) Math.min(buffer.remaining(), mRemaining);
+        if (mBodyChannel != null) {
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + amount);
+            while (buffer.hasRemaining()) {
+                mBodyChannel.write(buffer);
+            }
+            buffer.limit(limit);
+        } else {
+            int needed = mBodyLength + amount;
+            if (needed > mBody.length) {
+                // Only chunked bodies grow beyond the space allocated up front
+                if (needed > MAXIMUM_CONTENT_SIZE) {
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Content too large");
+                }
+                mBody = Arrays.copyOf(mBody, Math.min(Math.max(needed, mBody.length * 2), MAXIMUM_CONTENT_SIZE));
+            }
+            buffer.get(mBody, mBodyLength, amount);
+            mBodyLength += amount;
+        }
+        mRemaining -= amount;
+    }
+
+    private void closeBodyChannel() throws IOException {
+        if (mBodyChannel != null) {
+            WritableByteChannel channel = mBodyChannel;
+            mBodyChannel = null;
+            channel.close();
+        }
+    }
+
+    private boolean scanLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                return true;
+            }
+            if (b != '\r') {
+                if (mLineLength < mLine.length) {
+                    mLine[mLineLength] = b;
+                }
+                mLineLength++;
+            }
+        }
+        return false;
+    }
+
+    private long parseChunkSize() throws IOException {
+        long size  = 0;
+        int  count = 0;
+        int  max   = Math.min(mLineLength, mLine.length);
+        while (count < max) {
+            int digit = Character.digit(mLine[count], 16);
+            if (digit == -1) {
+                break;
+            }
+            if (++count > 15) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk size");
+            }
+            size = size << 4 | digit;
+        }
+        if (count == 0 || count < max && mLine[count] != ';' && mLine[count] != ' ' && mLine[count] != '\t') {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk size");
+        }
+        mLineLength = 0;
+        return size;
+    }
+
+    private boolean scanHeader(ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        int limit    = buffer.limit();
+        if (mHeaderLength == 0) {
+            // Ignore any blank lines preceding the request line
+            while (position < limit) {
+                byte b = buffer.get(position);
+                if (b != '\r' && b != '\n') {
+                    break;
+                }
+                position++;
+            }
+            buffer.position(position);
+        }
+        boolean atLineStart = mAtLineStart;
+        boolean found       = false;
+        int     i           = position;
+        while (i < limit) {
+            byte b = buffer.get(i++);
+            if (b == '\n') {
+                if (atLineStart) {
+                    found = true;
+                    break;
+                }
+                atLineStart = true;
+            } else if (b != '\r') {
+                atLineStart = false;
+            }
+        }
+        int count = i - position;
+        if (mHeaderLength + count > mHeader.length) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Header too large");
+        }
+        buffer.get(mHeader, mHeaderLength, count);
+        mHeaderLength += count;
+        mAtLineStart = atLineStart;
+        return found;
+    }
+
+    private void parseHeader() throws IOException {
+        // Request line
+        int lf  = indexOf('\n', 0, mHeaderLength);
+        int end = trimTrailing(0, lf);
+        int sp  = indexOf(' ', 0, end);
+        if (sp <= 0) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        mMethod = lookupMethod(0, sp);
+        if (mMethod == null) {
+            if (matches(PREFACE_LINE, 0, end)) {
+                // The start of the HTTP/2 connection preface, which has no header fields or body
+                mPreface = true;
+                return;
+            }
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        mUriStart = skipWhitespace(sp, end);
+        mUriEnd = indexOf(' ', mUriStart, end);
+        if (mUriEnd == -1 || mUriEnd == mUriStart) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        parseVersion(skipWhitespace(mUriEnd, end), end);
+
+        // Header fields
+        int start = lf + 1;
+        while (start < mHeaderLength) {
+            lf = indexOf('\n', start, mHeaderLength);
+            if (lf == -1) {
+                lf = mHeaderLength;
+            }
+            end = trimTrailing(start, lf);
+            if (end == start) {
+                break;
+            }
+            int colon = indexOf(':', start, end);
+            if (colon != -1) {
+                int nameEnd = trimTrailing(start, colon);
+                int value   = skipWhitespace(colon + 1, end);
+                addHeader(internName(skipWhitespace(start, nameEnd), nameEnd), value, end);
+            }
+            start = lf + 1;
+        }
+
+        // Body framing
+        int index = findHeader("transfer-encoding");
+        if (index != -1) {
+            start = mValues[index * 2];
+            end = mValues[index * 2 + 1];
+            if (end - start < 7 || !"chunked".equalsIgnoreCase(new String(mHeader, end - 7, 7, StandardCharsets.US_ASCII))) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Unsupported transfer encoding");
+            }
+            mChunked = true;
+        } else {
+            index = findHeader("content-length");
+            if (index != -1) {
+                mContentLength = parseLong(mValues[index * 2], mValues[index * 2 + 1]);
+                if (mContentLength < 0) {
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid content length");
+                }
+            }
+        }
+    }
+
+    private void parseVersion(int start, int end) throws IOException {
+        if (end - start < 8 || mHeader[start] != 'H' || mHeader[start + 1] != 'T' || mHeader[start + 2] != 'T' || mHeader[start + 3] != 'P' || mHeader[start + 4] != '/') {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        start += 5;
+        int dot = indexOf('.', start, end);
+        if (dot == -1) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        mVersionMajor = parseInt(start, dot);
+        mVersionMinor = parseInt(dot + 1, end);
+        if (mVersionMajor < 0 || mVersionMinor < 0) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+    }
+
+    private boolean matches(byte[] bytes, int start, int end) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (mHeader[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private HttpMethod lookupMethod(int start, int end) {
+        int length = end - start;
+        for (HttpMethod method : HttpMethod.values()) {
+            String name = method.name();
+            if (name.length() == length) {
+                int i = 0;
+                while (i < length && name.charAt(i) == toUpperCase(mHeader[start + i])) {
+                    i++;
+                }
+                if (i == length) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
+
+    private String internName(int start, int end) {
+        int length = end - start;
+        if (length < KNOWN_HEADERS.length && KNOWN_HEADERS[length] != null) {
+            for (String name : KNOWN_HEADERS[length]) {
+                int i = 0;
+                while (i < length && name.charAt(i) == toLowerCase(mHeader[start + i])) {
+                    i++;
+                }
+                if (i == length) {
+                    return name;
+                }
+            }
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (toLowerCase(mHeader[start + i]) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    private void addHeader(String name, int valueStart, int valueEnd) {
+        if (mHeaderCount == mNames.length) {
+            mNames = Arrays.copyOf(mNames, mHeaderCount * 2);
+            mValues = Arrays.copyOf(mValues, mHeaderCount * 4);
+        }
+        mNames[mHeaderCount] = name;
+        mValues[mHeaderCount * 2] = valueStart;
+        mValues[mHeaderCount * 2 + 1] = valueEnd;
+        mHeaderCount++;
+    }
+
+    private int findHeader(String name) {
+        for (int i = 0; i < mHeaderCount; i++) {
+            String one = mNames[i];
+            if (one == name || one.equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String getValue(int index) {
+        int start = mValues[index * 2];
+        return new String(mHeader, start, mValues[index * 2 + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    private int indexOf(int ch, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (mHeader[i] == ch) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipWhitespace(int start, int end) {
+        while (start < end && (mHeader[start] == ' ' || mHeader[start] == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimTrailing(int start, int end) {
+        while (end > start && (mHeader[end - 1] == '\r' || mHeader[end - 1] == ' ' || mHeader[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private int parseInt(int start, int end) {
+        if (start >= end || end - start > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = mHeader[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private long parseLong(int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = mHeader[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static int toUpperCase(byte b) {
+        return b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b;
+    }
+
+    /** @return {@code true} if the request line and headers have not yet been fully received. */
+    final boolean isReadingHeader() {
+        return mState == STATE_HEADER;
+    }
+
+    /**
+     * @return {@code true} if the header was the start of the HTTP/2 connection preface rather than
+     *         a request. Any remainder of the preface is left unparsed.
+     */
+    final boolean isPreface() {
+        return mPreface;
+    }
+
+    /** @return The {@link HttpMethod} of the request. */
+    final HttpMethod getMethod() {
+        return mMethod;
+    }
+
+    /** @return The request target, exactly as it appeared on the request line. */
+    final String getRawUri() {
+        return new String(mHeader, mUriStart, mUriEnd - mUriStart, StandardCharsets.UTF_8);
+    }
+
+    /** @return The major version number of the HTTP protocol used for the request. */
+    final int getVersionMajor() {
+        return mVersionMajor;
+    }
+
+    /** @return The minor version number of the HTTP protocol used for the request. */
+    final int getVersionMinor() {
+        return mVersionMinor;
+    }
+
+    /** @return {@code true} if the request has a body. */
+    final boolean hasBody() {
+        return mChunked || mContentLength > 0;
+    }
+
+    /** @return {@code true} if the request body uses the chunked transfer coding. */
+    final boolean isChunked() {
+        return mChunked;
+    }
+
+    /**
+     * Arranges for the request body to be written to the specified channel as it arrives, rather
+     * than being buffered. May only be called after {@link #parse(ByteBuffer)} has returned {@link
+     * #HEADER_COMPLETE} and before it is called again.
+     *
+     * @param channel The channel to write the body to. It will be closed once the body is
+     *                complete or this parser is reset.
+     */
+    final void setBodyChannel(WritableByteChannel channel) {
+        mBodyChannel = channel;
+    }
+
+    /**
+     * @return The buffer holding the body of the request. Only the first {@link #getBodyLength()}
+     *         bytes are valid.
+     */
+    final byte[] getBody() {
+        return mBody != null ? mBody : new byte[0];
+    }
+
+    /** @return The number of bytes of the request body held by {@link #getBody()}. */
+    final int getBodyLength() {
+        return mBodyLength;
+    }
+
+    /**
+     * @param name The name of a header to check.
+     * @return {@code true} if the header exists in the request.
+     */
+    final boolean hasHeader(String name) {
+        return findHeader(name) != -1;
+    }
+
+    /**
+     * @param name The name of a header to return.
+     * @return The first value for that header, or {@code null} if no header with that name exists.
+     */
+    final String getFirstHeader(String name) {
+        int index = findHeader(name);
+        return index != -1 ? getValue(index) : null;
+    }
+
+    /**
+     * @param name The name of a header to return.
+     * @return The value(s) for that header, or {@code null} if no header with that name exists.
+     */
+    final List<String> getHeader(String name) {
+        return getHeaders().get(name.toLowerCase());
+    }
+
+    /** @return All HTTP headers in the request, keyed by their lower-cased name. */
+    final Map<String, List<String>> getHeaders() {
+        if (mHeaderMap == null) {
+            mHeaderMap = new HashMap<>();
+            for (int i = 0; i < mHeaderCount; i++) {
+                mHeaderMap.computeIfAbsent(mNames[i], k -> new ArrayList<>()).add(getValue(i));
+            }
+        }
+        return mHeaderMap;
+    }
+}
@@ -12,35 +12,37 @@
 package com.trollworks.toolkit.io.server.http;
 
 import com.trollworks.toolkit.io.Log;
+import com.trollworks.toolkit.io.server.BufferPool;
+import com.trollworks.toolkit.io.server.PooledBuffer;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.zip.Deflater;
 
 /** Stores a HTTP response for a request. */
 public class HttpResponse {
-    private static final SimpleDateFormat    GMT_DATE_FORMAT = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-    private              HttpStatusCode      mStatus;
-    private              String              mMimeType;
-    private              Object              mData;
-    private              Map<String, String> mHeader         = new HashMap<>();
-    private              HttpMethod          mRequestMethod;
-
-    static {
-        GMT_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    /** The chunk that terminates a chunked body. */
+    static final byte[]              LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private      HttpStatusCode      mStatus;
+    private      String              mMimeType;
+    private      Object              mData;
+    private      Map<String, String> mHeader    = new HashMap<>();
+    private      HttpMethod          mRequestMethod;
 
     /**
      * Creates a new, empty {@link HttpResponse} with a type of {@link MimeTypes#TEXT} and a status
@@ -75,7 +77,13 @@ public class HttpResponse {
      *
      * @param status   The {@link HttpStatusCode} to use.
      * @param mimeType The mime type to use.
-     * @param data     The data for the body content. May be {@code null}.
+     * @param data     The data for the body content. May be {@code null}. A {@link Path} is sent
+     *                 directly from disk. A {@link HttpResponseWriter} is asked to write the body
+     *                 once the headers have been sent. An {@link InputStream} or {@link
+     *                 ReadableByteChannel} is read until exhausted and then closed. These last two
+     *                 forms are streamed as they are produced, using the chunked transfer coding
+     *                 when the client supports it. Anything else is sent as its bytes or its
+     *                 string form.
      */
     public HttpResponse(HttpStatusCode status, String mimeType, Object data) {
         mStatus = status;
@@ -132,73 +140,285 @@ public class HttpResponse {
     public final void send(Http http) {
         if (mStatus == null) {
             Log.error(http.getSession(), "sendResponse(): Status may not be null.");
+        } else {
+            http.getSession().getServer().getMetrics().recordResponse(mStatus.getRequestStatus());
         }
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(16 * 1024);
-            PrintWriter           pw   = new PrintWriter(baos, false, StandardCharsets.UTF_8);
-            pw.print("HTTP/1.1 ");
-            pw.print(mStatus.getDescription());
-            pw.print("\r\n");
-
+            if (mStatus == HttpStatusCode.OK && (mData instanceof Path || mData instanceof HttpStaticFile)) {
+                mHeader.putIfAbsent("Accept-Ranges", "bytes");
+                String range = http.getFirstHeader("range");
+                if (range != null && (mRequestMethod == null || mRequestMethod == HttpMethod.GET) && sendRanges(http, range)) {
+                    return;
+                }
+            }
+            List<String> fields = new ArrayList<>();
             if (mMimeType != null) {
-                writeHeader(pw, "Content-Type", mMimeType);
+                addField(fields, "Content-Type", mMimeType);
             }
 
-            if (mHeader == null || mHeader.get("Date") == null) {
-                writeHeader(pw, "Date", GMT_DATE_FORMAT.format(new Date()));
+            if (mHeader.get("Date") == null) {
+                addField(fields, "Date", HttpHeaderEncoder.getDate());
             }
 
-            if (mHeader != null) {
-                for (Map.Entry<String, String> entry : mHeader.entrySet()) {
-                    writeHeader(pw, entry.getKey(), entry.getValue());
-                }
+            FileChannel     file        = null;
+            boolean         chunked     = false;
+            long            size        = 0;
+            boolean         streamed    = mData instanceof HttpResponseWriter || mData instanceof InputStream || mData instanceof ReadableByteChannel;
+            HttpCompression compression = http.getCompression();
+            String          encoding    = null;
+            if (mData != null && !mHeader.containsKey("Content-Encoding") && compression.isEnabled() && compression.isCompressible(mMimeType)) {
+                addField(fields, "Vary", "Accept-Encoding");
+                encoding = compression.selectEncoding(http.getFirstHeader("accept-encoding"), mMimeType);
             }
-
-            if (mData != null) {
-                writeHeader(pw, "Connection", "keep-alive");
+            if (streamed) {
+                chunked = supportsChunked(http);
+                if (chunked) {
+                    addConnectionField(fields, "keep-alive");
+                    addField(fields, "Transfer-Encoding", "chunked");
+                } else {
+                    // Without a length or chunking, the end of the body is marked by closing
+                    addConnectionField(fields, "close");
+                }
+                if (encoding != null) {
+                    addField(fields, "Content-Encoding", encoding);
+                }
+            } else if (mData != null) {
+                addConnectionField(fields, "keep-alive");
+                boolean precompressed = false;
+                if (mData instanceof HttpStaticFile) {
+                    HttpStaticFile staticFile = (HttpStaticFile) mData;
+                    byte[]         compressed = encoding != null ? compression.getCompressedFile(staticFile.getPath(), staticFile.getLastModified(), staticFile.getSize(), encoding) : null;
+                    if (compressed != null) {
+                        mData = compressed;
+                        precompressed = true;
+                    } else {
+                        encoding = null;
+                        mData = staticFile.getData() != null ? staticFile.getData() : staticFile.getPath();
+                    }
+                } else if (mData instanceof Path && encoding != null) {
+                    byte[] compressed = compression.getCompressedFile((Path) mData, encoding);
+                    if (compressed != null) {
+                        mData = compressed;
+                        precompressed = true;
+                    } else {
+                        encoding = null;
+                    }
+                }
                 if (mData instanceof Path) {
-                    writeHeader(pw, "Content-Length", Long.toString(Files.size((Path) mData)));
+                    if (mRequestMethod == HttpMethod.HEAD) {
+                        size = Files.size((Path) mData);
+                    } else {
+                        file = FileChannel.open((Path) mData, StandardOpenOption.READ);
+                        size = file.size();
+                    }
+                    addField(fields, "Content-Length", Long.toString(size));
                 } else {
                     if (mData instanceof ByteArrayOutputStream) {
                         mData = ((ByteArrayOutputStream) mData).toByteArray();
                     } else if (!(mData instanceof byte[])) {
                         mData = mData.toString().getBytes(StandardCharsets.UTF_8);
                     }
-                    writeHeader(pw, "Content-Length", Integer.toString(((byte[]) mData).length));
+                    if (encoding != null && !precompressed) {
+                        byte[] compressed = compression.compressDynamic((byte[]) mData, encoding);
+                        if (compressed != null) {
+                            mData = compressed;
+                        } else {
+                            encoding = null;
+                        }
+                    }
+                    if (encoding != null) {
+                        addField(fields, "Content-Encoding", encoding);
+                    }
+                    addField(fields, "Content-Length", Integer.toString(((byte[]) mData).length));
                 }
             }
 
-            pw.print("\r\n");
-            pw.flush();
+            for (Map.Entry<String, String> entry : mHeader.entrySet()) {
+                String value = entry.getValue();
+                if (encoding != null && "ETag".equalsIgnoreCase(entry.getKey()) && value.endsWith("\"")) {
+                    // The compressed body is a different representation, so needs its own tag
+                    value = HttpStaticContent.encodedETag(value, encoding);
+                }
+                addField(fields, entry.getKey(), value);
+            }
 
-            if (mRequestMethod != HttpMethod.HEAD && mData != null) {
-                if (mData instanceof Path) {
-                    try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream((Path) mData, StandardOpenOption.READ))) {
-                        byte[] buffer  = new byte[16 * 1024];
-                        long   pending = Files.size((Path) mData);
-                        while (pending > 0) {
-                            int read = in.read(buffer, 0, pending > buffer.length ? buffer.length : (int) pending);
-                            if (read <= 0) {
-                                break;
-                            }
-                            baos.write(buffer, 0, read);
-                            pending -= read;
-                        }
-                    }
+            byte[] body = mRequestMethod != HttpMethod.HEAD && mData instanceof byte[] ? (byte[]) mData : null;
+            http.sendResponseHead(mStatus, fields, body, file == null && (!streamed || mRequestMethod == HttpMethod.HEAD));
+            if (file != null) {
+                // The file body goes straight from disk to the socket as it drains
+                http.sendResponseBody(file, 0, size);
+            } else if (streamed) {
+                sendStreamed(http, chunked, encoding);
+            }
+        } catch (IOException exception) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Sends the requested ranges of a file body, or a 416 response if none of them can be
+     * satisfied.
+     *
+     * @return {@code false} if the Range header should be ignored and the complete body sent
+     *         instead.
+     */
+    private boolean sendRanges(Http http, String header) throws IOException {
+        Path   path;
+        byte[] data;
+        long   size;
+        long   lastModified;
+        if (mData instanceof HttpStaticFile) {
+            HttpStaticFile staticFile = (HttpStaticFile) mData;
+            path = staticFile.getPath();
+            data = staticFile.getData();
+            size = staticFile.getSize();
+            lastModified = staticFile.getLastModified();
+        } else {
+            path = (Path) mData;
+            data = null;
+            size = Files.size(path);
+            lastModified = Files.getLastModifiedTime(path).toMillis();
+        }
+        String ifRange = http.getFirstHeader("if-range");
+        if (ifRange != null) {
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                // Only a strong comparison is permitted here, so weak tags never match
+                if (!ifRange.equals(mHeader.get("ETag"))) {
+                    return false;
+                }
+            } else if (HttpStaticContent.parseDate(ifRange) / 1000 != lastModified / 1000) {
+                return false;
+            }
+        }
+        List<HttpByteRange> ranges = HttpByteRange.parse(header, size);
+        if (ranges == null) {
+            return false;
+        }
+
+        List<String> fields = new ArrayList<>();
+        if (mHeader.get("Date") == null) {
+            addField(fields, "Date", HttpHeaderEncoder.getDate());
+        }
+        for (Map.Entry<String, String> entry : mHeader.entrySet()) {
+            addField(fields, entry.getKey(), entry.getValue());
+        }
+        addConnectionField(fields, "keep-alive");
+
+        if (ranges.isEmpty()) {
+            addField(fields, "Content-Range", "bytes */" + size);
+            addField(fields, "Content-Length", "0");
+            http.sendResponseHead(HttpStatusCode.RANGE_NOT_SATISFIABLE, fields, null, true);
+        } else if (ranges.size() == 1) {
+            HttpByteRange range = ranges.get(0);
+            if (mMimeType != null) {
+                addField(fields, "Content-Type", mMimeType);
+            }
+            addField(fields, "Content-Range", range.getContentRange(size));
+            addField(fields, "Content-Length", Long.toString(range.getLength()));
+            http.sendResponseHead(HttpStatusCode.PARTIAL_CONTENT, fields, null, false);
+            sendRegion(http, path, data, range);
+        } else {
+            String       boundary = Long.toHexString(Double.doubleToLongBits(Math.random())) + Long.toHexString(System.nanoTime());
+            List<byte[]> parts    = new ArrayList<>();
+            long         length   = 0;
+            for (HttpByteRange range : ranges) {
+                StringBuilder buffer = new StringBuilder();
+                buffer.append("\r\n--");
+                buffer.append(boundary);
+                buffer.append("\r\n");
+                if (mMimeType != null) {
+                    buffer.append("Content-Type: ");
+                    buffer.append(mMimeType);
+                    buffer.append("\r\n");
+                }
+                buffer.append("Content-Range: ");
+                buffer.append(range.getContentRange(size));
+                buffer.append("\r\n\r\n");
+                byte[] part = buffer.toString().getBytes(StandardCharsets.US_ASCII);
+                parts.add(part);
+                length += part.length + range.getLength();
+            }
+            byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            length += end.length;
+            addField(fields, "Content-Type", "multipart/byteranges; boundary=" + boundary);
+            addField(fields, "Content-Length", Long.toString(length));
+            http.sendResponseHead(HttpStatusCode.PARTIAL_CONTENT, fields, null, false);
+            for (int i = 0; i < parts.size(); i++) {
+                http.sendResponseBody(ByteBuffer.wrap(parts.get(i)));
+                sendRegion(http, path, data, ranges.get(i));
+            }
+            http.sendResponseBody(ByteBuffer.wrap(end));
+        }
+        return true;
+    }
+
+    private static void sendRegion(Http http, Path path, byte[] data, HttpByteRange range) throws IOException {
+        if (data != null) {
+            http.sendResponseBody(ByteBuffer.wrap(data, (int) range.getStart(), (int) range.getLength()));
+        } else {
+            // Each region gets its own channel, as the channel is closed once the region is sent
+            http.sendResponseBody(FileChannel.open(path, StandardOpenOption.READ), range.getStart(), range.getLength());
+        }
+    }
+
+    private void sendStreamed(Http http, boolean chunked, String encoding) {
+        try {
+            if (mRequestMethod == HttpMethod.HEAD) {
+                if (mData instanceof Closeable) {
+                    ((Closeable) mData).close();
+                }
+            } else {
+                HttpResponseOutputStream body = new HttpResponseOutputStream(http, chunked);
+                OutputStream             out  = encoding != null ? HttpCompression.compress(body, encoding, Deflater.BEST_SPEED) : body;
+                if (mData instanceof HttpResponseWriter) {
+                    ((HttpResponseWriter) mData).writeHttpResponseBody(out);
                 } else {
-                    baos.write((byte[]) mData);
+                    try (InputStream in = mData instanceof InputStream ? (InputStream) mData : Channels.newInputStream((ReadableByteChannel) mData)) {
+                        in.transferTo(out);
+                    }
                 }
+                // Only closed on success, as closing marks the end of the body
+                out.close();
             }
-            http.send(ByteBuffer.wrap(baos.toByteArray()));
         } catch (IOException exception) {
-            // Ignore
+            // The headers are already out, so the only way left to signal the failure is to drop
+            // the connection before the body is complete
+            http.closeAfterResponse(true);
+            return;
         }
+        if (!chunked) {
+            http.closeAfterResponse(false);
+        }
+    }
+
+    private static boolean supportsChunked(Http http) {
+        // HTTP/2 has no chunked coding, as the framing of its streams marks the end of the body
+        return http.getVersionMajor() == 1 && http.getVersionMinor() > 0;
+    }
+
+    /**
+     * @param pool The {@link BufferPool} to obtain the buffer from.
+     * @param data The data to place into a chunk. Must not be empty, as an empty chunk marks the
+     *             end of the body.
+     * @return A pooled buffer containing the data framed as a single chunk.
+     */
+    static PooledBuffer frameChunk(BufferPool pool, ByteBuffer data) {
+        byte[]       size   = Integer.toHexString(data.remaining()).getBytes(StandardCharsets.US_ASCII);
+        PooledBuffer pooled = pool.allocate(size.length + data.remaining() + 4);
+        pooled.getBuffer().put(size).put((byte) '\r').put((byte) '\n').put(data).put((byte) '\r').put((byte) '\n').flip();
+        return pooled;
+    }
+
+    private static void addField(List<String> fields, String name, String value) {
+        fields.add(name);
+        fields.add(value);
     }
 
-    private static void writeHeader(PrintWriter out, String name, String value) {
-        out.print(name);
-        out.print(": ");
-        out.print(value);
-        out.print("\r\n");
+    /** Adds a Connection field, unless one has been set explicitly. */
+    private void addConnectionField(List<String> fields, String value) {
+        if (!mHeader.containsKey("Connection")) {
+            addField(fields, "Connection", value);
+        }
     }
 }
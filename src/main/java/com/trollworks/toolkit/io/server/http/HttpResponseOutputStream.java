@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.server.PooledBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the body of a {@link HttpResponse} as it is written, optionally framing it with the chunked
+ * transfer coding. Before each block is queued, the calling thread waits for the connection to
+ * drain any backlog, so a slow client throttles the producer instead of growing the queue.
+ */
+class HttpResponseOutputStream extends OutputStream {
+    private static final int     BLOCK_SIZE = 16 * 1024;
+    private              Http    mHttp;
+    private              boolean mChunked;
+    private              byte[]  mBuffer    = new byte[BLOCK_SIZE];
+    private              int     mCount;
+    private              boolean mClosed;
+
+    /**
+     * @param http    The {@link Http} connection to send through.
+     * @param chunked Pass in {@code true} to frame the data with the chunked transfer coding.
+     */
+    HttpResponseOutputStream(Http http, boolean chunked) {
+        mHttp = http;
+        mChunked = chunked;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCount == mBuffer.length) {
+            sendBlock();
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mCount == mBuffer.length) {
+                sendBlock();
+            }
+            int amount = Math.min(length, mBuffer.length - mCount);
+            System.arraycopy(bytes, offset, mBuffer, mCount, amount);
+            mCount += amount;
+            offset += amount;
+            length -= amount;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mCount > 0) {
+            sendBlock();
+        }
+    }
+
+    /** Sends any remaining data, followed by the end of the body if chunking is in use. */
+    @Override
+    public void close() throws IOException {
+        if (!mClosed) {
+            flush();
+            mClosed = true;
+            if (mChunked) {
+                mHttp.sendResponseBody(ByteBuffer.wrap(HttpResponse.LAST_CHUNK));
+            }
+        }
+    }
+
+    private void sendBlock() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        mHttp.waitToSendResponseBody();
+        // The block is copied into a pooled buffer, so the array can be reused
+        ByteBuffer block = ByteBuffer.wrap(mBuffer, 0, mCount);
+        if (mChunked) {
+            mHttp.sendResponseBody(HttpResponse.frameChunk(mHttp.getBufferPool(), block));
+        } else {
+            PooledBuffer pooled = mHttp.getBufferPool().allocate(mCount);
+            pooled.getBuffer().put(block).flip();
+            mHttp.sendResponseBody(pooled);
+        }
+        mCount = 0;
+    }
+}
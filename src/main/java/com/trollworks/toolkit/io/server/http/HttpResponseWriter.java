@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Generates the body of a {@link HttpResponse} as it is being sent, rather than up front. Pass an
+ * instance as the data of a {@link HttpResponse} to use it.
+ */
+@FunctionalInterface
+public interface HttpResponseWriter {
+    /**
+     * Called once the response headers have been sent. Data written to the stream is sent to the
+     * remote end as it accumulates. If the remote end is slow to accept it, writes will block until
+     * it catches up, so the amount of data held in memory stays bounded regardless of the size of
+     * the body.
+     *
+     * @param out The stream to write the body to. It does not need to be closed.
+     */
+    void writeHttpResponseBody(OutputStream out) throws IOException;
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps request paths to handlers with a trie whose edges are path segments.<br>
+ * <br>
+ * Patterns are split into segments on '/'. A segment of the form <code>{name}</code> matches any
+ * single non-empty segment and captures it as a path parameter, and a final segment of {@code *}
+ * matches the remainder of the path, captured as the path parameter {@link #WILDCARD}. Any other
+ * segment must match exactly, so {@code /a} and {@code /a/} are distinct. Where more than one
+ * pattern matches a path, literal segments take precedence over parameters, and parameters over
+ * wildcards. Handlers may be registered for a specific {@link HttpMethod} or for all of them.<br>
+ * <br>
+ * A router is immutable. Registering a handler produces a new router that shares the untouched
+ * parts of the trie with the old one, so a snapshot may be used from any thread without locking.
+ *
+ * @param <T> The type of handler.
+ */
+final class HttpRouter<T> {
+    /** The name of the path parameter that holds the part of a path matched by a wildcard. */
+    static final         String        WILDCARD = "*";
+    private static final HttpMethod[]  METHODS  = HttpMethod.values();
+    /** The index in a {@link Node}'s handlers of the handler for all methods. */
+    private static final int           ANY      = METHODS.length;
+    private static final HttpRouter<?> EMPTY    = new HttpRouter<>(new Node());
+    private              Node          mRoot;
+
+    /**
+     * @param <T> The type of handler.
+     * @return A router with no handlers.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> HttpRouter<T> empty() {
+        return (HttpRouter<T>) EMPTY;
+    }
+
+    private HttpRouter(Node root) {
+        mRoot = root;
+    }
+
+    /**
+     * @param method  The {@link HttpMethod} to register the handler for, or {@code null} for all
+     *                methods that don't have a handler of their own.
+     * @param pattern The pattern to register the handler for.
+     * @param handler The handler, or {@code null} to remove any existing one.
+     * @return A new router with the handler registered.
+     */
+    final HttpRouter<T> with(HttpMethod method, String pattern, T handler) {
+        String[] segments = split(pattern);
+        Node     root     = mRoot.copy();
+        Node     node     = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            Node   child;
+            if (WILDCARD.equals(segment) && i == segments.length - 1) {
+                child = node.mWildcard != null ? node.mWildcard.copy() : new Node();
+                node.mWildcard = child;
+            } else if (isParameter(segment)) {
+                String name = segment.substring(1, segment.length() - 1);
+                if (node.mParameter != null && !node.mParameterName.equals(name)) {
+                    throw new IllegalArgumentException("Parameter {" + name + "} in " + pattern + " conflicts with the existing {" + node.mParameterName + "}");
+                }
+                child = node.mParameter != null ? node.mParameter.copy() : new Node();
+                node.mParameter = child;
+                node.mParameterName = name;
+            } else {
+                Map<String, Node> literals = new HashMap<>(node.mLiterals);
+                child = literals.get(segment);
+                child = child != null ? child.copy() : new Node();
+                literals.put(segment, child);
+                node.mLiterals = literals;
+            }
+            node = child;
+        }
+        Object[] handlers = node.mHandlers != null ? node.mHandlers.clone() : new Object[ANY + 1];
+        handlers[method != null ? method.ordinal() : ANY] = handler;
+        node.mHandlers = handlers;
+        node.mPattern = pattern;
+        return new HttpRouter<>(root);
+    }
+
+    /**
+     * @param method  The {@link HttpMethod} the handler was registered for, or {@code null} for
+     *                all methods.
+     * @param pattern The pattern the handler was registered for.
+     * @return The handler, or {@code null} if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    final T get(HttpMethod method, String pattern) {
+        String[] segments = split(pattern);
+        Node     node     = mRoot;
+        for (int i = 0; i < segments.length && node != null; i++) {
+            String segment = segments[i];
+            if (WILDCARD.equals(segment) && i == segments.length - 1) {
+                node = node.mWildcard;
+            } else if (isParameter(segment)) {
+                node = segment.substring(1, segment.length() - 1).equals(node.mParameterName) ? node.mParameter : null;
+            } else {
+                node = node.mLiterals.get(segment);
+            }
+        }
+        return node != null && node.mHandlers != null ? (T) node.mHandlers[method != null ? method.ordinal() : ANY] : null;
+    }
+
+    /**
+     * @param method The {@link HttpMethod} of the request, or {@code null} to only consider
+     *               handlers registered for all methods.
+     * @param path   The decoded path of the request.
+     * @return The {@link Route} for the path, or {@code null} if no pattern matches it.
+     */
+    final Route<T> route(HttpMethod method, String path) {
+        if (!path.startsWith("/")) {
+            return null;
+        }
+        List<String> captured = new ArrayList<>();
+        Node         node     = match(mRoot, path, 1, captured);
+        if (node == null) {
+            return null;
+        }
+        Map<String, String> parameters;
+        if (captured.isEmpty()) {
+            parameters = Collections.emptyMap();
+        } else {
+            parameters = new LinkedHashMap<>();
+            for (int i = 0; i < captured.size(); i += 2) {
+                parameters.put(captured.get(i), captured.get(i + 1));
+            }
+            parameters = Collections.unmodifiableMap(parameters);
+        }
+        return new Route<>(node.mHandlers, node.mPattern, method, parameters);
+    }
+
+    /**
+     * @param node     The node that matched the segments before {@code start}.
+     * @param path     The path being matched.
+     * @param start    The index of the next segment, or one past the end of the path if there are
+     *                 no more segments.
+     * @param captured The names and values of the path parameters captured so far.
+     * @return The node matching the rest of the path, or {@code null}.
+     */
+    private static Node match(Node node, String path, int start, List<String> captured) {
+        int length = path.length();
+        if (start > length) {
+            return node.hasHandlers() ? node : null;
+        }
+        int end = path.indexOf('/', start);
+        if (end == -1) {
+            end = length;
+        }
+        String segment = path.substring(start, end);
+        Node   child   = node.mLiterals.get(segment);
+        if (child != null) {
+            Node result = match(child, path, end + 1, captured);
+            if (result != null) {
+                return result;
+            }
+        }
+        if (node.mParameter != null && !segment.isEmpty()) {
+            int size = captured.size();
+            captured.add(node.mParameterName);
+            captured.add(segment);
+            Node result = match(node.mParameter, path, end + 1, captured);
+            if (result != null) {
+                return result;
+            }
+            captured.subList(size, captured.size()).clear();
+        }
+        if (node.mWildcard != null && node.mWildcard.hasHandlers()) {
+            captured.add(WILDCARD);
+            captured.add(path.substring(start));
+            return node.mWildcard;
+        }
+        return null;
+    }
+
+    private static String[] split(String pattern) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+        }
+        return pattern.substring(1).split("/", -1);
+    }
+
+    private static boolean isParameter(String segment) {
+        return segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}");
+    }
+
+    /** The handlers for a path, along with the path parameters captured from it. */
+    static final class Route<T> {
+        private Object[]            mHandlers;
+        private String              mPattern;
+        private T                   mHandler;
+        private Map<String, String> mParameters;
+
+        @SuppressWarnings("unchecked")
+        Route(Object[] handlers, String pattern, HttpMethod method, Map<String, String> parameters) {
+            mHandlers = handlers;
+            mPattern = pattern;
+            mParameters = parameters;
+            if (method != null) {
+                mHandler = (T) handlers[method.ordinal()];
+                if (mHandler == null && method == HttpMethod.HEAD) {
+                    mHandler = (T) handlers[HttpMethod.GET.ordinal()];
+                }
+            }
+            if (mHandler == null) {
+                mHandler = (T) handlers[ANY];
+            }
+        }
+
+        /**
+         * @return The handler for the request's method, or {@code null} if the path has handlers
+         *         only for other methods.
+         */
+        final T getHandler() {
+            return mHandler;
+        }
+
+        /** @return The pattern the handlers were registered for. */
+        final String getPattern() {
+            return mPattern;
+        }
+
+        /** @return The path parameters captured from the path. */
+        final Map<String, String> getParameters() {
+            return mParameters;
+        }
+
+        /** @return The methods the path has handlers for, suitable for an Allow header. */
+        final String getAllowedMethods() {
+            StringBuilder buffer = new StringBuilder();
+            for (HttpMethod method : METHODS) {
+                if (mHandlers[ANY] != null || mHandlers[method.ordinal()] != null || method == HttpMethod.HEAD && mHandlers[HttpMethod.GET.ordinal()] != null) {
+                    if (buffer.length() > 0) {
+                        buffer.append(", ");
+                    }
+                    buffer.append(method);
+                }
+            }
+            return buffer.toString();
+        }
+    }
+
+    /** A node of the trie. Never modified once it has been made part of a router. */
+    private static final class Node {
+        private Map<String, Node> mLiterals = Collections.emptyMap();
+        private String            mParameterName;
+        private Node              mParameter;
+        private Node              mWildcard;
+        private Object[]          mHandlers;
+        private String            mPattern;
+
+        final Node copy() {
+            Node node = new Node();
+            node.mLiterals = mLiterals;
+            node.mParameterName = mParameterName;
+            node.mParameter = mParameter;
+            node.mWildcard = mWildcard;
+            node.mHandlers = mHandlers;
+            node.mPattern = mPattern;
+            return node;
+        }
+
+        final boolean hasHandlers() {
+            if (mHandlers != null) {
+                for (Object handler : mHandlers) {
+                    if (handler != null) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
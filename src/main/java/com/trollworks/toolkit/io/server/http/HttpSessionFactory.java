@@ -13,20 +13,37 @@ package com.trollworks.toolkit.io.server.http;
 
 import com.trollworks.toolkit.io.server.NioServer;
 import com.trollworks.toolkit.io.server.Session;
+import com.trollworks.toolkit.io.server.SessionExecutor;
 import com.trollworks.toolkit.io.server.SessionFactory;
+import com.trollworks.toolkit.io.server.SessionTimeouts;
+import com.trollworks.toolkit.io.server.sse.EventSource;
+import com.trollworks.toolkit.io.server.sse.EventStream;
 import com.trollworks.toolkit.io.server.websocket.WebSocketFactory;
 
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
 
-/** Provides a {@link SessionFactory} for HTTP sessions. */
+/**
+ * Provides a {@link SessionFactory} for HTTP sessions.<br>
+ * <br>
+ * Handlers are registered against URI patterns, which may contain <code>{name}</code> segments
+ * that capture path parameters and may end with a {@code *} segment that matches the rest of the
+ * path, as described by {@link HttpRouter}. Registration replaces an immutable snapshot of the
+ * routes, so looking up the handler for a request never takes a lock.
+ */
 public class HttpSessionFactory implements SessionFactory {
-    private Path                            mRootPath;
-    private Map<String, HttpRequestHandler> mHttpHandlers       = new HashMap<>();
-    private Map<String, WebSocketFactory>   mWebSocketFactories = new HashMap<>();
+    private          Path                             mRootPath;
+    private volatile HttpRouter<HttpRequestHandler>   mHttpRouter          = HttpRouter.empty();
+    private volatile HttpRouter<WebSocketFactory>     mWebSocketRouter     = HttpRouter.empty();
+    private volatile HttpRouter<EventSource>          mEventSourceRouter   = HttpRouter.empty();
+    private          HttpCompression                  mCompression         = new HttpCompression();
+    private          HttpStaticContent                mStaticContent       = new HttpStaticContent();
+    private          SessionTimeouts                  mTimeouts            = new SessionTimeouts();
+    private          SessionTimeouts                  mWebSocketTimeouts   = new SessionTimeouts();
+    private          SessionTimeouts                  mEventStreamTimeouts = new SessionTimeouts();
+    private volatile SessionExecutor                  mExecutor;
+    private volatile boolean                          mHttp2Enabled        = true;
 
     /** @param rootPath The path to the root web directory. */
     public HttpSessionFactory(Path rootPath) {
@@ -38,42 +55,197 @@ public class HttpSessionFactory implements SessionFactory {
         return mRootPath;
     }
 
+    /** @return The {@link SessionTimeouts} applied to HTTP connections, including keep-alive. */
+    @Override
+    public final SessionTimeouts getTimeouts() {
+        return mTimeouts;
+    }
+
     /**
-     * @param uri     The URI to register a {@link HttpRequestHandler} for.
-     * @param handler The {@link HttpRequestHandler} to use for the specified URI.
-     * @return Any existing {@link HttpRequestHandler} for the specified URI, or {@code null} if
-     *         there was none.
+     * @return The {@link SessionTimeouts} applied to connections once they have been upgraded to
+     *         a Web Socket, unless the {@link WebSocketFactory} supplied its own.
+     */
+    public final SessionTimeouts getWebSocketTimeouts() {
+        return mWebSocketTimeouts;
+    }
+
+    /**
+     * @return The {@link SessionTimeouts} applied to connections once they have become an {@link
+     *         EventStream}. As clients send nothing further, the idle limit is measured from the
+     *         last event sent, so sources with few events should {@link EventSource#ping()} more
+     *         often than that.
+     */
+    public final SessionTimeouts getEventStreamTimeouts() {
+        return mEventStreamTimeouts;
+    }
+
+    /**
+     * @return The {@link SessionExecutor} that processes requests, or {@code null} to use the
+     *         server's default.
+     */
+    @Override
+    public final SessionExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * @param executor The {@link SessionExecutor} to process requests with, such as {@link
+     *                 SessionExecutor#virtualThreads()} when handlers block. Pass in {@code null}
+     *                 to use the server's default. Only affects connections accepted afterwards.
+     */
+    public final void setExecutor(SessionExecutor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @return {@code true} if clients may switch a connection to HTTP/2, either by starting it
+     *         with the HTTP/2 connection preface or by asking to upgrade to h2c.
+     */
+    public final boolean isHttp2Enabled() {
+        return mHttp2Enabled;
+    }
+
+    /**
+     * @param enabled Pass in {@code true} to allow clients to switch a connection to HTTP/2. Only
+     *                cleartext connections are switched, as negotiating HTTP/2 over TLS requires
+     *                ALPN.
      */
-    public final synchronized HttpRequestHandler registerHttpHandler(String uri, HttpRequestHandler handler) {
-        return mHttpHandlers.put(uri, handler);
+    public final void setHttp2Enabled(boolean enabled) {
+        mHttp2Enabled = enabled;
+    }
+
+    /** @return The {@link HttpCompression} policy applied to responses. */
+    public final HttpCompression getCompression() {
+        return mCompression;
+    }
+
+    /** @return The {@link HttpStaticContent} that serves files from the root web directory. */
+    public final HttpStaticContent getStaticContent() {
+        return mStaticContent;
+    }
+
+    /**
+     * @param uri     The URI pattern to register a {@link HttpRequestHandler} for.
+     * @param handler The {@link HttpRequestHandler} to use for any request method matching the
+     *                specified URI pattern that doesn't have a handler of its own.
+     * @return Any existing {@link HttpRequestHandler} for the specified URI pattern, or {@code
+     *         null} if there was none.
+     */
+    public final HttpRequestHandler registerHttpHandler(String uri, HttpRequestHandler handler) {
+        return registerHttpHandler(null, uri, handler);
+    }
+
+    /**
+     * @param method  The {@link HttpMethod} to register the {@link HttpRequestHandler} for, or
+     *                {@code null} for all methods that don't have a handler of their own. A
+     *                handler for {@link HttpMethod#GET} also serves {@link HttpMethod#HEAD}
+     *                requests, unless one is registered for that too.
+     * @param uri     The URI pattern to register a {@link HttpRequestHandler} for.
+     * @param handler The {@link HttpRequestHandler} to use for the specified method and URI
+     *                pattern, or {@code null} to remove the existing one.
+     * @return Any existing {@link HttpRequestHandler} for the specified method and URI pattern, or
+     *         {@code null} if there was none.
+     */
+    public final synchronized HttpRequestHandler registerHttpHandler(HttpMethod method, String uri, HttpRequestHandler handler) {
+        HttpRequestHandler previous = mHttpRouter.get(method, uri);
+        mHttpRouter = mHttpRouter.with(method, uri, handler);
+        return previous;
     }
 
     /**
      * @param uri The URI to get a {@link HttpRequestHandler} for.
-     * @return The {@link HttpRequestHandler} for the specified URI, or {@code null} if there is
-     *         none.
+     * @return The {@link HttpRequestHandler} registered for all methods whose URI pattern matches
+     *         the specified URI, or {@code null} if there is none.
+     */
+    public final HttpRequestHandler getHttpHandler(String uri) {
+        return getHttpHandler(null, uri);
+    }
+
+    /**
+     * @param method The {@link HttpMethod} of the request.
+     * @param uri    The URI to get a {@link HttpRequestHandler} for.
+     * @return The {@link HttpRequestHandler} that would handle a request with the specified method
+     *         and URI, or {@code null} if there is none.
+     */
+    public final HttpRequestHandler getHttpHandler(HttpMethod method, String uri) {
+        HttpRouter.Route<HttpRequestHandler> route = mHttpRouter.route(method, uri);
+        return route != null ? route.getHandler() : null;
+    }
+
+    /**
+     * @param method The {@link HttpMethod} of the request.
+     * @param uri    The decoded URI of the request.
+     * @return The route to the {@link HttpRequestHandler} for the request, or {@code null} if no
+     *         URI pattern matches it.
      */
-    public final synchronized HttpRequestHandler getHttpHandler(String uri) {
-        return mHttpHandlers.get(uri);
+    final HttpRouter.Route<HttpRequestHandler> routeHttpRequest(HttpMethod method, String uri) {
+        return mHttpRouter.route(method, uri);
     }
 
     /**
-     * @param uri     The URI to register a {@link WebSocketFactory} for.
-     * @param handler The {@link WebSocketFactory} to use for the specified URI.
-     * @return Any existing {@link WebSocketFactory} for the specified URI, or {@code null} if there
-     *         was none.
+     * @param uri     The URI pattern to register a {@link WebSocketFactory} for.
+     * @param handler The {@link WebSocketFactory} to use for the specified URI pattern, or {@code
+     *                null} to remove the existing one.
+     * @return Any existing {@link WebSocketFactory} for the specified URI pattern, or {@code null}
+     *         if there was none.
      */
     public final synchronized WebSocketFactory registerWebSocketFactory(String uri, WebSocketFactory handler) {
-        return mWebSocketFactories.put(uri, handler);
+        WebSocketFactory previous = mWebSocketRouter.get(null, uri);
+        mWebSocketRouter = mWebSocketRouter.with(null, uri, handler);
+        return previous;
     }
 
     /**
      * @param uri The URI to get a {@link WebSocketFactory} for.
-     * @return The {@link WebSocketFactory} for the specified URI, or {@code null} if there is
-     *         none.
+     * @return The {@link WebSocketFactory} whose URI pattern matches the specified URI, or {@code
+     *         null} if there is none.
+     */
+    public final WebSocketFactory getWebSocketFactory(String uri) {
+        HttpRouter.Route<WebSocketFactory> route = mWebSocketRouter.route(null, uri);
+        return route != null ? route.getHandler() : null;
+    }
+
+    /**
+     * @param uri The decoded URI of the upgrade request.
+     * @return The route to the {@link WebSocketFactory} for the request, or {@code null} if no URI
+     *         pattern matches it.
+     */
+    final HttpRouter.Route<WebSocketFactory> routeWebSocket(String uri) {
+        return mWebSocketRouter.route(null, uri);
+    }
+
+    /**
+     * @param uri    The URI pattern to register an {@link EventSource} for. GET requests matching
+     *               it are answered with a {@code text/event-stream} response that stays open,
+     *               ahead of any {@link HttpRequestHandler} registered for the same URI.
+     * @param source The {@link EventSource} to use for the specified URI pattern, or {@code null}
+     *               to remove the existing one.
+     * @return Any existing {@link EventSource} for the specified URI pattern, or {@code null} if
+     *         there was none.
+     */
+    public final synchronized EventSource registerEventSource(String uri, EventSource source) {
+        EventSource previous = mEventSourceRouter.get(null, uri);
+        mEventSourceRouter = mEventSourceRouter.with(null, uri, source);
+        return previous;
+    }
+
+    /**
+     * @param uri The URI to get an {@link EventSource} for.
+     * @return The {@link EventSource} whose URI pattern matches the specified URI, or {@code null}
+     *         if there is none.
+     */
+    public final EventSource getEventSource(String uri) {
+        HttpRouter.Route<EventSource> route = mEventSourceRouter.route(null, uri);
+        return route != null ? route.getHandler() : null;
+    }
+
+    /**
+     * @param uri The decoded URI of the request.
+     * @return The route to the {@link EventSource} for the request, or {@code null} if no URI
+     *         pattern matches it.
      */
-    public final synchronized WebSocketFactory getWebSocketFactory(String uri) {
-        return mWebSocketFactories.get(uri);
+    final HttpRouter.Route<EventSource> routeEventSource(String uri) {
+        return mEventSourceRouter.route(null, uri);
     }
 
     @Override
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the files within the root web directory. The metadata for recently requested files, along
+ * with the contents of small ones, is kept in a size-bounded, least-recently-used cache. An entry
+ * is revalidated against the file's modification time and size each time it is used, so changes
+ * on disk are picked up on the next request.
+ */
+public class HttpStaticContent {
+    private static final DateTimeFormatter         DATE_FORMAT       = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private              Map<Path, HttpStaticFile> mCache            = new LinkedHashMap<>(64, 0.75f, true);
+    private              long                      mCacheSize;
+    private              long                      mMaximumCacheSize = 16 * 1024 * 1024;
+    private              int                       mMaximumEntries   = 4096;
+    private              int                       mMaximumFileSize  = 64 * 1024;
+    private              AtomicLong                mHits             = new AtomicLong();
+    private              AtomicLong                mMisses           = new AtomicLong();
+
+    /** @return The maximum number of bytes of file contents the cache may hold. */
+    public final synchronized long getMaximumCacheSize() {
+        return mMaximumCacheSize;
+    }
+
+    /**
+     * @param size The maximum number of bytes of file contents the cache may hold. The least
+     *             recently used entries are discarded to stay within this size.
+     */
+    public final synchronized void setMaximumCacheSize(long size) {
+        mMaximumCacheSize = size;
+        trimCache();
+    }
+
+    /** @return The maximum number of files the cache may hold. */
+    public final synchronized int getMaximumEntries() {
+        return mMaximumEntries;
+    }
+
+    /** @param count The maximum number of files the cache may hold. */
+    public final synchronized void setMaximumEntries(int count) {
+        mMaximumEntries = count;
+        trimCache();
+    }
+
+    /**
+     * @return The largest file whose contents will be held in memory. Only the metadata is cached
+     *         for larger files, which are sent directly from disk.
+     */
+    public final int getMaximumFileSize() {
+        return mMaximumFileSize;
+    }
+
+    /** @param size The largest file whose contents will be held in memory. */
+    public final void setMaximumFileSize(int size) {
+        mMaximumFileSize = size;
+    }
+
+    /** @return The number of bytes of file contents currently held by the cache. */
+    public final synchronized long getCacheSize() {
+        return mCacheSize;
+    }
+
+    /** @return The number of files currently held by the cache. */
+    public final synchronized int getCacheEntryCount() {
+        return mCache.size();
+    }
+
+    /** @return The number of lookups that were satisfied by a current cache entry. */
+    public final long getHits() {
+        return mHits.get();
+    }
+
+    /** @return The number of lookups that had to go to disk. */
+    public final long getMisses() {
+        return mMisses.get();
+    }
+
+    /** Discards all cached entries. */
+    public final synchronized void clearCache() {
+        mCache.clear();
+        mCacheSize = 0;
+    }
+
+    /**
+     * @param path The file to look up.
+     * @return The file, or {@code null} if it does not exist.
+     */
+    final HttpStaticFile lookup(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException exception) {
+            remove(path);
+            return null;
+        }
+        synchronized (this) {
+            HttpStaticFile file = mCache.get(path);
+            if (file != null) {
+                if (file.isCurrent(attributes)) {
+                    mHits.incrementAndGet();
+                    return file;
+                }
+                remove(path);
+            }
+        }
+        mMisses.incrementAndGet();
+        if (attributes.isDirectory()) {
+            return new HttpStaticFile(path, attributes, null);
+        }
+        byte[] data = null;
+        if (attributes.size() <= mMaximumFileSize) {
+            data = Files.readAllBytes(path);
+            if (data.length != attributes.size()) {
+                // Changed while being read, so don't cache it
+                return new HttpStaticFile(path, attributes, null);
+            }
+        }
+        HttpStaticFile file = new HttpStaticFile(path, attributes, data);
+        synchronized (this) {
+            HttpStaticFile previous = mCache.put(path, file);
+            if (previous != null && previous.getData() != null) {
+                mCacheSize -= previous.getData().length;
+            }
+            if (data != null) {
+                mCacheSize += data.length;
+            }
+            trimCache();
+        }
+        return file;
+    }
+
+    private synchronized void remove(Path path) {
+        HttpStaticFile file = mCache.remove(path);
+        if (file != null && file.getData() != null) {
+            mCacheSize -= file.getData().length;
+        }
+    }
+
+    private void trimCache() {
+        Iterator<HttpStaticFile> iterator = mCache.values().iterator();
+        while ((mCacheSize > mMaximumCacheSize || mCache.size() > mMaximumEntries) && iterator.hasNext()) {
+            HttpStaticFile file = iterator.next();
+            if (file.getData() != null) {
+                mCacheSize -= file.getData().length;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @param http The {@link Http} connection containing the request.
+     * @param file The file being requested.
+     * @return {@code true} if the request's If-None-Match or If-Modified-Since header indicates the
+     *         remote end already has the current contents of the file.
+     */
+    static boolean isNotModified(Http http, HttpStaticFile file) {
+        String ifNoneMatch = http.getFirstHeader("if-none-match");
+        if (ifNoneMatch != null) {
+            return matchesETag(ifNoneMatch, file.getETag());
+        }
+        String ifModifiedSince = http.getFirstHeader("if-modified-since");
+        if (ifModifiedSince != null) {
+            long since = parseDate(ifModifiedSince);
+            return since != -1 && file.getLastModified() / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * @param header The value of an If-None-Match header.
+     * @param eTag   The current entity tag.
+     * @return {@code true} if the header lists the entity tag, or a compressed variant of it, using
+     *         the weak comparison.
+     */
+    static boolean matchesETag(String header, String eTag) {
+        if ("*".equals(header.trim())) {
+            return true;
+        }
+        String          base      = eTag.substring(0, eTag.length() - 1);
+        StringTokenizer tokenizer = new StringTokenizer(header, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String tag = tokenizer.nextToken().trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(eTag) || tag.startsWith(base) && tag.length() > base.length() && tag.charAt(base.length()) == '-') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param eTag     An entity tag.
+     * @param encoding The content coding applied to the body.
+     * @return The entity tag for the body once the content coding has been applied.
+     */
+    static String encodedETag(String eTag, String encoding) {
+        return eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * @param millis A time, in milliseconds since the epoch.
+     * @return The time formatted as an HTTP date.
+     */
+    static String formatDate(long millis) {
+        return DATE_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * @param text An HTTP date.
+     * @return The time, in milliseconds since the epoch, or {@code -1} if it could not be parsed.
+     */
+    static long parseDate(String text) {
+        try {
+            return ZonedDateTime.parse(text.trim(), DATE_FORMAT).toInstant().toEpochMilli();
+        } catch (DateTimeParseException exception) {
+            return -1;
+        }
+    }
+}
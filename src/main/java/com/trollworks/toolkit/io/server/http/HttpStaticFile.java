@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file within the root web directory, along with the response headers derived from it. May also
+ * hold the file's contents, if it is small enough to be cached in memory.
+ */
+class HttpStaticFile {
+    private Path    mPath;
+    private boolean mDirectory;
+    private long    mSize;
+    private long    mLastModified;
+    private String  mMimeType;
+    private String  mETag;
+    private String  mLastModifiedText;
+    private byte[]  mData;
+
+    /**
+     * @param path       The file.
+     * @param attributes The attributes of the file.
+     * @param data       The contents of the file. May be {@code null}.
+     */
+    HttpStaticFile(Path path, BasicFileAttributes attributes, byte[] data) {
+        mPath = path;
+        mDirectory = attributes.isDirectory();
+        mSize = attributes.size();
+        mLastModified = attributes.lastModifiedTime().toMillis();
+        mData = data;
+        if (!mDirectory) {
+            String name = path.getFileName().toString();
+            int    dot  = name.lastIndexOf('.');
+            if (dot != -1 && dot + 1 < name.length()) {
+                name = name.substring(dot + 1);
+            }
+            mMimeType = MimeTypes.lookup(name);
+            mETag = "\"" + Long.toHexString(mSize) + "-" + Long.toHexString(mLastModified) + "\"";
+            mLastModifiedText = HttpStaticContent.formatDate(mLastModified);
+        }
+    }
+
+    /**
+     * @param attributes The current attributes of the file.
+     * @return {@code true} if the file has not changed since this object was created.
+     */
+    final boolean isCurrent(BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().toMillis() == mLastModified && attributes.size() == mSize && attributes.isDirectory() == mDirectory;
+    }
+
+    /** @return The file. */
+    final Path getPath() {
+        return mPath;
+    }
+
+    /** @return {@code true} if this is a directory. */
+    final boolean isDirectory() {
+        return mDirectory;
+    }
+
+    /** @return The size of the file. */
+    final long getSize() {
+        return mSize;
+    }
+
+    /** @return The last modification time of the file, in milliseconds since the epoch. */
+    final long getLastModified() {
+        return mLastModified;
+    }
+
+    /** @return The mime type of the file. */
+    final String getMimeType() {
+        return mMimeType;
+    }
+
+    /** @return The entity tag for the file's contents. */
+    final String getETag() {
+        return mETag;
+    }
+
+    /** @return The last modification time of the file, formatted for use in a header. */
+    final String getLastModifiedText() {
+        return mLastModifiedText;
+    }
+
+    /** @return The contents of the file, or {@code null} if they are not held in memory. */
+    final byte[] getData() {
+        return mData;
+    }
+}
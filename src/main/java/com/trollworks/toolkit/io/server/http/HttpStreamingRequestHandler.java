@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link HttpRequestHandler} that consumes request bodies incrementally, as they arrive, rather
+ * than having them buffered in memory first. Request bodies streamed this way are not subject to
+ * the size limit imposed on buffered bodies.
+ */
+public interface HttpStreamingRequestHandler extends HttpRequestHandler {
+    /**
+     * Called once the headers of a request with a body have been received, before any of the body
+     * has been read. Once the entire body has been written to the returned channel, it will be
+     * closed and then {@link #handleHttpRequest(Http)} will be called to produce the response.
+     *
+     * @param http The {@link Http} object the request came from.
+     * @return The channel to write the body to as it arrives, such as a {@link
+     *         java.nio.channels.FileChannel} for an upload being spooled to disk. May be {@code
+     *         null} to have the body buffered in memory as usual.
+     */
+    WritableByteChannel openHttpBody(Http http) throws IOException;
+}
@@ -13,6 +13,7 @@ package com.trollworks.toolkit.io.server.http;
 
 import com.trollworks.toolkit.io.server.NioServer;
 import com.trollworks.toolkit.io.server.Session;
+import com.trollworks.toolkit.io.server.SessionExecutor;
 import com.trollworks.toolkit.io.server.SessionFactory;
 
 import java.io.IOException;
@@ -27,6 +28,11 @@ public class HttpsSessionFactory implements SessionFactory {
         mHttpSessionFactory = httpSessionFactory;
     }
 
+    @Override
+    public SessionExecutor getExecutor() {
+        return mHttpSessionFactory.getExecutor();
+    }
+
     @Override
     public Session createSession(NioServer server, SocketChannel channel) throws IOException {
         return new Session(server, channel, server.getSSLContext(), new Http(mHttpSessionFactory));
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.sse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes Server-Sent Events to the {@link EventStream}s subscribed to it.<br>
+ * <br>
+ * Each event is given the next in a sequence of ids and encoded once, and every subscriber's write
+ * queue is given a view of the same bytes. The most recent events are retained, so that a client
+ * that reconnects with a {@code Last-Event-ID} header has the events it missed replayed to it
+ * before it receives new ones.<br>
+ * <br>
+ * A subscriber whose outbound data is above its high watermark is disconnected rather than have
+ * events skipped, as the client will reconnect and resume from the last event it received, so long
+ * as that is still retained. {@link EventStream}s are removed automatically when they close.
+ */
+public class EventSource {
+    /** The default number of events retained for replay. */
+    public static final  int               DEFAULT_REPLAY_SIZE = 256;
+    private static final byte[]            PING                = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private              List<EventStream> mSubscribers        = new ArrayList<>();
+    private              byte[][]          mReplay;
+    private              int               mReplayCount;
+    private              long              mNextId             = 1;
+    private volatile     long              mRetry;
+
+    /** Creates a new {@link EventSource} that retains {@link #DEFAULT_REPLAY_SIZE} events. */
+    public EventSource() {
+        this(DEFAULT_REPLAY_SIZE);
+    }
+
+    /** @param replaySize The number of the most recent events to retain for replay. */
+    public EventSource(int replaySize) {
+        if (replaySize < 0) {
+            throw new IllegalArgumentException("Replay size may not be negative");
+        }
+        mReplay = new byte[replaySize][];
+    }
+
+    /**
+     * @return The number of milliseconds clients are told to wait before reconnecting, or {@code
+     *         0} if they are left to their own default.
+     */
+    public final long getRetry() {
+        return mRetry;
+    }
+
+    /**
+     * @param millis The number of milliseconds clients are told to wait before reconnecting. Pass
+     *               in {@code 0} to leave them to their own default. Only affects clients that
+     *               connect afterwards.
+     */
+    public final void setRetry(long millis) {
+        mRetry = Math.max(millis, 0);
+    }
+
+    /** @return The number of current subscribers. */
+    public final synchronized int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    /** @return The id that will be given to the next event published. */
+    public final synchronized long getNextId() {
+        return mNextId;
+    }
+
+    /**
+     * Sends an unnamed event to every subscriber.
+     *
+     * @param data The event data. May contain line breaks.
+     * @return The id given to the event.
+     */
+    public final long publish(String data) {
+        return publish(null, data);
+    }
+
+    /**
+     * Sends an event to every subscriber.
+     *
+     * @param event The event name, or {@code null} for the default {@code message} event.
+     * @param data  The event data. May contain line breaks.
+     * @return The id given to the event.
+     */
+    public final synchronized long publish(String event, String data) {
+        long   id      = mNextId;
+        byte[] encoded = encode(id, event, data);
+        mNextId++;
+        if (mReplay.length > 0) {
+            mReplay[(int) (id % mReplay.length)] = encoded;
+            if (mReplayCount < mReplay.length) {
+                mReplayCount++;
+            }
+        }
+        deliver(encoded);
+        return id;
+    }
+
+    /**
+     * Sends a comment to every subscriber, which clients ignore. Useful for keeping connections
+     * that carry few events from being timed out as idle, by the server or by intermediaries.
+     */
+    public final synchronized void ping() {
+        deliver(PING);
+    }
+
+    private void deliver(byte[] encoded) {
+        for (int i = mSubscribers.size() - 1; i >= 0; i--) {
+            EventStream stream = mSubscribers.get(i);
+            if (stream.isClosed()) {
+                mSubscribers.remove(i);
+            } else if (!stream.isWritable()) {
+                mSubscribers.remove(i);
+                stream.requestClose(true);
+            } else {
+                stream.send(ByteBuffer.wrap(encoded).asReadOnlyBuffer());
+            }
+        }
+    }
+
+    /**
+     * Subscribes an {@link EventStream}, first sending it the retry hint and replaying any events
+     * it missed. Holding the lock throughout ensures that no event published in the meantime is
+     * either missed or sent twice.
+     *
+     * @param stream      The {@link EventStream} to subscribe.
+     * @param lastEventId The value of the client's {@code Last-Event-ID} header, or {@code null}.
+     */
+    final synchronized void subscribe(EventStream stream, String lastEventId) {
+        long retry = mRetry;
+        if (retry > 0) {
+            stream.send(ByteBuffer.wrap(("retry: " + retry + "\n\n").getBytes(StandardCharsets.UTF_8)));
+        }
+        if (lastEventId != null) {
+            long oldest = mNextId - mReplayCount;
+            long next;
+            try {
+                next = Long.parseLong(lastEventId.trim()) + 1;
+            } catch (NumberFormatException exception) {
+                // Not one of ours, so the client can only be given what is retained
+                next = oldest;
+            }
+            // Should the client have missed more than is retained, it gets what there is
+            for (long id = Math.max(next, oldest); id < mNextId; id++) {
+                stream.send(ByteBuffer.wrap(mReplay[(int) (id % mReplay.length)]).asReadOnlyBuffer());
+            }
+        }
+        if (!stream.isClosed()) {
+            mSubscribers.add(stream);
+        }
+    }
+
+    /** @param stream The {@link EventStream} to unsubscribe. */
+    final synchronized void unsubscribe(EventStream stream) {
+        mSubscribers.remove(stream);
+    }
+
+    private static byte[] encode(long id, String event, String data) {
+        StringBuilder buffer = new StringBuilder(data.length() + 32);
+        buffer.append("id: ").append(id).append('\n');
+        if (event != null) {
+            if (event.indexOf('\n') != -1 || event.indexOf('\r') != -1) {
+                throw new IllegalArgumentException("Event names may not contain line breaks");
+            }
+            buffer.append("event: ").append(event).append('\n');
+        }
+        int length = data.length();
+        int start  = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = data.charAt(i);
+            if (ch == '\n' || ch == '\r') {
+                buffer.append("data: ").append(data, start, i).append('\n');
+                if (ch == '\r' && i + 1 < length && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        buffer.append("data: ").append(data, start, length).append("\n\n");
+        return buffer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
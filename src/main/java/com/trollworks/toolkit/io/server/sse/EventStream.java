@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.sse;
+
+import com.trollworks.toolkit.io.server.Personality;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Personality} for a connection that has been answered with a {@code text/event-stream}
+ * response, over which the events of an {@link EventSource} are sent until either end closes it.
+ * The body of the response is delimited by the connection closing, so each event goes out exactly
+ * as it was encoded. Nothing further is expected from the client, so anything it sends is
+ * discarded.
+ */
+public class EventStream extends Personality {
+    private          EventSource mSource;
+    private volatile boolean     mClosed;
+
+    /** @param source The {@link EventSource} to subscribe to. */
+    public EventStream(EventSource source) {
+        mSource = source;
+    }
+
+    @Override
+    public String toString() {
+        return "EventStream";
+    }
+
+    /**
+     * Call once the response header has been sent, to start sending events.
+     *
+     * @param lastEventId The value of the client's {@code Last-Event-ID} header, or {@code null}
+     *                    if it didn't send one.
+     */
+    public void startConnection(String lastEventId) {
+        mSource.subscribe(this, lastEventId);
+    }
+
+    @Override
+    public void processInput(ByteBuffer buffer) {
+        buffer.position(buffer.limit());
+    }
+
+    @Override
+    public void closing() {
+        if (!mClosed) {
+            mClosed = true;
+            mSource.unsubscribe(this);
+        }
+    }
+
+    /** @return The {@link EventSource} this {@link EventStream} is subscribed to. */
+    public final EventSource getEventSource() {
+        return mSource;
+    }
+
+    /** @return {@code true} once this {@link EventStream} has begun closing. */
+    public final boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate extension, as described in <a href="https://tools.ietf.org/html/rfc7692">RFC
+ * 7692</a>.<br>
+ * <br>
+ * {@link Deflater}s and {@link Inflater}s hold sizable native buffers, so they are kept in a
+ * shared pool. When a context is carried from one message to the next, the connection holds its
+ * pair until it closes. Otherwise, each is only borrowed for the duration of a single message.<br>
+ * <br>
+ * {@link Deflater} has no way to shrink its window, so offers that require the server to use a
+ * window of fewer than 15 bits are declined. The client may use any window size, as inflating
+ * always allows for the largest.
+ */
+class PerMessageDeflate {
+    /** The extension's registered name. */
+    static final         String                          NAME                       = "permessage-deflate";
+    /** The largest message that will be inflated. */
+    static final         int                             MAX_INFLATED_LENGTH        = 4 * 1024 * 1024;
+    private static final String                          SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String                          CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String                          SERVER_MAX_WINDOW_BITS     = "server_max_window_bits";
+    private static final String                          CLIENT_MAX_WINDOW_BITS     = "client_max_window_bits";
+    private static final byte[]                          TAIL                       = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+    private static final int                             MAX_POOLED                 = 64;
+    private static final ConcurrentLinkedQueue<Deflater> DEFLATERS                  = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger                   DEFLATER_COUNT             = new AtomicInteger();
+    private static final ConcurrentLinkedQueue<Inflater> INFLATERS                  = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger                   INFLATER_COUNT             = new AtomicInteger();
+    private              int                             mThreshold;
+    private              boolean                         mServerNoContextTakeover;
+    private              boolean                         mClientNoContextTakeover;
+    private              String                          mResponse;
+    private              Deflater                        mDeflater;
+    private              Inflater                        mInflater;
+    private              byte[]                          mOutput                    = new byte[1024];
+    private              boolean                         mReleased;
+
+    /**
+     * @param offers        The values of the client's Sec-WebSocket-Extensions headers.
+     * @param threshold     The smallest message that will be compressed.
+     * @param retainContext {@code false} to ask both ends to start each message with a fresh
+     *                      compression context, trading compression for memory.
+     * @return The negotiated extension, or {@code null} if none of the client's offers could be
+     *         accepted.
+     */
+    static PerMessageDeflate negotiate(Iterable<String> offers, int threshold, boolean retainContext) {
+        for (String header : offers) {
+            for (String offer : header.split(",")) {
+                PerMessageDeflate deflate = accept(offer, threshold, retainContext);
+                if (deflate != null) {
+                    return deflate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static PerMessageDeflate accept(String offer, int threshold, boolean retainContext) {
+        String[] parts = offer.split(";");
+        if (!NAME.equalsIgnoreCase(parts[0].trim())) {
+            return null;
+        }
+        PerMessageDeflate deflate = new PerMessageDeflate();
+        deflate.mThreshold = threshold;
+        deflate.mServerNoContextTakeover = !retainContext;
+        deflate.mClientNoContextTakeover = !retainContext;
+        Set<String> seen = new HashSet<>();
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            String value = null;
+            int    eq    = param.indexOf('=');
+            if (eq != -1) {
+                value = param.substring(eq + 1).trim();
+                if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                param = param.substring(0, eq).trim();
+            }
+            param = param.toLowerCase();
+            if (!seen.add(param)) {
+                return null;
+            }
+            switch (param) {
+            case SERVER_NO_CONTEXT_TAKEOVER:
+                if (value != null) {
+                    return null;
+                }
+                deflate.mServerNoContextTakeover = true;
+                break;
+            case CLIENT_NO_CONTEXT_TAKEOVER:
+                if (value != null) {
+                    return null;
+                }
+                deflate.mClientNoContextTakeover = true;
+                break;
+            case SERVER_MAX_WINDOW_BITS:
+                if (windowBits(value) != 15) {
+                    return null;
+                }
+                break;
+            case CLIENT_MAX_WINDOW_BITS:
+                if (value != null && windowBits(value) == -1) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+            }
+        }
+        StringBuilder buffer = new StringBuilder(NAME);
+        if (deflate.mServerNoContextTakeover) {
+            buffer.append("; ");
+            buffer.append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if (deflate.mClientNoContextTakeover) {
+            buffer.append("; ");
+            buffer.append(CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        deflate.mResponse = buffer.toString();
+        return deflate;
+    }
+
+    private static int windowBits(String value) {
+        if (value != null) {
+            try {
+                int bits = Integer.parseInt(value);
+                if (bits >= 8 && bits <= 15) {
+                    return bits;
+                }
+            } catch (NumberFormatException exception) {
+                // Fall through
+            }
+        }
+        return -1;
+    }
+
+    /** @return The value for the Sec-WebSocket-Extensions header of the handshake response. */
+    final String getResponse() {
+        return mResponse;
+    }
+
+    /**
+     * @param length The length of a message.
+     * @return Whether a message of this length should be compressed.
+     */
+    final boolean shouldCompress(int length) {
+        return length >= mThreshold;
+    }
+
+    /**
+     * Compresses a message. Callers must hold the lock on this object from the time the message is
+     * compressed until its frames have been queued, so that messages go out in the same order as
+     * they were added to the compression context.
+     *
+     * @param data The message to compress.
+     * @return The compressed message, without the trailing empty block. Only valid until the next
+     *         call.
+     */
+    final ByteBuffer deflate(byte[] data) {
+        Deflater deflater = mDeflater;
+        if (deflater == null) {
+            deflater = acquireDeflater();
+            if (!mServerNoContextTakeover && !mReleased) {
+                mDeflater = deflater;
+            }
+        }
+        ByteBuffer result = deflate(deflater, data, mOutput);
+        mOutput = result.array();
+        if (mDeflater != deflater) {
+            recycle(deflater);
+        }
+        return result;
+    }
+
+    /**
+     * @return {@code true} if the connection's compression context carries over from one message
+     *         to the next, so that its messages must be compressed individually.
+     */
+    final boolean isContextRetained() {
+        return !mServerNoContextTakeover;
+    }
+
+    /**
+     * Compresses a message with a fresh context. As every connection without context takeover
+     * compresses the same message to the same bytes, the result may be shared between them.
+     *
+     * @param data The message to compress.
+     * @return The compressed message, without the trailing empty block.
+     */
+    static ByteBuffer deflateWithoutContext(byte[] data) {
+        Deflater deflater = acquireDeflater();
+        try {
+            return deflate(deflater, data, new byte[Math.max(data.length / 2, 64)]);
+        } finally {
+            recycle(deflater);
+        }
+    }
+
+    private static ByteBuffer deflate(Deflater deflater, byte[] data, byte[] output) {
+        deflater.setInput(data);
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+            if (length < output.length) {
+                break;
+            }
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        if (length >= TAIL.length && Arrays.equals(output, length - TAIL.length, length, TAIL, 0, TAIL.length)) {
+            length -= TAIL.length;
+        }
+        return ByteBuffer.wrap(output, 0, length);
+    }
+
+    private static Deflater acquireDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater != null) {
+            DEFLATER_COUNT.decrementAndGet();
+            return deflater;
+        }
+        return new Deflater(Deflater.BEST_SPEED, true);
+    }
+
+    /**
+     * @param compressed A complete compressed message. Must have room for four more bytes after
+     *                   its limit.
+     * @return The uncompressed message.
+     */
+    final ByteBuffer inflate(ByteBuffer compressed) throws IOException {
+        Inflater inflater = mInflater;
+        if (inflater == null) {
+            inflater = INFLATERS.poll();
+            if (inflater != null) {
+                INFLATER_COUNT.decrementAndGet();
+            } else {
+                inflater = new Inflater(true);
+            }
+            if (!mClientNoContextTakeover && !mReleased) {
+                mInflater = inflater;
+            }
+        }
+        try {
+            int limit = compressed.limit();
+            compressed.limit(limit + TAIL.length);
+            for (int i = 0; i < TAIL.length; i++) {
+                compressed.put(limit + i, TAIL[i]);
+            }
+            inflater.setInput(compressed);
+            ByteBuffer output = ByteBuffer.allocate(Math.min(Math.max(compressed.remaining() * 4, 1024), MAX_INFLATED_LENGTH));
+            while (true) {
+                inflater.inflate(output);
+                if (output.hasRemaining()) {
+                    if (inflater.needsInput() || inflater.finished()) {
+                        break;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("Compressed message requires a dictionary");
+                    }
+                } else {
+                    if (output.capacity() >= MAX_INFLATED_LENGTH) {
+                        throw new IOException("Inflated message too large");
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(Math.min(output.capacity() * 2, MAX_INFLATED_LENGTH));
+                    output.flip();
+                    larger.put(output);
+                    output = larger;
+                }
+            }
+            return output.flip();
+        } catch (DataFormatException exception) {
+            throw new IOException("Invalid compressed message", exception);
+        } finally {
+            if (mInflater != inflater) {
+                recycle(inflater);
+            } else if (inflater.finished()) {
+                // The client ended its stream with a final block, so the next message starts anew
+                inflater.reset();
+            }
+        }
+    }
+
+    /**
+     * Returns any {@link Deflater} and {@link Inflater} held for the connection to the pool. The
+     * {@link Deflater} is only touched while holding the lock on this object.
+     */
+    final void release() {
+        Inflater inflater = mInflater;
+        mInflater = null;
+        if (inflater != null) {
+            recycle(inflater);
+        }
+        synchronized (this) {
+            mReleased = true;
+            if (mDeflater != null) {
+                recycle(mDeflater);
+                mDeflater = null;
+            }
+        }
+    }
+
+    private static void recycle(Deflater deflater) {
+        deflater.reset();
+        if (DEFLATER_COUNT.incrementAndGet() <= MAX_POOLED) {
+            DEFLATERS.offer(deflater);
+        } else {
+            DEFLATER_COUNT.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private static void recycle(Inflater inflater) {
+        inflater.reset();
+        if (INFLATER_COUNT.incrementAndGet() <= MAX_POOLED) {
+            INFLATERS.offer(inflater);
+        } else {
+            INFLATER_COUNT.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
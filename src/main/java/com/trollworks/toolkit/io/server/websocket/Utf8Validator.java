@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that a sequence of bytes is well-formed UTF-8, as described in <a
+ * href="https://tools.ietf.org/html/rfc3629#section-4">RFC 3629, Sec 4</a>. The bytes may be
+ * supplied in pieces, with a character split across them, so that a text message can be checked
+ * as each fragment arrives rather than once it is complete. Runs of ASCII are skipped eight bytes
+ * at a time.
+ */
+class Utf8Validator {
+    private int mNeeded;
+    private int mLower = 0x80;
+    private int mUpper = 0xBF;
+
+    /** Prepares to check a new sequence. */
+    final void reset() {
+        mNeeded = 0;
+        mLower = 0x80;
+        mUpper = 0xBF;
+    }
+
+    /**
+     * @param buffer   The buffer containing the next piece of the sequence.
+     * @param position The position of the first byte.
+     * @param length   The number of bytes.
+     * @return {@code false} if the sequence is not well-formed.
+     */
+    final boolean validate(ByteBuffer buffer, int position, int length) {
+        int needed = mNeeded;
+        int lower  = mLower;
+        int upper  = mUpper;
+        int end    = position + length;
+        int i      = position;
+        while (i < end) {
+            if (needed == 0) {
+                while (i + 8 <= end && (buffer.getLong(i) & 0x8080808080808080L) == 0) {
+                    i += 8;
+                }
+                if (i == end) {
+                    break;
+                }
+                int b = buffer.get(i++) & 0xFF;
+                if (b < 0x80) {
+                    continue;
+                }
+                if (b >= 0xC2 && b <= 0xDF) {
+                    needed = 1;
+                } else if (b >= 0xE0 && b <= 0xEF) {
+                    // Exclude overlong forms and UTF-16 surrogates
+                    needed = 2;
+                    lower = b == 0xE0 ? 0xA0 : 0x80;
+                    upper = b == 0xED ? 0x9F : 0xBF;
+                } else if (b >= 0xF0 && b <= 0xF4) {
+                    // Exclude overlong forms and code points above U+10FFFF
+                    needed = 3;
+                    lower = b == 0xF0 ? 0x90 : 0x80;
+                    upper = b == 0xF4 ? 0x8F : 0xBF;
+                } else {
+                    return false;
+                }
+            } else {
+                int b = buffer.get(i++) & 0xFF;
+                if (b < lower || b > upper) {
+                    return false;
+                }
+                lower = 0x80;
+                upper = 0xBF;
+                needed--;
+            }
+        }
+        mNeeded = needed;
+        mLower = lower;
+        mUpper = upper;
+        return true;
+    }
+
+    /** @return {@code true} if the bytes checked so far do not end part way through a character. */
+    final boolean isComplete() {
+        return mNeeded == 0;
+    }
+}
@@ -12,12 +12,22 @@
 package com.trollworks.toolkit.io.server.websocket;
 
 import com.trollworks.toolkit.io.Log;
+import com.trollworks.toolkit.io.server.BufferPool;
 import com.trollworks.toolkit.io.server.Personality;
+import com.trollworks.toolkit.io.server.PooledBuffer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A {@link Personality} for handling Web Socket connections.<br>
@@ -47,24 +57,43 @@ import java.nio.charset.StandardCharsets;
  * </pre>
  */
 public class WebSocket extends Personality {
-    public static final int                   MAX_PAYLOAD_LENGTH = 128 * 1024;
-    private             WebSocketHandler      mHandler;
-    private             boolean               mFinalFragment;
-    private             Opcode                mOpcode;
-    private             Opcode                mLastOpcode;
-    private             byte[]                mData;
-    private             int                   mState;
-    private             long                  mLength;
-    private             int                   mCount;
-    private             byte[]                mMask;
-    private             ByteArrayOutputStream mBuffer;
-    private             boolean               mClosed;
+    public static final  int                       MAX_PAYLOAD_LENGTH    = 128 * 1024;
+    private static final int                       MAX_OUTBOUND_HEADER   = 10;
+    /**
+     * The default, and largest, size of the fragments that outgoing messages are split into. A
+     * full fragment and its frame header fit the largest pooled buffer.
+     */
+    public static final  int                       DEFAULT_FRAGMENT_SIZE = MAX_PAYLOAD_LENGTH - MAX_OUTBOUND_HEADER;
+    private static final int                       MAX_CONTROL_LENGTH    = 125;
+    private static final int                       MAX_HEADER_LENGTH     = 14;
+    private static final int                       MAX_RETAINED_BUFFER   = 256 * 1024;
+    private              WebSocketHandler          mHandler;
+    private              byte[]                    mHeader               = new byte[MAX_HEADER_LENGTH];
+    private              int                       mHeaderLength;
+    private              boolean                   mInFrame;
+    private              boolean                   mFinalFragment;
+    private              Opcode                    mOpcode;
+    private              Opcode                    mMessageOpcode;
+    private              int                       mLength;
+    private              int                       mCount;
+    private              boolean                   mMasked;
+    private              int                       mMask;
+    private              byte[]                    mControl              = new byte[MAX_CONTROL_LENGTH];
+    private              ByteBuffer                mMessage;
+    private              ByteBuffer                mDirect;
+    private              Utf8Validator             mValidator            = new Utf8Validator();
+    private              PerMessageDeflate         mDeflate;
+    private              boolean                   mCompressed;
+    private              Set<WebSocketGroup.Topic> mTopics               = ConcurrentHashMap.newKeySet();
+    private volatile     boolean                   mClosed;
+    private volatile     int                       mFragmentSize         = DEFAULT_FRAGMENT_SIZE;
+    private              Object                    mSendLock             = new Object();
+    private              OutboundStream            mStream;
+    private              ArrayDeque<Object>        mPending              = new ArrayDeque<>();
 
     /** @param handler The {@link WebSocketHandler} to delegate to. */
     public WebSocket(WebSocketHandler handler) {
         mHandler = handler;
-        mBuffer = new ByteArrayOutputStream();
-        mLastOpcode = Opcode.UNDEFINED;
     }
 
     @Override
@@ -72,148 +101,265 @@ public class WebSocket extends Personality {
         return "WebSocket";
     }
 
+    /**
+     * Negotiates the extensions to use for this connection. Must be called before the handshake
+     * response is sent. Only permessage-deflate is supported, and only when the
+     * {@link WebSocketHandler} opts in.
+     *
+     * @param offers The values of the client's Sec-WebSocket-Extensions headers.
+     * @return The value for the Sec-WebSocket-Extensions header of the handshake response, or
+     *         {@code null} if no extensions were accepted.
+     */
+    public String negotiateExtensions(List<String> offers) {
+        int threshold = mHandler.getCompressionThreshold();
+        if (offers == null || threshold < 0) {
+            return null;
+        }
+        mDeflate = PerMessageDeflate.negotiate(offers, threshold, mHandler.isCompressionContextRetained());
+        return mDeflate != null ? mDeflate.getResponse() : null;
+    }
+
     /** Call when a Web Socket connection has started. */
     public void startConnection() {
+        getSession().getServer().getMetrics().recordWebSocketOpened();
         mHandler.webSocketConnected(this);
     }
 
-    private void reset() {
-        mFinalFragment = false;
-        mOpcode = Opcode.UNDEFINED;
-        mData = null;
-        mState = 0;
-        mLength = 0;
-        mCount = 0;
-        mMask = null;
-    }
-
+    /**
+     * Decodes as many frames as the buffer holds. Frame headers are read in bulk, and masked
+     * payloads are unmasked in place, eight bytes at a time, so the buffer must be writable. A
+     * message that arrives as a single frame contained within the buffer is delivered as a view of
+     * the buffer rather than being copied.
+     */
     @Override
     public void processInput(ByteBuffer buffer) throws IOException {
-        while (buffer.hasRemaining()) {
-            if (parse(buffer.get())) {
-                switch (mOpcode) {
-                case CONTINUATION:
-                    mBuffer.write(mData);
-                    if (mFinalFragment) {
-                        if (mLastOpcode == Opcode.TEXT) {
-                            mHandler.webSocketTextData(this, mBuffer.toString(StandardCharsets.UTF_8.name()));
-                        } else {
-                            mHandler.webSocketBinaryData(this, mBuffer.toByteArray());
-                        }
-                        mBuffer.reset();
-                    }
-                    break;
-                case TEXT:
-                    if (mFinalFragment) {
-                        mHandler.webSocketTextData(this, new String(mData, StandardCharsets.UTF_8));
-                        mBuffer.reset();
-                    } else {
-                        mLastOpcode = mOpcode;
-                        mBuffer.write(mData);
-                    }
-                    break;
-                case BINARY:
-                    if (mFinalFragment) {
-                        mHandler.webSocketBinaryData(this, mData);
-                        mBuffer.reset();
-                    } else {
-                        mLastOpcode = mOpcode;
-                        mBuffer.write(mData);
-                    }
-                    break;
-                case PING:
-                    int length = mData != null ? mData.length : 0;
-                    byte[] response = new byte[length];
-                    if (length > 0) {
-                        System.arraycopy(mData, 0, response, 0, length);
-                    }
-                    send(Opcode.PONG, response);
-                    break;
-                case PONG:
-                    // Ignore
-                    break;
-                case CLOSE:
-                    requestClose(false);
+        while (true) {
+            if (!mInFrame && !readHeader(buffer)) {
+                return;
+            }
+            if (mCount < mLength) {
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+                int position = buffer.position();
+                int amount   = Math.min(buffer.remaining(), mLength - mCount);
+                if (mMasked) {
+                    // Rotate the mask so that it lines up with the first byte being unmasked
+                    unmask(buffer, position, amount, Integer.rotateLeft(mMask, (mCount & 3) * 8));
+                }
+                consumePayload(buffer, position, amount);
+                buffer.position(position + amount);
+                mCount += amount;
+            }
+            if (mCount == mLength) {
+                mInFrame = false;
+                if (!frameComplete()) {
+                    buffer.position(buffer.limit());
                     return;
-                default:
-                    Log.warn(getSession(), "Ignoring unknown WebSocket opcode: " + mOpcode.getOpcode());
-                    break;
                 }
-                reset();
             }
         }
     }
 
-    private boolean parse(byte b) throws IOException {
-        switch (mState) {
-        case 0:
-            if ((b & 0x70) != 0) {
-                throw new IOException("Invalid reserved bits");
+    private boolean readHeader(ByteBuffer buffer) throws IOException {
+        if (mHeaderLength == 0 && buffer.remaining() >= 2) {
+            int position = buffer.position();
+            int length   = headerLength(buffer.get(position + 1));
+            if (buffer.remaining() >= length) {
+                // The common case: the whole header is available, so decode it where it sits
+                decodeHeader(buffer, position);
+                buffer.position(position + length);
+                return true;
             }
-            mFinalFragment = (b & 0x80) != 0;
-            mOpcode = Opcode.lookup((byte) (b & 0x0F));
-            if (mOpcode == Opcode.UNDEFINED) {
-                throw new IOException("Unknown opcode: " + (b & 0x0F));
+        }
+        while (buffer.hasRemaining()) {
+            mHeader[mHeaderLength++] = buffer.get();
+            if (mHeaderLength >= 2 && mHeaderLength == headerLength(mHeader[1])) {
+                mHeaderLength = 0;
+                decodeHeader(ByteBuffer.wrap(mHeader), 0);
+                return true;
             }
-            if (mOpcode.isControl() && !mFinalFragment) {
+        }
+        return false;
+    }
+
+    private static int headerLength(byte second) {
+        int length = second & 0x7F;
+        return 2 + (length == 127 ? 8 : length == 126 ? 2 : 0) + ((second & 0x80) != 0 ? 4 : 0);
+    }
+
+    private void decodeHeader(ByteBuffer buffer, int position) throws IOException {
+        if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+            buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
+        int first  = buffer.get(position);
+        int second = buffer.get(position + 1);
+        mFinalFragment = (first & 0x80) != 0;
+        mOpcode = Opcode.lookup((byte) (first & 0x0F));
+        if (mOpcode == Opcode.UNDEFINED) {
+            throw new IOException("Unknown opcode: " + (first & 0x0F));
+        }
+        // RSV1 marks a compressed message, and may only appear on its first frame
+        boolean compressed = (first & 0x40) != 0;
+        if ((first & 0x30) != 0 || compressed && (mDeflate == null || mOpcode.isControl() || mOpcode == Opcode.CONTINUATION)) {
+            throw new IOException("Invalid reserved bits");
+        }
+        long length = second & 0x7F;
+        int  offset = position + 2;
+        if (length == 126) {
+            length = buffer.getShort(offset) & 0xFFFF;
+            offset += 2;
+        } else if (length == 127) {
+            length = buffer.getLong(offset);
+            offset += 8;
+        }
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Payload length too large");
+        }
+        mMasked = (second & 0x80) != 0;
+        if (mMasked) {
+            mMask = buffer.getInt(offset);
+        }
+        if (mOpcode.isControl()) {
+            if (!mFinalFragment) {
                 throw new IOException("Fragmented control frame");
             }
-            mState = 1;
-            return false;
-        case 1:
-            if ((b & 0x80) != 0) {
-                mMask = new byte[4];
+            if (length > MAX_CONTROL_LENGTH) {
+                throw new IOException("Control frame payload too large");
             }
-            mLength = b & 0x7F;
-            if (mLength == 127) {
-                mLength = 0;
-                mState = 2;
-            } else if (mLength == 126) {
-                mLength = 0;
-                mState = 3;
-            } else {
-                mData = new byte[(int) mLength];
-                mState = mMask != null ? 4 : 5;
+        } else if (mOpcode == Opcode.CONTINUATION) {
+            if (mMessageOpcode == null) {
+                throw new IOException("Unexpected continuation frame");
             }
-            return false;
-        case 2:
-            mLength |= (b & 0xFFL) << (7 - mCount) * 8;
-            if (mLength > MAX_PAYLOAD_LENGTH) {
-                throw new IOException("Payload length too large");
+        } else {
+            if (mMessageOpcode != null) {
+                throw new IOException("Expected a continuation frame");
             }
-            if (++mCount == 8) {
-                mCount = 0;
-                mData = new byte[(int) mLength];
-                mState = mMask != null ? 4 : 5;
+            mMessageOpcode = mOpcode;
+            mCompressed = compressed;
+            mValidator.reset();
+        }
+        mLength = (int) length;
+        mCount = 0;
+        mInFrame = true;
+    }
+
+    /**
+     * XORs a region of the buffer with the mask, eight bytes at a time.
+     *
+     * @param buffer   The buffer to unmask in place.
+     * @param position The starting position.
+     * @param length   The number of bytes.
+     * @param mask     The mask, rotated to line up with the byte at the starting position.
+     */
+    private static void unmask(ByteBuffer buffer, int position, int length, int mask) {
+        long wide = (mask & 0xFFFFFFFFL) << 32 | mask & 0xFFFFFFFFL;
+        if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+            wide = Long.reverseBytes(wide);
+        }
+        int end = position + length;
+        int i   = position;
+        while (i + 8 <= end) {
+            buffer.putLong(i, buffer.getLong(i) ^ wide);
+            i += 8;
+        }
+        for (int shift = 24; i < end; i++, shift -= 8) {
+            buffer.put(i, (byte) (buffer.get(i) ^ mask >>> shift));
+        }
+    }
+
+    private void consumePayload(ByteBuffer buffer, int position, int amount) throws IOException {
+        if (mOpcode.isControl()) {
+            for (int i = 0; i < amount; i++) {
+                mControl[mCount + i] = buffer.get(position + i);
             }
+            return;
+        }
+        if (mMessageOpcode == Opcode.TEXT && !mCompressed && !mValidator.validate(buffer, position, amount)) {
+            throw new IOException("Invalid UTF-8 in text message");
+        }
+        if (mFinalFragment && mOpcode != Opcode.CONTINUATION && amount == mLength && !mCompressed) {
+            // The entire message is in the buffer, so it can be handed over without a copy
+            mDirect = buffer.slice(position, amount);
+            return;
+        }
+        ensureMessageCapacity(amount);
+        mMessage.put(buffer.slice(position, amount));
+    }
+
+    private void ensureMessageCapacity(int amount) {
+        if (mMessage == null) {
+            mMessage = ByteBuffer.allocate(Math.max(amount, 8192));
+        } else if (mMessage.remaining() < amount) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(mMessage.capacity() * 2, mMessage.position() + amount));
+            mMessage.flip();
+            larger.put(mMessage);
+            mMessage = larger;
+        }
+    }
+
+    /** @return {@code false} if no further frames should be processed. */
+    private boolean frameComplete() throws IOException {
+        switch (mOpcode) {
+        case PING:
+            send(Opcode.PONG, Arrays.copyOf(mControl, mLength));
+            break;
+        case PONG:
+            // Ignore
+            break;
+        case CLOSE:
+            requestClose(false);
             return false;
-        case 3:
-            mLength |= (b & 0xFFL) << (1 - mCount) * 8;
-            if (++mCount == 2) {
-                mCount = 0;
-                mData = new byte[(int) mLength];
-                mState = mMask != null ? 4 : 5;
+        default:
+            if (mFinalFragment) {
+                deliverMessage();
             }
-            return false;
-        case 4:
-            mMask[mCount] = b;
-            if (++mCount == mMask.length) {
-                mCount = 0;
-                mState = 5;
+            break;
+        }
+        return true;
+    }
+
+    private void deliverMessage() throws IOException {
+        Opcode     opcode = mMessageOpcode;
+        ByteBuffer data   = mDirect;
+        mMessageOpcode = null;
+        mDirect = null;
+        try {
+            if (mCompressed) {
+                // Leave room for the empty block that the sender stripped from the end
+                ensureMessageCapacity(4);
+                data = mDeflate.inflate(mMessage.flip());
+                if (opcode == Opcode.TEXT && !mValidator.validate(data, data.position(), data.remaining())) {
+                    throw new IOException("Invalid UTF-8 in text message");
+                }
+            } else if (data == null) {
+                data = mMessage != null ? mMessage.flip() : ByteBuffer.allocate(0);
             }
-            return false;
-        case 5:
-            if (mCount < mData.length) {
-                mData[mCount] = mMask != null ? (byte) ((b ^ mMask[mCount % mMask.length]) & 0xFF) : b;
-                ++mCount;
+            getSession().getServer().getMetrics().recordMessageReceived(data.remaining());
+            if (opcode == Opcode.TEXT) {
+                if (!mValidator.isComplete()) {
+                    throw new IOException("Truncated UTF-8 sequence in text message");
+                }
+                String text;
+                if (data.hasArray()) {
+                    text = new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), StandardCharsets.UTF_8);
+                } else {
+                    byte[] bytes = new byte[data.remaining()];
+                    data.get(bytes);
+                    text = new String(bytes, StandardCharsets.UTF_8);
+                }
+                mHandler.webSocketTextData(this, text);
+            } else {
+                mHandler.webSocketBinaryData(this, data.asReadOnlyBuffer());
             }
-            if (mCount == mData.length) {
-                mState = 6;
-                return true;
+        } finally {
+            if (mMessage != null) {
+                if (mMessage.capacity() > MAX_RETAINED_BUFFER) {
+                    mMessage = null;
+                } else {
+                    mMessage.clear();
+                }
             }
-            return false;
-        default:
-            throw new IOException("Read past end of frame");
         }
     }
 
@@ -221,13 +367,60 @@ public class WebSocket extends Personality {
     public void closing() throws IOException {
         if (!mClosed) {
             mClosed = true;
+            getSession().getServer().getMetrics().recordWebSocketClosed();
             try {
                 mHandler.webSocketClosed(this);
             } catch (Throwable throwable) {
                 Log.error(getSession(), throwable);
             }
+            for (WebSocketGroup.Topic topic : mTopics) {
+                topic.unsubscribe(this);
+            }
             send(Opcode.CLOSE, new byte[0]);
+            if (mDeflate != null) {
+                mDeflate.release();
+            }
+            discardPending();
+        }
+    }
+
+    /** Resumes any streaming send once the remote end has caught up. */
+    @Override
+    public void writabilityChanged(boolean writable) throws IOException {
+        if (writable) {
+            pump();
+        }
+    }
+
+    /** @return The largest payload placed in a single outgoing frame. */
+    public final int getFragmentSize() {
+        return mFragmentSize;
+    }
+
+    /**
+     * @param size The largest payload to place in a single outgoing frame. Values above
+     *             {@link #DEFAULT_FRAGMENT_SIZE} are reduced to it.
+     */
+    public final void setFragmentSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Fragment size must be positive");
         }
+        mFragmentSize = Math.min(size, DEFAULT_FRAGMENT_SIZE);
+    }
+
+    /** @return {@code true} once this {@link WebSocket} has begun closing. */
+    public final boolean isClosed() {
+        return mClosed;
+    }
+
+    /** @return The negotiated permessage-deflate extension, or {@code null}. */
+    final PerMessageDeflate getDeflate() {
+        return mDeflate;
+    }
+
+    /** @return The {@link WebSocketGroup.Topic}s this {@link WebSocket} is subscribed to. */
+    final Set<WebSocketGroup.Topic> getTopics() {
+        return mTopics;
     }
 
     /**
@@ -248,42 +441,281 @@ public class WebSocket extends Personality {
         send(Opcode.BINARY, data);
     }
 
-    private void send(Opcode opcode, byte[] data) {
-        ByteArrayOutputStream baos      = new ByteArrayOutputStream(10 + Math.min(data.length, MAX_PAYLOAD_LENGTH));
-        int                   position  = 0;
-        int                   remaining = data.length;
-        while (true) {
-            boolean finalFragment = remaining <= MAX_PAYLOAD_LENGTH;
-            int     length        = finalFragment ? remaining : MAX_PAYLOAD_LENGTH;
-            baos.write((byte) (((finalFragment ? 0x80 : 0) | opcode.getOpcode()) & 0xFF));
-            if (length < 126) {
-                baos.write(length & 0xFF);
-            } else if (length < 65536) {
-                baos.write(126);
-                baos.write(length >>> 8 & 0xFF);
-                baos.write(length & 0xFF);
+    /**
+     * Sends a message whose content is read from a stream. Rather than reading the whole message
+     * up front, one fragment at a time is read and queued for as long as the connection remains
+     * writable, with the rest following each time the remote end catches up. Other messages sent
+     * in the meantime are held back until the stream has been fully sent. Streamed messages are
+     * never compressed.
+     *
+     * @param source The source of the message content, which is closed once it has been fully
+     *               read or the connection is closed. Reads may block, and will happen on both
+     *               the calling thread and the threads that process this connection's input.
+     * @param binary {@code true} to send a binary message, {@code false} to send a text message,
+     *               in which case the source must supply valid UTF-8.
+     */
+    public final void send(ReadableByteChannel source, boolean binary) {
+        OutboundStream stream = new OutboundStream(source, binary ? Opcode.BINARY : Opcode.TEXT);
+        getSession().getServer().getMetrics().recordMessageSent();
+        synchronized (mSendLock) {
+            if (mStream == null && !mClosed) {
+                mStream = stream;
             } else {
-                baos.write(127);
-                for (int i = 56; i >= 0; i -= 8) {
-                    baos.write((int) ((long) length >>> i & 0xFF));
+                mPending.add(stream);
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Sends a message whose content is read from a stream. See
+     * {@link #send(ReadableByteChannel, boolean)} for details.
+     *
+     * @param in     The source of the message content.
+     * @param binary {@code true} to send a binary message, {@code false} to send a text message.
+     */
+    public final void send(InputStream in, boolean binary) {
+        send(Channels.newChannel(in), binary);
+    }
+
+    private void pump() {
+        synchronized (mSendLock) {
+            while (mStream != null) {
+                if (mClosed) {
+                    discardPending();
+                    return;
+                }
+                if (!isWritable()) {
+                    // Picked up again by writabilityChanged()
+                    return;
+                }
+                boolean done;
+                try {
+                    done = mStream.sendFragment();
+                } catch (IOException exception) {
+                    // Part of the message has already gone out, so the connection can't be saved
+                    Log.error(getSession(), exception);
+                    discardPending();
+                    requestClose(true);
+                    return;
+                }
+                if (done) {
+                    mStream.close();
+                    mStream = null;
+                    Object next;
+                    while ((next = mPending.poll()) != null) {
+                        if (next instanceof OutboundStream) {
+                            mStream = (OutboundStream) next;
+                            break;
+                        }
+                        send((PooledBuffer) next);
+                    }
+                }
+            }
+        }
+    }
+
+    private void discardPending() {
+        synchronized (mSendLock) {
+            if (mStream != null) {
+                mStream.close();
+                mStream = null;
+            }
+            for (Object one : mPending) {
+                if (one instanceof OutboundStream) {
+                    ((OutboundStream) one).close();
+                } else {
+                    ((PooledBuffer) one).release();
                 }
             }
-            if (length > 0) {
-                baos.write(data, position, length);
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Sends an encoded message, or holds it back if a streamed message is in progress.
+     *
+     * @param message The encoded message. The caller's reference is passed on.
+     */
+    final void sendEncoded(PooledBuffer message) {
+        getSession().getServer().getMetrics().recordMessageSent();
+        synchronized (mSendLock) {
+            if (mStream != null) {
+                mPending.add(message);
+            } else {
+                send(message);
+            }
+        }
+    }
+
+    final void send(Opcode opcode, byte[] data) {
+        PerMessageDeflate deflate = mDeflate;
+        if (!opcode.isControl()) {
+            getSession().getServer().getMetrics().recordMessageSent();
+        }
+        if (deflate != null && !opcode.isControl() && deflate.shouldCompress(data.length)) {
+            // Hold the lock until the frames are queued, so that messages reach the remote end in
+            // the same order as they entered the compression context
+            synchronized (deflate) {
+                ByteBuffer compressed = deflate.deflate(data);
+                send(opcode, compressed.array(), compressed.position(), compressed.remaining(), true);
+            }
+        } else {
+            send(opcode, data, 0, data.length, false);
+        }
+    }
+
+    private void send(Opcode opcode, byte[] data, int offset, int length, boolean compressed) {
+        if (opcode.isControl()) {
+            // Control frames may be sent between the fragments of a message
+            sendFrames(opcode, data, offset, length, compressed);
+        } else {
+            synchronized (mSendLock) {
+                if (mStream != null) {
+                    mPending.add(encode(getBufferPool(), opcode, data, offset, length, compressed));
+                } else {
+                    sendFrames(opcode, data, offset, length, compressed);
+                }
+            }
+        }
+    }
+
+    private void sendFrames(Opcode opcode, byte[] data, int offset, int length, boolean compressed) {
+        // Each frame is built directly in a pooled buffer, which is released once written
+        int fragmentSize = mFragmentSize;
+        int position     = offset;
+        int remaining    = length;
+        int rsv          = compressed ? 0x40 : 0;
+        while (true) {
+            boolean      finalFragment = remaining <= fragmentSize;
+            int          amount        = finalFragment ? remaining : fragmentSize;
+            PooledBuffer pooled        = getBufferPool().allocate(MAX_OUTBOUND_HEADER + amount);
+            ByteBuffer   frame         = pooled.getBuffer();
+            putHeader(frame, finalFragment, rsv, opcode, amount);
+            if (amount > 0) {
+                frame.put(data, position, amount);
                 opcode = Opcode.CONTINUATION;
-                position += length;
-                remaining -= length;
+                rsv = 0;
+                position += amount;
+                remaining -= amount;
             }
+            frame.flip();
+            send(pooled);
             if (remaining <= 0) {
                 break;
             }
         }
-        send(ByteBuffer.wrap(baos.toByteArray()));
+    }
+
+    /**
+     * Encodes a complete message, split into as many frames as needed, into a single buffer.
+     *
+     * @param pool       The {@link BufferPool} to allocate the buffer from.
+     * @param opcode     The message type.
+     * @param data       The message payload.
+     * @param offset     The offset of the payload within the data.
+     * @param length     The length of the payload.
+     * @param compressed Whether the payload has been compressed with permessage-deflate.
+     * @return The encoded message, ready to be sent.
+     */
+    static PooledBuffer encode(BufferPool pool, Opcode opcode, byte[] data, int offset, int length, boolean compressed) {
+        int          frames = Math.max((length + MAX_PAYLOAD_LENGTH - 1) / MAX_PAYLOAD_LENGTH, 1);
+        PooledBuffer pooled = pool.allocate(length + frames * MAX_OUTBOUND_HEADER);
+        ByteBuffer   buffer = pooled.getBuffer();
+        int          rsv    = compressed ? 0x40 : 0;
+        do {
+            int amount = Math.min(length, MAX_PAYLOAD_LENGTH);
+            putHeader(buffer, amount == length, rsv, opcode, amount);
+            buffer.put(data, offset, amount);
+            opcode = Opcode.CONTINUATION;
+            rsv = 0;
+            offset += amount;
+            length -= amount;
+        } while (length > 0);
+        buffer.flip();
+        return pooled;
+    }
+
+    private static int headerSize(int length) {
+        return length < 126 ? 2 : length < 65536 ? 4 : 10;
+    }
+
+    private static void putHeader(ByteBuffer frame, boolean finalFragment, int rsv, Opcode opcode, int length) {
+        frame.put((byte) ((finalFragment ? 0x80 : 0) | rsv | opcode.getOpcode()));
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length < 65536) {
+            frame.put((byte) 126);
+            frame.putShort((short) length);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(length);
+        }
+    }
+
+    /** A message being sent from a stream, one fragment at a time. */
+    private final class OutboundStream {
+        private ReadableByteChannel mSource;
+        private Opcode              mFrameOpcode;
+
+        OutboundStream(ReadableByteChannel source, Opcode opcode) {
+            mSource = source;
+            mFrameOpcode = opcode;
+        }
+
+        /** @return {@code true} if the final fragment has been sent. */
+        final boolean sendFragment() throws IOException {
+            // The payload is read in after room for the largest header, and the header is then
+            // placed immediately in front of it once its length and finality are known
+            PooledBuffer pooled = getBufferPool().allocate(MAX_OUTBOUND_HEADER + mFragmentSize);
+            ByteBuffer   buffer = pooled.getBuffer();
+            boolean      eof    = false;
+            buffer.position(MAX_OUTBOUND_HEADER);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (mSource.read(buffer) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+            } catch (IOException exception) {
+                pooled.release();
+                throw exception;
+            }
+            int end    = buffer.position();
+            int length = end - MAX_OUTBOUND_HEADER;
+            int start  = MAX_OUTBOUND_HEADER - headerSize(length);
+            buffer.position(start);
+            putHeader(buffer, eof, 0, mFrameOpcode, length);
+            buffer.limit(end).position(start);
+            send(pooled);
+            mFrameOpcode = Opcode.CONTINUATION;
+            return eof;
+        }
+
+        final void close() {
+            try {
+                mSource.close();
+            } catch (IOException exception) {
+                Log.error(getSession(), exception);
+            }
+        }
     }
 
     enum Opcode {
         UNDEFINED((byte) 0xFF, true), CONTINUATION((byte) 0, false), TEXT((byte) 1, false), BINARY((byte) 2, false), CLOSE((byte) 8, true), PING((byte) 9, true), PONG((byte) 10, true);
 
+        private static final Opcode[] LOOKUP = new Opcode[16];
+
+        static {
+            Arrays.fill(LOOKUP, UNDEFINED);
+            for (Opcode one : values()) {
+                if (one != UNDEFINED) {
+                    LOOKUP[one.mOpcode] = one;
+                }
+            }
+        }
+
         private byte    mOpcode;
         private boolean mIsControl;
 
@@ -301,12 +733,7 @@ public class WebSocket extends Personality {
         }
 
         static final Opcode lookup(byte opcode) {
-            for (Opcode one : values()) {
-                if (opcode == one.mOpcode) {
-                    return one;
-                }
-            }
-            return UNDEFINED;
+            return opcode >= 0 && opcode < LOOKUP.length ? LOOKUP[opcode] : UNDEFINED;
         }
     }
 }
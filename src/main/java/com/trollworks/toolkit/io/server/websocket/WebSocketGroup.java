@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import com.trollworks.toolkit.io.server.PooledBuffer;
+import com.trollworks.toolkit.io.server.websocket.WebSocket.Opcode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes messages to the {@link WebSocket}s subscribed to named topics.<br>
+ * <br>
+ * Each published message is encoded and framed once, and every subscriber's write queue is given
+ * a read-only view of the same buffer. Subscribers that negotiated permessage-deflate without
+ * context takeover likewise share a single compressed frame, while those that retain their
+ * compression context have the message compressed for them individually.<br>
+ * <br>
+ * A subscriber whose outbound data is above its high watermark is considered slow, and is dealt
+ * with according to the group's {@link SlowSubscriberPolicy}. {@link WebSocket}s are removed from
+ * their topics automatically when they close.
+ */
+public class WebSocketGroup {
+    /** What to do with a subscriber that isn't keeping up. */
+    public enum SlowSubscriberPolicy {
+        /** Skip the message for that subscriber. */
+        DROP,
+        /** Close the subscriber's connection without waiting for its queued data. */
+        DISCONNECT
+    }
+
+    private          ConcurrentHashMap<String, Topic> mTopics = new ConcurrentHashMap<>();
+    private volatile SlowSubscriberPolicy             mPolicy;
+
+    /** Creates a new {@link WebSocketGroup} that drops messages for slow subscribers. */
+    public WebSocketGroup() {
+        this(SlowSubscriberPolicy.DROP);
+    }
+
+    /** @param policy What to do with a subscriber that isn't keeping up. */
+    public WebSocketGroup(SlowSubscriberPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /** @return What to do with a subscriber that isn't keeping up. */
+    public final SlowSubscriberPolicy getSlowSubscriberPolicy() {
+        return mPolicy;
+    }
+
+    /** @param policy What to do with a subscriber that isn't keeping up. */
+    public final void setSlowSubscriberPolicy(SlowSubscriberPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /** @return The names of the topics that currently exist. */
+    public final Set<String> getTopics() {
+        return Collections.unmodifiableSet(mTopics.keySet());
+    }
+
+    /**
+     * @param topic     The topic to subscribe to. It is created if it doesn't already exist.
+     * @param webSocket The {@link WebSocket} to subscribe.
+     * @return {@code true} if the {@link WebSocket} was not already subscribed.
+     */
+    public final boolean subscribe(String topic, WebSocket webSocket) {
+        if (webSocket.isClosed()) {
+            return false;
+        }
+        Topic one = mTopics.computeIfAbsent(topic, Topic::new);
+        if (!one.mSubscribers.add(webSocket)) {
+            return false;
+        }
+        webSocket.getTopics().add(one);
+        if (webSocket.isClosed()) {
+            // Lost a race with the close, which may have missed this topic
+            one.unsubscribe(webSocket);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param topic     The topic to unsubscribe from.
+     * @param webSocket The {@link WebSocket} to unsubscribe.
+     * @return {@code true} if the {@link WebSocket} was subscribed.
+     */
+    public final boolean unsubscribe(String topic, WebSocket webSocket) {
+        Topic one = mTopics.get(topic);
+        return one != null && one.unsubscribe(webSocket);
+    }
+
+    /**
+     * Removes a topic, unsubscribing all of its subscribers and discarding its metrics.
+     *
+     * @param topic The topic to remove.
+     */
+    public final void removeTopic(String topic) {
+        Topic one = mTopics.remove(topic);
+        if (one != null) {
+            for (WebSocket webSocket : one.mSubscribers) {
+                one.unsubscribe(webSocket);
+            }
+        }
+    }
+
+    /**
+     * @param topic The topic.
+     * @return The metrics for the topic, or {@code null} if it doesn't exist.
+     */
+    public final Metrics getMetrics(String topic) {
+        Topic one = mTopics.get(topic);
+        return one != null ? one.mMetrics : null;
+    }
+
+    /**
+     * Sends a text message to every subscriber of a topic.
+     *
+     * @param topic The topic to publish to.
+     * @param msg   The message.
+     * @return The number of subscribers the message was queued for.
+     */
+    public final int publish(String topic, String msg) {
+        return publish(topic, Opcode.TEXT, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a binary message to every subscriber of a topic.
+     *
+     * @param topic The topic to publish to.
+     * @param data  The message. Must not be modified until this method returns.
+     * @return The number of subscribers the message was queued for.
+     */
+    public final int publish(String topic, byte[] data) {
+        return publish(topic, Opcode.BINARY, data);
+    }
+
+    private int publish(String topic, Opcode opcode, byte[] data) {
+        Topic one = mTopics.get(topic);
+        if (one == null) {
+            return 0;
+        }
+        Metrics metrics = one.mMetrics;
+        metrics.mPublished.increment();
+        SlowSubscriberPolicy policy     = mPolicy;
+        PooledBuffer         plain      = null;
+        PooledBuffer         compressed = null;
+        int                  delivered  = 0;
+        try {
+            for (WebSocket webSocket : one.mSubscribers) {
+                if (webSocket.isClosed()) {
+                    one.unsubscribe(webSocket);
+                    continue;
+                }
+                if (!webSocket.isWritable()) {
+                    if (policy == SlowSubscriberPolicy.DISCONNECT) {
+                        one.unsubscribe(webSocket);
+                        webSocket.requestClose(true);
+                        metrics.mDisconnected.increment();
+                    } else {
+                        metrics.mDropped.increment();
+                    }
+                    continue;
+                }
+                PerMessageDeflate deflate = webSocket.getDeflate();
+                if (deflate != null && deflate.shouldCompress(data.length)) {
+                    if (deflate.isContextRetained()) {
+                        webSocket.send(opcode, data);
+                        metrics.mIndividual.increment();
+                    } else {
+                        if (compressed == null) {
+                            ByteBuffer bytes = PerMessageDeflate.deflateWithoutContext(data);
+                            compressed = WebSocket.encode(webSocket.getBufferPool(), opcode, bytes.array(), 0, bytes.remaining(), true);
+                            metrics.mEncoded.increment();
+                        }
+                        webSocket.sendEncoded(compressed.retainedView());
+                    }
+                } else {
+                    if (plain == null) {
+                        plain = WebSocket.encode(webSocket.getBufferPool(), opcode, data, 0, data.length, false);
+                        metrics.mEncoded.increment();
+                    }
+                    webSocket.sendEncoded(plain.retainedView());
+                }
+                delivered++;
+            }
+        } finally {
+            if (plain != null) {
+                plain.release();
+            }
+            if (compressed != null) {
+                compressed.release();
+            }
+        }
+        metrics.mDelivered.add(delivered);
+        return delivered;
+    }
+
+    /** A named set of subscribers. */
+    static final class Topic {
+        private String                         mName;
+        private CopyOnWriteArraySet<WebSocket> mSubscribers = new CopyOnWriteArraySet<>();
+        private Metrics                        mMetrics     = new Metrics(this);
+
+        Topic(String name) {
+            mName = name;
+        }
+
+        final boolean unsubscribe(WebSocket webSocket) {
+            webSocket.getTopics().remove(this);
+            return mSubscribers.remove(webSocket);
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    /** Fan-out statistics for a topic. */
+    public static final class Metrics {
+        private Topic     mTopic;
+        private LongAdder mPublished    = new LongAdder();
+        private LongAdder mEncoded      = new LongAdder();
+        private LongAdder mDelivered    = new LongAdder();
+        private LongAdder mIndividual   = new LongAdder();
+        private LongAdder mDropped      = new LongAdder();
+        private LongAdder mDisconnected = new LongAdder();
+
+        Metrics(Topic topic) {
+            mTopic = topic;
+        }
+
+        /** @return The number of current subscribers. */
+        public int getSubscriberCount() {
+            return mTopic.mSubscribers.size();
+        }
+
+        /** @return The number of messages published. */
+        public long getPublishedCount() {
+            return mPublished.sum();
+        }
+
+        /**
+         * @return The number of shared frame buffers built. Ideally one per message, or two when
+         *         both compressed and uncompressed subscribers are present.
+         */
+        public long getEncodedCount() {
+            return mEncoded.sum();
+        }
+
+        /** @return The number of messages queued for subscribers. */
+        public long getDeliveredCount() {
+            return mDelivered.sum();
+        }
+
+        /**
+         * @return The number of messages that had to be compressed for a single subscriber,
+         *         because it retains its compression context.
+         */
+        public long getIndividuallyEncodedCount() {
+            return mIndividual.sum();
+        }
+
+        /** @return The number of messages skipped for slow subscribers. */
+        public long getDroppedCount() {
+            return mDropped.sum();
+        }
+
+        /** @return The number of slow subscribers that were disconnected. */
+        public long getDisconnectedCount() {
+            return mDisconnected.sum();
+        }
+    }
+}
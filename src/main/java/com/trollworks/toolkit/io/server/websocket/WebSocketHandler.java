@@ -11,6 +11,8 @@
 
 package com.trollworks.toolkit.io.server.websocket;
 
+import java.nio.ByteBuffer;
+
 /** Provides callbacks for handling a {@link WebSocket}. */
 public interface WebSocketHandler {
     /**
@@ -36,6 +38,39 @@ public interface WebSocketHandler {
      */
     void webSocketBinaryData(WebSocket webSocket, byte[] data);
 
+    /**
+     * Called when binary data has been received. The buffer is a read-only view that may refer
+     * directly to the {@link WebSocket}'s input, so it is only valid for the duration of the call.
+     * By default, copies the data and calls {@link #webSocketBinaryData(WebSocket, byte[])}.
+     *
+     * @param webSocket The {@link WebSocket} the data was received from.
+     * @param data      The data.
+     */
+    default void webSocketBinaryData(WebSocket webSocket, ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        webSocketBinaryData(webSocket, bytes);
+    }
+
+    /**
+     * @return The size, in bytes, of the smallest message that will be sent compressed when the
+     *         client supports the permessage-deflate extension, or a negative value to not
+     *         negotiate compression at all. By default, returns -1.
+     */
+    default int getCompressionThreshold() {
+        return -1;
+    }
+
+    /**
+     * @return {@code true} if each end may carry its compression context from one message to the
+     *         next, which compresses better but keeps a {@link java.util.zip.Deflater} and
+     *         {@link java.util.zip.Inflater} allocated for the life of the connection. By default,
+     *         returns {@code true}.
+     */
+    default boolean isCompressionContextRetained() {
+        return true;
+    }
+
     /**
      * Called when the {@link WebSocket} is closed.
      *